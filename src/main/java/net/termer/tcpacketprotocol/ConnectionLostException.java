@@ -0,0 +1,21 @@
+package net.termer.tcpacketprotocol;
+
+import java.io.IOException;
+
+/**
+ * Exception used when a connection was lost before a reply to a packet sent on it was received.
+ * @author termer
+ * @since 1.2
+ */
+public class ConnectionLostException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a new ConnectionLostException
+	 * @param msg The exception message
+	 * @since 1.2
+	 */
+	public ConnectionLostException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,192 @@
+package net.termer.tcpacketprotocol;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.termer.tcpacketprotocol.util.LatencyHistogram;
+
+/**
+ * Times handler invocations and keeps a latency histogram for each handler class.
+ * With a slow handler threshold, a watchdog reports invocations that run for longer than it, and can interrupt them.
+ * Reports are delivered on the watchdog's own thread, so they arrive even when all handler threads are busy.
+ * @author termer
+ * @since 1.2
+ */
+public class HandlerMonitor {
+	// A handler invocation that is currently running
+	private static class Invocation {
+		final Object handler;
+		final Thread thread;
+		final long start;
+		boolean reported = false;
+		boolean interrupted = false;
+		boolean done = false;
+		
+		Invocation(Object handler, Thread thread, long start) {
+			this.handler = handler;
+			this.thread = thread;
+			this.start = start;
+		}
+	}
+	
+	// Latency histograms, by handler class
+	private final ConcurrentHashMap<Class<?>, LatencyHistogram> _histograms = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+	// Invocations that are currently running, only tracked with a slow handler threshold
+	private final Set<Invocation> _running = Collections.newSetFromMap(new ConcurrentHashMap<Invocation, Boolean>());
+	// Amount of invocations that were reported as slow
+	private final AtomicLong _slow = new AtomicLong(0);
+	// Time in milliseconds after which invocations are reported, -1 to not watch invocations
+	private final long _threshold;
+	// Whether to interrupt slow invocations
+	private final boolean _interrupt;
+	// Handler that slow invocations are reported to
+	private final ExceptionHandler _reporter;
+	// Watchdog timer
+	private Timer _watchdog = null;
+	
+	/**
+	 * Creates a new HandlerMonitor
+	 * @param slowThreshold The time in milliseconds after which invocations are reported as slow, or -1 to only time invocations
+	 * @param interrupt Whether to interrupt the threads of slow invocations after reporting them
+	 * @param reporter The handler that slow invocations are reported to as a SlowHandlerException
+	 * @since 1.2
+	 */
+	public HandlerMonitor(long slowThreshold, boolean interrupt, ExceptionHandler reporter) {
+		_threshold = slowThreshold;
+		_interrupt = interrupt;
+		_reporter = reporter;
+	}
+	
+	/**
+	 * Returns the latency histograms of all handler classes that have been invoked
+	 * @return The latency histograms, by handler class
+	 * @since 1.2
+	 */
+	public Map<Class<?>, LatencyHistogram> histograms() {
+		return Collections.unmodifiableMap(_histograms);
+	}
+	/**
+	 * Returns the latency histogram of a handler's class
+	 * @param handler The handler
+	 * @return The latency histogram
+	 * @since 1.2
+	 */
+	public LatencyHistogram histogram(Object handler) {
+		Class<?> cls = handler.getClass();
+		LatencyHistogram res = _histograms.get(cls);
+		if(res == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			res = _histograms.putIfAbsent(cls, created);
+			if(res == null)
+				res = created;
+		}
+		
+		return res;
+	}
+	/**
+	 * Returns the amount of invocations that were reported as slow
+	 * @return The amount of slow invocations
+	 * @since 1.2
+	 */
+	public long slowInvocations() {
+		return _slow.get();
+	}
+	
+	/**
+	 * Runs a handler invocation, timing it and watching it if there is a slow handler threshold
+	 * @param handler The handler being invoked
+	 * @param invocation The invocation
+	 * @since 1.2
+	 */
+	public void run(Object handler, Runnable invocation) {
+		long start = System.nanoTime();
+		Invocation inv = null;
+		if(_threshold > 0) {
+			inv = new Invocation(handler, Thread.currentThread(), start);
+			_running.add(inv);
+		}
+		
+		try {
+			invocation.run();
+		} finally {
+			histogram(handler).record(System.nanoTime() - start);
+			
+			if(inv != null) {
+				_running.remove(inv);
+				synchronized(inv) {
+					inv.done = true;
+					
+					// Don't leave the interrupt behind for whatever the thread runs next
+					if(inv.interrupted)
+						Thread.interrupted();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts the watchdog, if there is a slow handler threshold
+	 * @since 1.2
+	 */
+	public synchronized void start() {
+		if(_threshold < 1 || _watchdog != null)
+			return;
+		
+		_watchdog = new Timer("HandlerMonitor-watchdog", true);
+		_watchdog.scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				check();
+			}
+		}, 0, Math.max(10, _threshold / 4));
+	}
+	/**
+	 * Stops the watchdog
+	 * @since 1.2
+	 */
+	public synchronized void close() {
+		if(_watchdog != null) {
+			_watchdog.cancel();
+			_watchdog = null;
+		}
+	}
+	
+	// Reports and optionally interrupts invocations that have been running for longer than the threshold
+	private void check() {
+		long now = System.nanoTime();
+		for(Invocation inv : _running) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(now - inv.start);
+			if(elapsed < _threshold)
+				continue;
+			
+			synchronized(inv) {
+				if(inv.done || inv.reported)
+					continue;
+				inv.reported = true;
+			}
+			
+			_slow.incrementAndGet();
+			if(_reporter != null) {
+				try {
+					_reporter.handle(new SlowHandlerException(inv.handler, elapsed, inv.thread));
+				} catch(Exception e) {
+					// Reporting must not stop the watchdog
+				}
+			}
+			
+			if(_interrupt) {
+				synchronized(inv) {
+					if(!inv.done) {
+						inv.interrupted = true;
+						inv.thread.interrupt();
+					}
+				}
+			}
+		}
+	}
+}
@@ -7,7 +7,9 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
+import net.termer.tcpacketprotocol.util.Compression;
 import net.termer.tcpacketprotocol.util.IntGenerator;
+import net.termer.tcpacketprotocol.util.Varint;
 
 /**
  * Main class for storing, creating, and sending packets.
@@ -15,6 +17,62 @@ import net.termer.tcpacketprotocol.util.IntGenerator;
  * @since 1.0
  */
 public class Packet {
+	/**
+	 * Priority for packets that should be written before all others, such as replies
+	 * @since 1.2
+	 */
+	public static final int PRIORITY_HIGH = 2;
+	/**
+	 * Priority for normal packets
+	 * @since 1.2
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+	/**
+	 * Priority for bulk packets that should only be written when nothing else is waiting
+	 * @since 1.2
+	 */
+	public static final int PRIORITY_LOW = 0;
+	
+	/**
+	 * Control packet type for heartbeat pings, which are answered with CONTROL_PONG
+	 * @since 1.2
+	 */
+	public static final short CONTROL_PING = 1;
+	/**
+	 * Control packet type for heartbeat pongs
+	 * @since 1.2
+	 */
+	public static final short CONTROL_PONG = 2;
+	/**
+	 * Control packet type sent by a server that is shutting down, telling the client not to send new requests
+	 * @since 1.2
+	 */
+	public static final short CONTROL_GOAWAY = 3;
+	/**
+	 * Control packet type sent by a server that is turning away a new connection because it is over its connection limits
+	 * @since 1.2
+	 */
+	public static final short CONTROL_BUSY = 4;
+	/**
+	 * Control packet type sent by a client after connecting, describing its protocol version and features
+	 * @since 1.2
+	 */
+	public static final short CONTROL_HELLO = 5;
+	/**
+	 * Control packet type sent by a server in answer to CONTROL_HELLO, describing its own protocol version and features
+	 * @since 1.2
+	 */
+	public static final short CONTROL_HELLO_ACK = 6;
+	
+	// Header flag set when the packet body is compressed
+	private static final byte FLAG_COMPRESSED = 0x10;
+	// Header flag set on the last chunk of a streamed packet
+	private static final byte FLAG_LAST_CHUNK = 0x20;
+	// Header flag set on requests that carry the milliseconds left until their deadline after their ID
+	private static final byte FLAG_DEADLINE = 0x40;
+	// Mask for the packet kind in the header type byte
+	private static final byte KIND_MASK = 0x0F;
+	
 	// Type for the packet
 	private final short _type;
 	// The body of the packet
@@ -26,8 +84,17 @@ public class Packet {
 	// Sending flags for this packet
 	private boolean _expectReply = false;
 	private boolean _reply = false;
+	private boolean _chunk = false;
+	private boolean _lastChunk = false;
+	private boolean _control = false;
+	// Priority for writing this packet, -1 if not assigned
+	private int _priority = -1;
+	// Time in milliseconds after which nobody is waiting for a reply to this packet anymore, 0 if none
+	private long _deadline = 0;
 	// Socket this came from
 	private Socket _source = null;
+	// Writer for the connection this came from
+	private PacketWriter _writer = null;
 	
 	/**
 	 * Creates a new packet with the specified type
@@ -164,6 +231,66 @@ public class Packet {
 		return _reply;
 	}
 	
+	/**
+	 * Returns whether this packet is a chunk of a streamed packet, in which case id() is the ID of the streamed packet
+	 * @return Whether this packet is a stream chunk
+	 * @since 1.2
+	 */
+	public boolean isStreamChunk() {
+		return _chunk;
+	}
+	
+	/**
+	 * Returns whether this packet is the last chunk of a streamed packet
+	 * @return Whether this packet is the last stream chunk
+	 * @since 1.2
+	 */
+	public boolean isLastChunk() {
+		return _lastChunk;
+	}
+	
+	/**
+	 * Returns whether this packet is a control packet used by the protocol itself, in which case type() is one of the CONTROL_ types.
+	 * Control packets are not passed to packet handlers.
+	 * @return Whether this packet is a control packet
+	 * @since 1.2
+	 */
+	public boolean isControl() {
+		return _control;
+	}
+	
+	/**
+	 * Returns the priority this packet is written with.
+	 * If no priority was assigned, replies and control packets have PRIORITY_HIGH and all other packets have PRIORITY_NORMAL.
+	 * @return This packet's priority
+	 * @since 1.2
+	 */
+	public int priority() {
+		if(_priority > -1)
+			return _priority;
+		else
+			return _reply || _control ? PRIORITY_HIGH : PRIORITY_NORMAL;
+	}
+	
+	/**
+	 * Returns the time in milliseconds since the epoch after which nobody is waiting for a reply to this packet anymore, or 0 if it has no deadline.
+	 * For received packets, this is based on the local clock.
+	 * @return This packet's deadline
+	 * @since 1.2
+	 */
+	public long deadline() {
+		return _deadline;
+	}
+	
+	/**
+	 * Returns whether this packet has a deadline and it has passed
+	 * @return Whether this packet's deadline has passed
+	 * @since 1.2
+	 */
+	public boolean isExpired() {
+		return _deadline > 0 && System.currentTimeMillis() >= _deadline;
+	}
+	
 	/**
 	 * This packet's ID, Integer.MIN_VALUE if none has been assigned
 	 * @return This packet's ID
@@ -182,6 +309,15 @@ public class Packet {
 		return _source;
 	}
 	
+	/**
+	 * Returns the writer of the connection this Packet came from (may be null)
+	 * @return The writer of the connection this Packet came from
+	 * @since 1.2
+	 */
+	public PacketWriter writer() {
+		return _writer;
+	}
+	
 	/**
 	 * Sets this packet's body
 	 * @param body The packet's body
@@ -228,6 +364,35 @@ public class Packet {
 		return this;
 	}
 	
+	/**
+	 * Sets the priority this packet is written with.
+	 * Queued packets with a higher priority are always written before packets with a lower priority.
+	 * @param priority The priority, one of PRIORITY_HIGH, PRIORITY_NORMAL, or PRIORITY_LOW
+	 * @return This, to be used fluently
+	 * @throws IllegalArgumentException If the priority is not valid
+	 * @since 1.2
+	 */
+	public Packet priority(int priority) {
+		if(priority < PRIORITY_LOW || priority > PRIORITY_HIGH)
+			throw new IllegalArgumentException("Invalid packet priority: "+priority);
+		
+		_priority = priority;
+		return this;
+	}
+	
+	/**
+	 * Sets the time after which nobody is waiting for a reply to this packet anymore.
+	 * The time left until the deadline is sent along with packets expecting a reply if the other side supports it, so it can drop requests that expired before handling them.
+	 * Packets sent with a reply handler get the handler's timeout date as their deadline unless they already have one.
+	 * @param deadline The deadline in milliseconds since the epoch, or 0 for none
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public Packet deadline(long deadline) {
+		_deadline = deadline;
+		return this;
+	}
+	
 	/**
 	 * Sets this packet as a reply to another
 	 * @param packetId The ID of the packet this packet is replying to 
@@ -240,6 +405,20 @@ public class Packet {
 		return this;
 	}
 	
+	/**
+	 * Sets this packet as a chunk of a streamed packet
+	 * @param streamId The ID of the streamed packet this chunk belongs to
+	 * @param last Whether this is the last chunk of the streamed packet
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public Packet setStreamChunk(int streamId, boolean last) {
+		_id = streamId;
+		_chunk = true;
+		_lastChunk = last;
+		return this;
+	}
+	
 	/**
 	 * Sets whether this packet is expecting a reply
 	 * @param expecting Whether this packet is expecting a reply
@@ -264,19 +443,98 @@ public class Packet {
 		return this;
 	}
 	
+	/**
+	 * Sets the writer of the connection this Packet came from (may be null).
+	 * Replies will be sent through this writer instead of being written to the source socket directly.
+	 * @param writer The writer of the connection this Packet came from
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public Packet writer(PacketWriter writer) {
+		_writer = writer;
+		return this;
+	}
+	
 	/**
 	 * Returns the bytes for this packet
 	 * @return This packet's bytes
 	 * @since 1.0
 	 */
 	public byte[] toBytes() {
+		return toBytes(-1);
+	}
+	/**
+	 * Returns the bytes for this packet, compressing the body if it is at least the specified size
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @return This packet's bytes
+	 * @since 1.2
+	 */
+	public byte[] toBytes(int compressionThreshold) {
+		return toBytes(compressionThreshold, false);
+	}
+	/**
+	 * Returns the bytes for this packet, compressing the body if it is at least the specified size.
+	 * The compact header encoding writes the type and ID as varints and leaves out the ID of control packets, so it must only be used if the other side negotiated it.
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @param compact Whether to use the compact header encoding
+	 * @return This packet's bytes
+	 * @since 1.2
+	 */
+	public byte[] toBytes(int compressionThreshold, boolean compact) {
+		return toBytes(compressionThreshold, compact, false);
+	}
+	// Returns the bytes for this packet, including its deadline if it is a request and the other side negotiated deadlines
+	byte[] toBytes(int compressionThreshold, boolean compact, boolean deadlines) {
 		// Calculate size
 		byte type = 0;
 		if(_expectReply)
 			type = 1;
 		else if(_reply)
 			type = 2;
-		int size = 3 + (type == 0 ? 0 : 4) + _body.length;
+		else if(_chunk)
+			type = (byte) (_lastChunk ? 3 | FLAG_LAST_CHUNK : 3);
+		else if(_control)
+			type = 4;
+		
+		// Compress body if it's large enough and compression actually saves space
+		byte[] body = _body;
+		if(compressionThreshold > -1 && body.length >= compressionThreshold) {
+			byte[] compressed = Compression.compress(body);
+			if(compressed != null) {
+				body = compressed;
+				type |= FLAG_COMPRESSED;
+			}
+		}
+		
+		byte kind = (byte) (type & KIND_MASK);
+		int id = kind == 2 ? _replyId : _id;
+		
+		// Deadlines are sent as the time left, so the clocks of both sides don't need to agree
+		int remaining = -1;
+		if(deadlines && kind == 1 && _deadline > 0) {
+			remaining = (int) Math.max(0, Math.min(Integer.MAX_VALUE, _deadline - System.currentTimeMillis()));
+			type |= FLAG_DEADLINE;
+		}
+		
+		if(compact) {
+			// IDs count up from Integer.MIN_VALUE, so offsetting them keeps their varints short
+			boolean hasId = kind != 0 && kind != 4;
+			int size = 1 + Varint.size(_type & 0xFFFF) + (hasId ? Varint.size(id ^ Integer.MIN_VALUE) : 0) + (remaining > -1 ? Varint.size(remaining) : 0) + body.length;
+			
+			ByteBuffer buf = ByteBuffer.allocate(size)
+					.put(type);
+			Varint.write(buf, _type & 0xFFFF);
+			if(hasId)
+				Varint.write(buf, id ^ Integer.MIN_VALUE);
+			if(remaining > -1)
+				Varint.write(buf, remaining);
+			
+			buf.put(body);
+			
+			return buf.array();
+		}
+		
+		int size = 3 + (kind == 0 ? 0 : 4) + (remaining > -1 ? 4 : 0) + body.length;
 		
 		// Create buffer
 		ByteBuffer buf = ByteBuffer.allocate(size);
@@ -285,12 +543,12 @@ public class Packet {
 		buf
 			.putShort(_type)
 			.put(type);
-		if(type == 1)
-			buf.putInt(_id);
-		else if(type == 2)
-			buf.putInt(_replyId);
+		if(kind != 0)
+			buf.putInt(id);
+		if(remaining > -1)
+			buf.putInt(remaining);
 		
-		buf.put(_body);
+		buf.put(body);
 		
 		return buf.array();
 	}
@@ -302,12 +560,47 @@ public class Packet {
 	 * @since 1.0
 	 */
 	public void sendTo(OutputStream out) throws IOException {
-		byte[] bytes = toBytes();
-		ByteBuffer buf = ByteBuffer.allocate(bytes.length+4)
-				.putInt(bytes.length)
-				.put(bytes);
+		sendTo(out, -1);
+	}
+	/**
+	 * Sends this packet to the provided OutputStream, compressing the body if it is at least the specified size
+	 * @param out The OutputStream to write this packet to
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @throws IOException If writing to the stream fails
+	 * @since 1.2
+	 */
+	public void sendTo(OutputStream out, int compressionThreshold) throws IOException {
+		out.write(toFrame(compressionThreshold));
+	}
+	
+	/**
+	 * Returns the bytes for this packet prefixed with their length, ready to be written to a connection
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @return This packet's frame
+	 * @since 1.2
+	 */
+	public byte[] toFrame(int compressionThreshold) {
+		return toFrame(compressionThreshold, false);
+	}
+	/**
+	 * Returns the bytes for this packet prefixed with their length, ready to be written to a connection.
+	 * With the compact header encoding, the length is also written as a varint.
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @param compact Whether to use the compact header encoding
+	 * @return This packet's frame
+	 * @since 1.2
+	 */
+	public byte[] toFrame(int compressionThreshold, boolean compact) {
+		byte[] bytes = toBytes(compressionThreshold, compact);
+		
+		ByteBuffer buf = ByteBuffer.allocate(bytes.length + (compact ? Varint.size(bytes.length) : 4));
+		if(compact)
+			Varint.write(buf, bytes.length);
+		else
+			buf.putInt(bytes.length);
+		buf.put(bytes);
 		
-		out.write(buf.array());
+		return buf.array();
 	}
 	
 	/**
@@ -328,15 +621,18 @@ public class Packet {
 		}
 	}
 	/**
-	 * Replies to this packet with the provided packet
+	 * Replies to this packet with the provided packet.
+	 * The reply is sent through writer() if present, otherwise it is written to source() directly.
 	 * @param pkt The packet to reply with
 	 * @throws IOException If sending the packet fails
-	 * @throws IllegalStateException If this packet is not excepting a reply, or if source() is null
+	 * @throws IllegalStateException If this packet is not excepting a reply, or if source() and writer() are null
 	 * @since 1.0
 	 */
 	public void replyWith(Packet pkt) throws IOException {
 		if(_expectReply) {
-			if(_source == null) {
+			if(_writer != null) {
+				_writer.write(pkt.setReplyTo(_id));
+			} else if(_source == null) {
 				throw new IllegalStateException("Packet source is null");
 			} else {
 				pkt
@@ -356,25 +652,76 @@ public class Packet {
 	 * @since 1.0
 	 */
 	public static Packet parsePacket(byte[] bytes) throws MalformedPacketException {
+		return parsePacket(bytes, Integer.MAX_VALUE);
+	}
+	/**
+	 * Parses an array of bytes into a Packet object
+	 * @param bytes The bytes to parse
+	 * @param maxBodySize The max size in bytes a compressed body may decompress to
+	 * @return The Packet object parsed from the bytes
+	 * @throws MalformedPacketException If parsing the bytes failed
+	 * @since 1.2
+	 */
+	public static Packet parsePacket(byte[] bytes, int maxBodySize) throws MalformedPacketException {
+		return parsePacket(bytes, maxBodySize, false);
+	}
+	/**
+	 * Parses an array of bytes into a Packet object
+	 * @param bytes The bytes to parse
+	 * @param maxBodySize The max size in bytes a compressed body may decompress to
+	 * @param compact Whether the bytes use the compact header encoding
+	 * @return The Packet object parsed from the bytes
+	 * @throws MalformedPacketException If parsing the bytes failed
+	 * @since 1.2
+	 */
+	public static Packet parsePacket(byte[] bytes, int maxBodySize, boolean compact) throws MalformedPacketException {
+		return parsePacket(bytes, bytes.length, maxBodySize, compact);
+	}
+	// Parses the first bytes of an array, leaving out anything after them such as a checksum trailer
+	static Packet parsePacket(byte[] bytes, int length, int maxBodySize, boolean compact) throws MalformedPacketException {
 		try {
-			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			ByteBuffer buf = ByteBuffer.wrap(bytes, 0, length);
 			
-			short type = buf.getShort();
-			byte pktType = buf.get();
+			short type;
+			byte flags;
+			byte pktType;
 			int id = Integer.MIN_VALUE;
-			if(pktType != 0)
-				id = buf.getInt();
-			
-			int offset = 3 + (pktType == 0 ? 0 : 4);
+			long deadline = 0;
+			boolean hasDeadline;
+			if(compact) {
+				flags = buf.get();
+				pktType = (byte) (flags & KIND_MASK);
+				hasDeadline = pktType == 1 && (flags & FLAG_DEADLINE) != 0;
+				type = (short) Varint.read(buf);
+				if(pktType != 0 && pktType != 4)
+					id = Varint.read(buf) ^ Integer.MIN_VALUE;
+				if(hasDeadline)
+					deadline = System.currentTimeMillis() + (Varint.read(buf) & 0xFFFFFFFFL);
+			} else {
+				type = buf.getShort();
+				flags = buf.get();
+				pktType = (byte) (flags & KIND_MASK);
+				hasDeadline = pktType == 1 && (flags & FLAG_DEADLINE) != 0;
+				if(pktType != 0)
+					id = buf.getInt();
+				if(hasDeadline)
+					deadline = System.currentTimeMillis() + (buf.getInt() & 0xFFFFFFFFL);
+			}
 			
-			byte[] body = new byte[buf.array().length - offset];
+			byte[] body = new byte[buf.remaining()];
 			buf.get(body);
 			
-			Packet pkt = pktType == 1 ? new Packet(type, id) : new Packet(type);
+			// Decompress body if needed
+			if((flags & FLAG_COMPRESSED) != 0)
+				body = Compression.decompress(body, maxBodySize);
+			
+			Packet pkt = pktType == 1 ? new Packet(type, id) : pktType == 4 ? control(type) : new Packet(type);
 			if(pktType == 1)
-				pkt.expectingReply(true);
+				pkt.expectingReply(true).deadline(deadline);
 			else if(pktType == 2)
 				pkt.setReplyTo(id);
+			else if(pktType == 3)
+				pkt.setStreamChunk(id, (flags & FLAG_LAST_CHUNK) != 0);
 			pkt.body(body);
 			
 			return pkt;
@@ -383,6 +730,18 @@ public class Packet {
 		}
 	}
 	
+	/**
+	 * Creates a new control packet
+	 * @param type The control packet type, one of the CONTROL_ types
+	 * @return The control packet
+	 * @since 1.2
+	 */
+	public static Packet control(short type) {
+		Packet pkt = new Packet(type, 0);
+		pkt._control = true;
+		return pkt;
+	}
+	
 	/**
 	 * Serializes a Java object into a packet body.
 	 * Fields are serialized into a packet body which can later be deserialized into another Object of the same type containing the same field values.
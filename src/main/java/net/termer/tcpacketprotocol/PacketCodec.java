@@ -0,0 +1,291 @@
+package net.termer.tcpacketprotocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import net.termer.tcpacketprotocol.util.Crc32c;
+import net.termer.tcpacketprotocol.util.Varint;
+
+/**
+ * Encodes and decodes the packets of a single connection.
+ * Connections start out with a base codec using the original frame format, and switch to the codec returned by negotiate() once both sides have exchanged
+ * CONTROL_HELLO and CONTROL_HELLO_ACK packets describing their protocol version, supported features, and max frame size.
+ * The negotiated codec only uses features both sides support, and costs nothing per packet.
+ * @author termer
+ * @since 1.2
+ */
+public class PacketCodec {
+	/**
+	 * The protocol version this codec speaks
+	 * @since 1.2
+	 */
+	public static final short VERSION = 1;
+	
+	/**
+	 * Feature bit for compressed packet bodies
+	 * @since 1.2
+	 */
+	public static final int FEATURE_COMPRESSION = 0x1;
+	/**
+	 * Feature bit for streamed packets
+	 * @since 1.2
+	 */
+	public static final int FEATURE_STREAMING = 0x2;
+	/**
+	 * Feature bit for the compact header encoding, which writes frame lengths, packet types, and IDs as varints
+	 * @since 1.2
+	 */
+	public static final int FEATURE_COMPACT_HEADERS = 0x4;
+	/**
+	 * Feature bit for CRC32C checksums, which are added to the end of every frame and verified when it is decoded
+	 * @since 1.2
+	 */
+	public static final int FEATURE_CHECKSUMS = 0x8;
+	/**
+	 * Feature bit for request deadlines, which are sent along with packets expecting a reply so the other side can drop requests nobody is waiting for anymore
+	 * @since 1.2
+	 */
+	public static final int FEATURE_DEADLINES = 0x10;
+	/**
+	 * All features this codec supports
+	 * @since 1.2
+	 */
+	public static final int FEATURES = FEATURE_COMPRESSION | FEATURE_STREAMING | FEATURE_COMPACT_HEADERS | FEATURE_CHECKSUMS | FEATURE_DEADLINES;
+	
+	// The negotiated protocol version, or 0 if no handshake has happened
+	private final short _version;
+	// The features that may be used
+	private final int _features;
+	// The minimum body size to compress
+	private final int _compressThreshold;
+	// The max size of frames this side accepts, and the max size compressed bodies may decompress to
+	private final int _maxFrameSize;
+	// The max size of frames the other side accepts, or -1 if unknown
+	private final int _peerMaxFrameSize;
+	
+	/**
+	 * Creates a new base codec, which uses the original frame format until a handshake is negotiated
+	 * @param features The features this side supports, a combination of FEATURE_ bits
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @param maxFrameSize The max size in bytes of frames this side accepts
+	 * @since 1.2
+	 */
+	public PacketCodec(int features, int compressionThreshold, int maxFrameSize) {
+		this((short) 0, features, compressionThreshold, maxFrameSize, -1);
+	}
+	private PacketCodec(short version, int features, int compressionThreshold, int maxFrameSize, int peerMaxFrameSize) {
+		_version = version;
+		_features = features;
+		_compressThreshold = compressionThreshold;
+		_maxFrameSize = maxFrameSize;
+		_peerMaxFrameSize = peerMaxFrameSize;
+	}
+	
+	/**
+	 * Returns the negotiated protocol version, or 0 if this is a base codec
+	 * @return The protocol version
+	 * @since 1.2
+	 */
+	public short version() {
+		return _version;
+	}
+	/**
+	 * Returns whether this codec was negotiated with the other side
+	 * @return Whether this codec was negotiated
+	 * @since 1.2
+	 */
+	public boolean isNegotiated() {
+		return _version > 0;
+	}
+	/**
+	 * Returns the features this codec may use, a combination of FEATURE_ bits
+	 * @return The features this codec may use
+	 * @since 1.2
+	 */
+	public int features() {
+		return _features;
+	}
+	/**
+	 * Returns whether this codec may use the specified feature
+	 * @param feature The FEATURE_ bit to check
+	 * @return Whether the feature may be used
+	 * @since 1.2
+	 */
+	public boolean hasFeature(int feature) {
+		return (_features & feature) == feature;
+	}
+	/**
+	 * Returns whether this codec compresses packet bodies over the compression threshold.
+	 * Only negotiated codecs do, since the other side must agree to it first.
+	 * @return Whether this codec compresses bodies
+	 * @since 1.2
+	 */
+	public boolean hasCompression() {
+		return isNegotiated() && hasFeature(FEATURE_COMPRESSION);
+	}
+	/**
+	 * Returns whether this codec may send streamed packets.
+	 * Only negotiated codecs do, since the other side must agree to it first.
+	 * @return Whether this codec may send streamed packets
+	 * @since 1.2
+	 */
+	public boolean hasStreaming() {
+		return isNegotiated() && hasFeature(FEATURE_STREAMING);
+	}
+	/**
+	 * Returns whether this codec uses the compact header encoding.
+	 * Only negotiated codecs do, since the other side must agree to it first.
+	 * @return Whether this codec uses compact headers
+	 * @since 1.2
+	 */
+	public boolean isCompact() {
+		return isNegotiated() && hasFeature(FEATURE_COMPACT_HEADERS);
+	}
+	/**
+	 * Returns whether this codec adds and verifies frame checksums.
+	 * Only negotiated codecs do, since the other side must agree to it first.
+	 * @return Whether this codec uses checksums
+	 * @since 1.2
+	 */
+	public boolean hasChecksums() {
+		return isNegotiated() && hasFeature(FEATURE_CHECKSUMS);
+	}
+	/**
+	 * Returns whether this codec sends request deadlines.
+	 * Only negotiated codecs do, since the other side must agree to it first.
+	 * @return Whether this codec sends deadlines
+	 * @since 1.2
+	 */
+	public boolean hasDeadlines() {
+		return isNegotiated() && hasFeature(FEATURE_DEADLINES);
+	}
+	/**
+	 * Returns the max size in bytes of frames this side accepts
+	 * @return The max size of frames this side accepts
+	 * @since 1.2
+	 */
+	public int maxFrameSize() {
+		return _maxFrameSize;
+	}
+	/**
+	 * Returns the max size in bytes of frames the other side accepts, or -1 if unknown
+	 * @return The max size of frames the other side accepts
+	 * @since 1.2
+	 */
+	public int peerMaxFrameSize() {
+		return _peerMaxFrameSize;
+	}
+	
+	/**
+	 * Creates a handshake packet describing this side's protocol version, features, and max frame size
+	 * @param type The control packet type, either CONTROL_HELLO or CONTROL_HELLO_ACK
+	 * @return The handshake packet
+	 * @since 1.2
+	 */
+	public Packet hello(short type) {
+		return Packet.control(type).body(ByteBuffer.allocate(10)
+				.putShort(VERSION)
+				.putInt(_features)
+				.putInt(_maxFrameSize)
+				.array());
+	}
+	
+	/**
+	 * Returns a codec using what this side and the other side both support, based on the other side's handshake packet.
+	 * Both sides arrive at the same result, so they can switch codecs without any further exchange.
+	 * @param hello The handshake packet received from the other side
+	 * @return The negotiated codec
+	 * @throws MalformedPacketException If the handshake packet is invalid
+	 * @since 1.2
+	 */
+	public PacketCodec negotiate(Packet hello) throws MalformedPacketException {
+		try {
+			// Newer versions may append fields, which are ignored
+			ByteBuffer buf = ByteBuffer.wrap(hello.body());
+			short version = buf.getShort();
+			int features = buf.getInt();
+			int maxFrameSize = buf.getInt();
+			
+			if(version < 1)
+				throw new MalformedPacketException("Invalid protocol version: "+version);
+			
+			return new PacketCodec((short) Math.min(version, VERSION), _features & features, _compressThreshold, _maxFrameSize, maxFrameSize);
+		} catch(BufferUnderflowException e) {
+			throw new MalformedPacketException("Handshake packet is too short");
+		}
+	}
+	
+	/**
+	 * Encodes a packet into a frame, ready to be written to the connection
+	 * @param packet The packet to encode
+	 * @return The frame
+	 * @throws IOException If the packet uses a feature the other side does not support, or is larger than the other side accepts
+	 * @since 1.2
+	 */
+	public byte[] encode(Packet packet) throws IOException {
+		if(packet.isStreamChunk() && !hasStreaming())
+			throw new IOException("The other side does not support streamed packets");
+		
+		byte[] bytes = packet.toBytes(hasCompression() ? _compressThreshold : -1, isCompact(), hasDeadlines());
+		int size = bytes.length + (hasChecksums() ? 4 : 0);
+		if(_peerMaxFrameSize > -1 && size > _peerMaxFrameSize)
+			throw new IOException("Packet of "+size+" bytes is larger than the max frame size of "+_peerMaxFrameSize+" bytes accepted by the other side");
+		
+		// Prefix with the frame size, and add the checksum to the end
+		ByteBuffer buf = ByteBuffer.allocate(size + (isCompact() ? Varint.size(size) : 4));
+		if(isCompact())
+			Varint.write(buf, size);
+		else
+			buf.putInt(size);
+		buf.put(bytes);
+		if(hasChecksums())
+			buf.putInt(Crc32c.compute(bytes, 0, bytes.length));
+		
+		return buf.array();
+	}
+	
+	/**
+	 * Reads the size of the next frame, given the first byte of it that was already read
+	 * @param first The first byte of the frame
+	 * @param in The stream to read the rest of the frame size from
+	 * @return The size of the frame, not including its length
+	 * @throws IOException If reading fails, or the stream ends before the size does
+	 * @since 1.2
+	 */
+	public int readFrameSize(int first, InputStream in) throws IOException {
+		if(isCompact())
+			return Varint.read(first, in);
+		
+		int b2 = in.read();
+		int b3 = in.read();
+		int b4 = in.read();
+		if((first | b2 | b3 | b4) < 0)
+			throw new EOFException("Stream ended in the middle of a frame size");
+		
+		return (first << 24) | (b2 << 16) | (b3 << 8) | b4;
+	}
+	
+	/**
+	 * Decodes a frame's bytes, not including its length, into a packet
+	 * @param bytes The bytes to decode
+	 * @return The packet
+	 * @throws MalformedPacketException If the bytes are not a valid packet, or their checksum does not match
+	 * @since 1.2
+	 */
+	public Packet decode(byte[] bytes) throws MalformedPacketException {
+		if(!hasChecksums())
+			return Packet.parsePacket(bytes, _maxFrameSize, isCompact());
+		
+		// Verify the checksum at the end of the frame before parsing the rest
+		int length = bytes.length - 4;
+		if(length < 0)
+			throw new MalformedPacketException("Frame is too short to have a checksum");
+		if(Crc32c.compute(bytes, 0, length) != ByteBuffer.wrap(bytes, length, 4).getInt())
+			throw new MalformedPacketException("Frame checksum mismatch");
+		
+		return Packet.parsePacket(bytes, length, _maxFrameSize, isCompact());
+	}
+}
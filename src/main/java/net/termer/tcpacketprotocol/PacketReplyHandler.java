@@ -9,8 +9,35 @@ import java.util.Date;
  * @since 1.0
  */
 public class PacketReplyHandler {
+	/**
+	 * Status for a reply that was received
+	 * @since 1.2
+	 */
+	public static final int STATUS_REPLIED = 0;
+	/**
+	 * Status for a reply that was not received before the handler's timeout date
+	 * @since 1.2
+	 */
+	public static final int STATUS_TIMED_OUT = 1;
+	/**
+	 * Status for a reply that can no longer be received because the connection the packet was sent on was lost
+	 * @since 1.2
+	 */
+	public static final int STATUS_CONNECTION_LOST = 2;
+	/**
+	 * Status for a reply that is no longer waited for because the request was cancelled, such as the slower copy of a hedged request
+	 * @since 1.2
+	 */
+	public static final int STATUS_CANCELLED = 3;
+	
 	public final Date timeoutDate;
 	public final ReplyPacketHandler handler;
+	/**
+	 * The handler that receives the reply status.
+	 * For handlers created with a ReplyPacketHandler, every status other than STATUS_REPLIED is passed on as a timeout.
+	 * @since 1.2
+	 */
+	public final ReplyStatusHandler statusHandler;
 	
 	/**
 	 * Defines a new packet reply handler
@@ -19,7 +46,54 @@ public class PacketReplyHandler {
 	 * @since 1.0
 	 */
 	public PacketReplyHandler(int timeoutSec, ReplyPacketHandler handler) {
-		this.timeoutDate = new Date(Instant.now().toEpochMilli() + (timeoutSec * 1000));
+		this(new Date(Instant.now().toEpochMilli() + (timeoutSec * 1000)), handler);
+	}
+	/**
+	 * Defines a new packet reply handler with a specific timeout date
+	 * @param timeoutDate The date after which the handler is called with a timed out status
+	 * @param handler The handler
+	 * @since 1.2
+	 */
+	public PacketReplyHandler(Date timeoutDate, ReplyPacketHandler handler) {
+		this.timeoutDate = timeoutDate;
 		this.handler = handler;
+		this.statusHandler = (pkt, status) -> handler.handle(pkt, status != STATUS_REPLIED);
+	}
+	// Creates a handler that receives the reply status
+	private PacketReplyHandler(Date timeoutDate, ReplyStatusHandler statusHandler) {
+		this.timeoutDate = timeoutDate;
+		this.handler = (pkt, timedOut) -> statusHandler.handle(pkt, timedOut ? STATUS_TIMED_OUT : STATUS_REPLIED);
+		this.statusHandler = statusHandler;
+	}
+	
+	/**
+	 * Defines a new packet reply handler that is told whether the reply was received, timed out, or lost with its connection
+	 * @param timeoutSec The time in seconds before the handler is called with STATUS_TIMED_OUT
+	 * @param handler The handler
+	 * @return The packet reply handler
+	 * @since 1.2
+	 */
+	public static PacketReplyHandler withStatus(int timeoutSec, ReplyStatusHandler handler) {
+		return withStatus(new Date(Instant.now().toEpochMilli() + (timeoutSec * 1000)), handler);
+	}
+	/**
+	 * Defines a new packet reply handler with a specific timeout date that is told whether the reply was received, timed out, or lost with its connection
+	 * @param timeoutDate The date after which the handler is called with STATUS_TIMED_OUT
+	 * @param handler The handler
+	 * @return The packet reply handler
+	 * @since 1.2
+	 */
+	public static PacketReplyHandler withStatus(Date timeoutDate, ReplyStatusHandler handler) {
+		return new PacketReplyHandler(timeoutDate, handler);
+	}
+	
+	/**
+	 * Executes this handler
+	 * @param packet The reply, or null if none was received
+	 * @param status The status, one of the STATUS_ values
+	 * @since 1.2
+	 */
+	public void handle(Packet packet, int status) {
+		statusHandler.handle(packet, status);
 	}
-}
\ No newline at end of file
+}
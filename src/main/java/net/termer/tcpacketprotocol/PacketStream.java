@@ -0,0 +1,230 @@
+package net.termer.tcpacketprotocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * InputStream of a packet body that is being received as a sequence of chunks.
+ * Chunks are buffered as they arrive, so the body never needs to be held in memory all at once.
+ * Feeding chunks never waits, so a slow reader can't stop the connection from reading other packets.
+ * Instead, if the reader falls behind by more than the buffer size, the stream is aborted and reading it throws an IOException.
+ * @author termer
+ * @since 1.2
+ */
+public class PacketStream extends InputStream {
+	/**
+	 * The default max amount of bytes buffered before the stream is aborted
+	 * @since 1.2
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	
+	// Marker placed in the queue once the stream has ended
+	private static final byte[] END = new byte[0];
+	
+	// Type of the streamed packet
+	private final short _type;
+	// ID of the streamed packet
+	private final int _id;
+	// Socket this stream came from
+	private final Socket _source;
+	// Max amount of bytes that may be buffered
+	private final int _bufferSize;
+	
+	// Received chunks
+	private final LinkedBlockingQueue<byte[]> _chunks = new LinkedBlockingQueue<byte[]>();
+	// Amount of bytes buffered and not yet taken by the reader
+	private final AtomicInteger _buffered = new AtomicInteger(0);
+	// The chunk currently being read and the position in it
+	private byte[] _current = null;
+	private int _pos = 0;
+	
+	// Whether this stream was closed by its reader
+	private volatile boolean _closed = false;
+	// The error that ended this stream, if any
+	private volatile IOException _failure = null;
+	// Whether this stream was aborted because its reader fell behind
+	private volatile boolean _aborted = false;
+	
+	/**
+	 * Creates a new PacketStream with the default buffer size
+	 * @param type The type of the streamed packet
+	 * @param id The ID of the streamed packet
+	 * @param source The Socket this stream came from (may be null)
+	 * @since 1.2
+	 */
+	public PacketStream(short type, int id, Socket source) {
+		this(type, id, source, DEFAULT_BUFFER_SIZE);
+	}
+	/**
+	 * Creates a new PacketStream
+	 * @param type The type of the streamed packet
+	 * @param id The ID of the streamed packet
+	 * @param source The Socket this stream came from (may be null)
+	 * @param bufferSize The max amount of bytes buffered before the stream is aborted
+	 * @since 1.2
+	 */
+	public PacketStream(short type, int id, Socket source, int bufferSize) {
+		_type = type;
+		_id = id;
+		_source = source;
+		_bufferSize = bufferSize;
+	}
+	
+	/**
+	 * Returns the type of the streamed packet
+	 * @return The type of the streamed packet
+	 * @since 1.2
+	 */
+	public int type() {
+		return _type;
+	}
+	
+	/**
+	 * Returns the ID of the streamed packet
+	 * @return The ID of the streamed packet
+	 * @since 1.2
+	 */
+	public int id() {
+		return _id;
+	}
+	
+	/**
+	 * Returns the socket this stream came from (may be null)
+	 * @return The socket this stream came from
+	 * @since 1.2
+	 */
+	public Socket source() {
+		return _source;
+	}
+	
+	/**
+	 * Returns a ReadableByteChannel that reads from this stream
+	 * @return A channel for this stream
+	 * @since 1.2
+	 */
+	public ReadableByteChannel channel() {
+		return Channels.newChannel(this);
+	}
+	
+	/**
+	 * Returns whether this stream was aborted because its reader fell too far behind
+	 * @return Whether this stream was aborted
+	 * @since 1.2
+	 */
+	public boolean isAborted() {
+		return _aborted;
+	}
+	
+	/**
+	 * Appends a received chunk to this stream without waiting.
+	 * If the chunk doesn't fit in the buffer, the buffered chunks are dropped and the stream is aborted, and chunks fed after that are ignored.
+	 * @param chunk The chunk's bytes
+	 * @return This, to be used fluently
+	 * @throws IOException If this chunk caused the stream to be aborted
+	 * @since 1.2
+	 */
+	public PacketStream feed(byte[] chunk) throws IOException {
+		if(_closed || _aborted || chunk.length < 1)
+			return this;
+		
+		if(_buffered.addAndGet(chunk.length) > _bufferSize) {
+			IOException failure = new IOException("Stream "+_id+" was aborted because its reader fell more than "+_bufferSize+" bytes behind");
+			_aborted = true;
+			_chunks.clear();
+			fail(failure);
+			throw failure;
+		}
+		
+		_chunks.add(chunk);
+		return this;
+	}
+	/**
+	 * Marks this stream as finished, causing reads to return -1 after all buffered chunks have been read
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public PacketStream end() {
+		_chunks.add(END);
+		return this;
+	}
+	/**
+	 * Marks this stream as failed, causing reads to throw the provided exception after all buffered chunks have been read
+	 * @param failure The reason the stream failed
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public PacketStream fail(IOException failure) {
+		_failure = failure;
+		_chunks.add(END);
+		return this;
+	}
+	
+	// Moves to the next chunk if the current one has been read, returns false when the stream is finished
+	private boolean nextChunk() throws IOException {
+		while(_current == null || _pos >= _current.length) {
+			if(_current == END)
+				break;
+			if(_closed)
+				throw new IOException("Stream closed");
+			
+			try {
+				_current = _chunks.take();
+				_pos = 0;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for chunk");
+			}
+			
+			if(_current != END)
+				_buffered.addAndGet(-_current.length);
+		}
+		
+		if(_current == END) {
+			if(_failure != null)
+				throw _failure;
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(!nextChunk())
+			return -1;
+		
+		return _current[_pos++] & 0xFF;
+	}
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len < 1)
+			return 0;
+		if(!nextChunk())
+			return -1;
+		
+		int count = Math.min(len, _current.length - _pos);
+		System.arraycopy(_current, _pos, b, off, count);
+		_pos += count;
+		
+		return count;
+	}
+	@Override
+	public int available() {
+		return _current == null || _current == END ? 0 : _current.length - _pos;
+	}
+	/**
+	 * Closes this stream and discards any remaining chunks
+	 * @since 1.2
+	 */
+	@Override
+	public void close() {
+		_closed = true;
+		_chunks.clear();
+	}
+
+}
\ No newline at end of file
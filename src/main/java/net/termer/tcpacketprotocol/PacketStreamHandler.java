@@ -0,0 +1,10 @@
+package net.termer.tcpacketprotocol;
+
+/**
+ * Interface for handling streamed packets
+ * @author termer
+ * @since 1.2
+ */
+public interface PacketStreamHandler {
+	public void handle(PacketStream stream);
+}
\ No newline at end of file
@@ -0,0 +1,490 @@
+package net.termer.tcpacketprotocol;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.termer.tcpacketprotocol.util.IntGenerator;
+
+/**
+ * Writes packets to a connection from its own thread.
+ * Packets are queued by priority, and higher priority queues are always written first.
+ * Within a priority, packets and each streamed packet are queued separately, and queues are written using weighted fair queuing (deficit round robin),
+ * so large streamed packets share the connection with normal packets instead of blocking them.
+ * @author termer
+ * @since 1.2
+ */
+public class PacketWriter implements AutoCloseable {
+	// Amount of bytes a queue may write per round for each point of weight
+	private static final int QUANTUM = 4096;
+	// Max amount of frames that can be queued in a single queue before writes wait
+	private static final int MAX_QUEUED_FRAMES = 64;
+	// Max time in milliseconds to wait for queued frames to be written when closing
+	private static final long CLOSE_TIMEOUT = 1000;
+	
+	/**
+	 * The default weight of normal packets
+	 * @since 1.2
+	 */
+	public static final int DEFAULT_PACKET_WEIGHT = 8;
+	/**
+	 * The default weight of streamed packets
+	 * @since 1.2
+	 */
+	public static final int DEFAULT_STREAM_WEIGHT = 1;
+	
+	// Max size in bytes of the buffers that batched frames are joined into, which is the amount a normal packet queue writes per round
+	private static final int BATCH_BUFFER_SIZE = QUANTUM * DEFAULT_PACKET_WEIGHT;
+	
+	// Queue of frames waiting to be written
+	private class FrameQueue {
+		final int priority;
+		final int weight;
+		final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+		int deficit = 0;
+		
+		FrameQueue(int priority, int weight) {
+			this.priority = priority;
+			this.weight = weight;
+		}
+	}
+	
+	// The stream to write to
+	private final OutputStream _out;
+	// The codec used to encode packets
+	private volatile PacketCodec _codec;
+	// Handler for write errors
+	private final ExceptionHandler _errorHandler;
+	
+	// Lock held while packets are encoded and queued, so the codec can't be switched in between
+	private final ReentrantReadWriteLock _codecLock = new ReentrantReadWriteLock();
+	// Lock for queues and conditions for when frames are available or queue space is freed
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	private final Condition _space = _lock.newCondition();
+	
+	// Queues for normal packets, indexed by priority
+	private final FrameQueue[] _packets = new FrameQueue[Packet.PRIORITY_HIGH + 1];
+	// Queues for streamed packets
+	private final HashMap<Integer, FrameQueue> _streams = new HashMap<Integer, FrameQueue>();
+	// Queues that have frames to write in round robin order, indexed by priority
+	private final ArrayList<ArrayDeque<FrameQueue>> _active = new ArrayList<ArrayDeque<FrameQueue>>();
+	
+	// Whether this writer is closed
+	private volatile boolean _closed = false;
+	// The error that stopped this writer, if any
+	private volatile IOException _failure = null;
+	// Whether frames are currently being written
+	private volatile boolean _writing = false;
+	// The last time in milliseconds that frames were written
+	private volatile long _lastWrite = System.currentTimeMillis();
+	// The last time in milliseconds that frames were queued while nothing was waiting to be written
+	private volatile long _busySince = _lastWrite;
+	
+	// The writer thread
+	private final Thread _thread;
+	
+	/**
+	 * Creates a new PacketWriter and starts its thread.
+	 * Packets are written in the original frame format, with compressed bodies and streamed packets enabled.
+	 * @param out The OutputStream to write to
+	 * @param compressionThreshold The minimum body size in bytes to compress, or -1 to never compress
+	 * @param errorHandler The handler to call if writing fails (may be null)
+	 * @param threadName The name of the writer thread
+	 * @since 1.2
+	 */
+	public PacketWriter(OutputStream out, int compressionThreshold, ExceptionHandler errorHandler, String threadName) {
+		this(out, originalCodec(compressionThreshold), errorHandler, threadName);
+	}
+	/**
+	 * Creates a new PacketWriter and starts its thread
+	 * @param out The OutputStream to write to
+	 * @param codec The codec to encode packets with
+	 * @param errorHandler The handler to call if writing fails (may be null)
+	 * @param threadName The name of the writer thread
+	 * @since 1.2
+	 */
+	public PacketWriter(OutputStream out, PacketCodec codec, ExceptionHandler errorHandler, String threadName) {
+		_out = new BufferedOutputStream(out, 8192);
+		_codec = codec;
+		_errorHandler = errorHandler;
+		
+		for(int i = 0; i < _packets.length; i++) {
+			_packets[i] = new FrameQueue(i, DEFAULT_PACKET_WEIGHT);
+			_active.add(new ArrayDeque<FrameQueue>());
+		}
+		
+		_thread = new Thread(this::run);
+		_thread.setName(threadName);
+		_thread.start();
+	}
+	
+	// Returns a codec that uses the original frame format with compression and streaming, which a base codec only uses once negotiated
+	private static PacketCodec originalCodec(int compressionThreshold) {
+		PacketCodec codec = new PacketCodec(PacketCodec.FEATURE_COMPRESSION | PacketCodec.FEATURE_STREAMING, compressionThreshold, Integer.MAX_VALUE);
+		try {
+			return codec.negotiate(codec.hello(Packet.CONTROL_HELLO));
+		} catch(MalformedPacketException e) {
+			// A codec's own handshake is always valid
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Returns whether this writer is closed
+	 * @return Whether this writer is closed
+	 * @since 1.2
+	 */
+	public boolean isClosed() {
+		return _closed;
+	}
+	
+	/**
+	 * Returns the codec this writer encodes packets with
+	 * @return This writer's codec
+	 * @since 1.2
+	 */
+	public PacketCodec codec() {
+		return _codec;
+	}
+	/**
+	 * Queues a packet using the current codec, then switches to a new codec for all packets queued after it.
+	 * Used to send a handshake in the encoding the other side currently expects, and everything after it in the negotiated encoding.
+	 * @param packet The last packet to encode with the current codec
+	 * @param codec The codec to use after it
+	 * @return This, to be used fluently
+	 * @throws IOException If this writer is closed, or the packet cannot be encoded
+	 * @since 1.2
+	 */
+	public PacketWriter switchCodec(Packet packet, PacketCodec codec) throws IOException {
+		_codecLock.writeLock().lock();
+		try {
+			enqueue(_packets[packet.priority()], _codec.encode(packet));
+			_codec = codec;
+		} finally {
+			_codecLock.writeLock().unlock();
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Returns the time in milliseconds since this writer last wrote anything, or 0 if it has frames waiting to be written
+	 * @return The time this writer has been idle
+	 * @since 1.2
+	 */
+	public long idleTime() {
+		return stalledTime() > 0 ? 0 : System.currentTimeMillis() - _lastWrite;
+	}
+	
+	/**
+	 * Returns the time in milliseconds that frames have been waiting to be written without any progress, or 0 if it has none waiting
+	 * @return The time this writer has been stalled
+	 * @since 1.2
+	 */
+	public long stalledTime() {
+		_lock.lock();
+		try {
+			if(!_writing && !hasFrames())
+				return 0;
+		} finally {
+			_lock.unlock();
+		}
+		
+		// Measure from the last progress, or from when the writer stopped being idle if that was later
+		return Math.max(1, System.currentTimeMillis() - Math.max(_lastWrite, _busySince));
+	}
+	
+	/**
+	 * Queues a packet to be written after all queued packets of a higher priority
+	 * @param packet The packet to write
+	 * @return This, to be used fluently
+	 * @throws IOException If this writer is closed, or the packet cannot be encoded
+	 * @since 1.2
+	 */
+	public PacketWriter write(Packet packet) throws IOException {
+		_codecLock.readLock().lock();
+		try {
+			enqueue(_packets[packet.priority()], _codec.encode(packet));
+		} finally {
+			_codecLock.readLock().unlock();
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Queues a batch of packets to be written, in the same order as they are in the collection within each priority.
+	 * The frames are encoded ahead of time and joined into contiguous buffers, which are all queued at once,
+	 * so the batch is written to the connection in as few writes as possible instead of one write per packet.
+	 * @param packets The packets to write
+	 * @return This, to be used fluently
+	 * @throws IOException If this writer is closed, or a packet cannot be encoded
+	 * @since 1.2
+	 */
+	public PacketWriter writeAll(Collection<Packet> packets) throws IOException {
+		_codecLock.readLock().lock();
+		try {
+			// Join frames of each priority into buffers, starting a new buffer when one would get too large
+			ArrayList<ArrayList<byte[]>> buffers = new ArrayList<ArrayList<byte[]>>();
+			ByteArrayOutputStream[] current = new ByteArrayOutputStream[_packets.length];
+			for(int i = 0; i < _packets.length; i++)
+				buffers.add(new ArrayList<byte[]>());
+			
+			for(Packet packet : packets) {
+				int priority = packet.priority();
+				byte[] frame = _codec.encode(packet);
+				
+				ByteArrayOutputStream buf = current[priority];
+				if(buf != null && buf.size() + frame.length > BATCH_BUFFER_SIZE) {
+					buffers.get(priority).add(buf.toByteArray());
+					buf = null;
+				}
+				if(buf == null)
+					buf = current[priority] = new ByteArrayOutputStream(Math.min(BATCH_BUFFER_SIZE, Math.max(frame.length, 512)));
+				
+				buf.write(frame, 0, frame.length);
+			}
+			for(int i = 0; i < current.length; i++)
+				if(current[i] != null)
+					buffers.get(i).add(current[i].toByteArray());
+			
+			// Queue everything in one go, highest priority first
+			_lock.lock();
+			try {
+				for(int i = buffers.size() - 1; i >= 0; i--)
+					for(byte[] buf : buffers.get(i))
+						add(_packets[i], buf);
+			} finally {
+				_lock.unlock();
+			}
+		} finally {
+			_codecLock.readLock().unlock();
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Writes the contents of an InputStream as a streamed packet.
+	 * The data is split into chunks which are queued separately from other packets and streams, and interleaved with normal priority packets and other streams based on the stream's weight.
+	 * Returns once all chunks have been queued.
+	 * @param type The type of the streamed packet
+	 * @param data The data to send
+	 * @param chunkSize The max amount of bytes per chunk
+	 * @param weight The stream's weight relative to other streams and normal packets
+	 * @return The ID of the streamed packet
+	 * @throws IOException If reading the data fails, or this writer is closed
+	 * @since 1.2
+	 */
+	public int writeStream(short type, InputStream data, int chunkSize, int weight) throws IOException {
+		int id = IntGenerator.nextInt();
+		FrameQueue queue = new FrameQueue(Packet.PRIORITY_NORMAL, Math.max(1, weight));
+		
+		_lock.lock();
+		try {
+			_streams.put(id, queue);
+		} finally {
+			_lock.unlock();
+		}
+		
+		try {
+			byte[] buf = new byte[chunkSize];
+			while(true) {
+				// Fill the buffer as much as possible
+				int len = 0;
+				int read = 0;
+				while(len < buf.length && (read = data.read(buf, len, buf.length - len)) > -1)
+					len += read;
+				
+				// A chunk that isn't full can only mean the data ended
+				boolean last = len < buf.length;
+				byte[] chunk = new byte[len];
+				System.arraycopy(buf, 0, chunk, 0, len);
+				
+				_codecLock.readLock().lock();
+				try {
+					enqueue(queue, _codec.encode(new Packet(type)
+							.body(chunk)
+							.setStreamChunk(id, last)));
+				} finally {
+					_codecLock.readLock().unlock();
+				}
+				
+				if(last)
+					return id;
+			}
+		} finally {
+			_lock.lock();
+			try {
+				_streams.remove(id);
+			} finally {
+				_lock.unlock();
+			}
+		}
+	}
+	
+	// Adds a frame to a queue, waiting if the queue is full
+	private void enqueue(FrameQueue queue, byte[] frame) throws IOException {
+		_lock.lock();
+		try {
+			add(queue, frame);
+		} finally {
+			_lock.unlock();
+		}
+	}
+	// Adds a frame to a queue while holding the lock, waiting if the queue is full
+	private void add(FrameQueue queue, byte[] frame) throws IOException {
+		while(!_closed && queue.frames.size() >= MAX_QUEUED_FRAMES)
+			_space.awaitUninterruptibly();
+		if(_closed)
+			throw _failure == null ? new IOException("Connection closed") : _failure;
+		
+		if(!_writing && !hasFrames())
+			_busySince = System.currentTimeMillis();
+		if(queue.frames.isEmpty())
+			_active.get(queue.priority).add(queue);
+		queue.frames.add(frame);
+		
+		_available.signal();
+	}
+	
+	// Returns whether any queue has frames to write
+	private boolean hasFrames() {
+		for(ArrayDeque<FrameQueue> active : _active)
+			if(!active.isEmpty())
+				return true;
+		
+		return false;
+	}
+	
+	// Takes the next frames to write from the highest priority with frames according to its round robin order, or returns false if there are none
+	private boolean takeFrames(ArrayList<byte[]> batch) {
+		ArrayDeque<FrameQueue> active = null;
+		for(int i = _active.size() - 1; i >= 0 && active == null; i--)
+			if(!_active.get(i).isEmpty())
+				active = _active.get(i);
+		if(active == null)
+			return false;
+		
+		FrameQueue queue = active.poll();
+		
+		queue.deficit += QUANTUM * queue.weight;
+		while(!queue.frames.isEmpty() && queue.frames.peek().length <= queue.deficit) {
+			byte[] frame = queue.frames.poll();
+			queue.deficit -= frame.length;
+			batch.add(frame);
+		}
+		
+		// Go to the back of the line if there's still more to write, otherwise unused deficit is lost
+		if(queue.frames.isEmpty())
+			queue.deficit = 0;
+		else
+			active.add(queue);
+		
+		_space.signalAll();
+		return true;
+	}
+	
+	// The writer loop
+	private void run() {
+		ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		boolean flushed = true;
+		
+		try {
+			while(true) {
+				_lock.lock();
+				try {
+					// Wait for frames, flushing first if idle
+					if(!takeFrames(batch)) {
+						if(flushed) {
+							while(!hasFrames() && !_closed)
+								_available.await();
+							if(!hasFrames())
+								break;
+							takeFrames(batch);
+						}
+					}
+					_writing = true;
+				} finally {
+					_lock.unlock();
+				}
+				
+				if(batch.isEmpty()) {
+					_out.flush();
+					flushed = true;
+				} else {
+					for(byte[] frame : batch)
+						_out.write(frame);
+					batch.clear();
+					flushed = false;
+				}
+				
+				_lastWrite = System.currentTimeMillis();
+				_writing = false;
+			}
+			
+			_out.flush();
+		} catch(IOException e) {
+			fail(e);
+			
+			if(_errorHandler != null)
+				_errorHandler.handle(e);
+		} catch(InterruptedException e) {
+			fail(new IOException("Writer interrupted"));
+		}
+	}
+	
+	// Stops the writer and drops all queued frames
+	private void fail(IOException failure) {
+		_lock.lock();
+		try {
+			_failure = failure;
+			_closed = true;
+			for(ArrayDeque<FrameQueue> active : _active)
+				active.clear();
+			for(FrameQueue queue : _packets)
+				queue.frames.clear();
+			for(FrameQueue queue : _streams.values())
+				queue.frames.clear();
+			
+			_space.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Closes this writer, waiting a short time for already queued frames to be written.
+	 * Does not close the underlying OutputStream.
+	 * @since 1.2
+	 */
+	public void close() {
+		_lock.lock();
+		try {
+			_closed = true;
+			_available.signal();
+			_space.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+		
+		// Wait for queued frames to be written
+		if(Thread.currentThread() != _thread) {
+			try {
+				_thread.join(CLOSE_TIMEOUT);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
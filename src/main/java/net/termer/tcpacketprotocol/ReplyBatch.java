@@ -0,0 +1,66 @@
+package net.termer.tcpacketprotocol;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the replies to a batch of packets into a single future.
+ * The future completes once every packet in the batch has received a reply, or fails as soon as any of them times out or has its connection lost,
+ * with a TimeoutException or ConnectionLostException respectively.
+ * @author termer
+ * @since 1.2
+ */
+public class ReplyBatch {
+	// The replies, in the same order as the packets they are for
+	private final Packet[] _replies;
+	// Amount of replies still missing
+	private final AtomicInteger _remaining;
+	// The future to complete
+	private final CompletableFuture<Packet[]> _future = new CompletableFuture<Packet[]>();
+	
+	/**
+	 * Creates a new ReplyBatch
+	 * @param size The amount of packets in the batch
+	 * @since 1.2
+	 */
+	public ReplyBatch(int size) {
+		_replies = new Packet[size];
+		_remaining = new AtomicInteger(size);
+		
+		if(size < 1)
+			_future.complete(_replies);
+	}
+	
+	/**
+	 * Returns the handler for the reply to the packet at the specified position in the batch
+	 * @param index The packet's position in the batch
+	 * @return The reply handler
+	 * @since 1.2
+	 */
+	public ReplyStatusHandler handler(int index) {
+		return (pkt, status) -> {
+			if(status == PacketReplyHandler.STATUS_TIMED_OUT) {
+				_future.completeExceptionally(new TimeoutException("Timed out waiting for reply to packet "+index+" of batch"));
+			} else if(status == PacketReplyHandler.STATUS_CONNECTION_LOST) {
+				_future.completeExceptionally(new ConnectionLostException("Connection lost while waiting for reply to packet "+index+" of batch"));
+			} else if(status == PacketReplyHandler.STATUS_CANCELLED) {
+				_future.completeExceptionally(new CancellationException("Reply to packet "+index+" of batch was cancelled"));
+			} else {
+				_replies[index] = pkt;
+				if(_remaining.decrementAndGet() == 0)
+					_future.complete(_replies);
+			}
+		};
+	}
+	
+	/**
+	 * Returns the future that completes with the replies, in the same order as the packets they are for
+	 * @return The future for the batch's replies
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> future() {
+		return _future;
+	}
+}
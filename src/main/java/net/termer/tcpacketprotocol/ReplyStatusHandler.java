@@ -0,0 +1,16 @@
+package net.termer.tcpacketprotocol;
+
+/**
+ * Interface for handling packet replies along with how waiting for them ended
+ * @author termer
+ * @since 1.2
+ */
+public interface ReplyStatusHandler {
+	/**
+	 * Handles a reply, or the lack of one
+	 * @param packet The reply, or null if none was received
+	 * @param status The status, one of the PacketReplyHandler.STATUS_ values
+	 * @since 1.2
+	 */
+	public void handle(Packet packet, int status);
+}
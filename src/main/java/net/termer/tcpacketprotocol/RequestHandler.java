@@ -0,0 +1,18 @@
+package net.termer.tcpacketprotocol;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Interface for handling packets expecting a reply, by returning the reply asynchronously
+ * @author termer
+ * @since 1.2
+ */
+public interface RequestHandler {
+	/**
+	 * Handles a request
+	 * @param request The packet expecting a reply
+	 * @return A stage that completes with the reply, or with null to not reply
+	 * @since 1.2
+	 */
+	public CompletionStage<Packet> handle(Packet request);
+}
@@ -0,0 +1,47 @@
+package net.termer.tcpacketprotocol;
+
+/**
+ * Exception passed to exception handlers when a handler has been running for longer than the slow handler threshold.
+ * Its stack trace is the stack of the handler's thread at the time it was reported, showing what the handler was doing.
+ * @author termer
+ * @since 1.2
+ */
+public class SlowHandlerException extends Exception {
+	private static final long serialVersionUID = 1L;
+	
+	// The slow handler
+	private final transient Object _handler;
+	// How long the handler had been running when it was reported
+	private final long _elapsed;
+
+	/**
+	 * Creates a new SlowHandlerException, capturing the current stack of the handler's thread
+	 * @param handler The slow handler
+	 * @param elapsed How long in milliseconds the handler has been running
+	 * @param thread The thread the handler is running on
+	 * @since 1.2
+	 */
+	public SlowHandlerException(Object handler, long elapsed, Thread thread) {
+		super("Handler "+handler.getClass().getName()+" has been running for "+elapsed+"ms on thread "+thread.getName());
+		_handler = handler;
+		_elapsed = elapsed;
+		setStackTrace(thread.getStackTrace());
+	}
+	
+	/**
+	 * Returns the slow handler
+	 * @return The slow handler
+	 * @since 1.2
+	 */
+	public Object handler() {
+		return _handler;
+	}
+	/**
+	 * Returns how long in milliseconds the handler had been running when it was reported
+	 * @return How long the handler had been running
+	 * @since 1.2
+	 */
+	public long elapsed() {
+		return _elapsed;
+	}
+}
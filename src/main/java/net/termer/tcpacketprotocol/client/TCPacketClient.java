@@ -1,23 +1,46 @@
 package net.termer.tcpacketprotocol.client;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.InputStream;
 import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.net.SocketTimeoutException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.termer.tcpacketprotocol.ExceptionHandler;
+import net.termer.tcpacketprotocol.MalformedPacketException;
 import net.termer.tcpacketprotocol.Packet;
+import net.termer.tcpacketprotocol.PacketCodec;
 import net.termer.tcpacketprotocol.PacketHandler;
 import net.termer.tcpacketprotocol.PacketReplyHandler;
+import net.termer.tcpacketprotocol.PacketStream;
+import net.termer.tcpacketprotocol.PacketStreamHandler;
+import net.termer.tcpacketprotocol.PacketWriter;
+import net.termer.tcpacketprotocol.ReplyBatch;
 import net.termer.tcpacketprotocol.ReplyPacketHandler;
+import net.termer.tcpacketprotocol.ReplyStatusHandler;
+import net.termer.tcpacketprotocol.transport.TcpTransport;
+import net.termer.tcpacketprotocol.transport.TlsTransport;
+import net.termer.tcpacketprotocol.transport.Transport;
+import net.termer.tcpacketprotocol.transport.TransportConnection;
+import net.termer.tcpacketprotocol.util.Streams;
 
 /**
  * Client for TCPacketProtocol servers
@@ -25,8 +48,18 @@ import net.termer.tcpacketprotocol.ReplyPacketHandler;
  * @since 1.0
  */
 public class TCPacketClient implements AutoCloseable {
-	// The Socket to use for I/O
-	private Socket _socket = null;
+	// The connection to use for I/O
+	private volatile TransportConnection _conn = null;
+	// Writer for outgoing packets
+	private PacketWriter _writer = null;
+	// Whether the client is currently connected
+	private AtomicBoolean _connected = new AtomicBoolean(false);
+	// Whether the client is being closed
+	private volatile boolean _closing = false;
+	// Whether the server said it's shutting down
+	private volatile boolean _goingAway = false;
+	// Lock used to wait between reconnect attempts
+	private final Object _reconnectLock = new Object();
 	
 	// Client settings
 	private TCPacketClientSettings _settings = new TCPacketClientSettings();
@@ -36,9 +69,17 @@ public class TCPacketClient implements AutoCloseable {
 	
 	// Handlers for replies
 	private ConcurrentHashMap<Integer, PacketReplyHandler> _replyHandlers = new ConcurrentHashMap<Integer, PacketReplyHandler>();
+	// Amount of packets sent by this client that are still waiting for a reply
+	private AtomicInteger _outstanding = new AtomicInteger(0);
+	// Amount of received frames that were larger than the max packet body size
+	private AtomicLong _oversized = new AtomicLong(0);
+	// Packets sent by this client that are still waiting for a reply
+	private ConcurrentHashMap<Integer, Packet> _pending = new ConcurrentHashMap<Integer, Packet>();
 	
 	// Packet handlers
 	private CopyOnWriteArrayList<PacketHandler> _packetHandlers = new CopyOnWriteArrayList<PacketHandler>();
+	// Stream handlers
+	private CopyOnWriteArrayList<PacketStreamHandler> _streamHandlers = new CopyOnWriteArrayList<PacketStreamHandler>();
 	// Exception handlers
 	private CopyOnWriteArrayList<ExceptionHandler> _exceptionHandlers = new CopyOnWriteArrayList<ExceptionHandler>();
 	// Connect handlers
@@ -92,21 +133,78 @@ public class TCPacketClient implements AutoCloseable {
 	}
 	
 	/**
-	 * Returns this client's Socket
+	 * Returns this client's Socket, or null if the client's transport does not use sockets
 	 * @return This client's Socket
 	 * @since 1.0
 	 */
 	public Socket socket() {
-		return _socket;
+		TransportConnection conn = _conn;
+		return conn == null ? null : conn.socket();
 	}
 	
 	/**
-	 * Returns whether this client is closed
+	 * Returns this client's transport connection
+	 * @return This client's transport connection
+	 * @since 1.2
+	 */
+	public TransportConnection connection() {
+		return _conn;
+	}
+	
+	/**
+	 * Returns this client's packet writer
+	 * @return This client's packet writer
+	 * @since 1.2
+	 */
+	public PacketWriter writer() {
+		return _writer;
+	}
+	
+	/**
+	 * Returns the amount of packets sent by this client that are still waiting for a reply or timeout
+	 * @return The amount of outstanding replies
+	 * @since 1.2
+	 */
+	public int outstandingReplies() {
+		return _outstanding.get();
+	}
+	
+	/**
+	 * Returns the amount of frames received since this client was created that were larger than the max packet body size, and were skipped or caused the connection to be closed
+	 * @return The amount of oversized frames
+	 * @since 1.2
+	 */
+	public long oversizedFrames() {
+		return _oversized.get();
+	}
+	
+	/**
+	 * Returns whether this client is closed.
+	 * A client that is waiting to reconnect is considered closed.
 	 * @return Whether this client is closed
 	 * @since 1.0
 	 */
 	public boolean isClosed() {
-		return _socket == null ? true : _socket.isClosed();
+		return _conn == null ? true : _conn.isClosed();
+	}
+	
+	/**
+	 * Returns whether this client lost its connection and is trying to reconnect
+	 * @return Whether this client is reconnecting
+	 * @since 1.2
+	 */
+	public boolean isReconnecting() {
+		return !_closing && !_connected.get() && _conn != null && _settings.reconnect();
+	}
+	
+	/**
+	 * Returns whether the server this client is connected to sent a CONTROL_GOAWAY packet, meaning it is shutting down and new requests should be sent elsewhere.
+	 * Replies to requests that were already sent will still be received.
+	 * @return Whether the server is shutting down
+	 * @since 1.2
+	 */
+	public boolean isGoingAway() {
+		return _goingAway;
 	}
 	
 	/**
@@ -117,7 +215,7 @@ public class TCPacketClient implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public TCPacketClient send(Packet packet) throws IOException {
-		packet.sendTo(_socket.getOutputStream());
+		_writer.write(packet);
 		return this;
 	}
 	
@@ -132,12 +230,26 @@ public class TCPacketClient implements AutoCloseable {
 	public TCPacketClient send(Packet packet, PacketReplyHandler replyHandler) throws IOException {
 		// Set expecting reply before assigning handler so ID is generated
 		packet.expectingReply(true);
+		if(packet.deadline() == 0)
+			packet.deadline(replyHandler.timeoutDate.getTime());
 		
-		// Register handler
-		replyHandler(packet.id(), replyHandler);
+		// Register handler, keeping track of the packet until it's resolved
+		_outstanding.incrementAndGet();
+		_pending.put(packet.id(), packet);
+		PacketReplyHandler hdlr = PacketReplyHandler.withStatus(replyHandler.timeoutDate, (pkt, status) -> {
+			_outstanding.decrementAndGet();
+			_pending.remove(packet.id());
+			replyHandler.handle(pkt, status);
+		});
+		replyHandler(packet.id(), hdlr);
 		
-		// Send packet
-		packet.sendTo(_socket.getOutputStream());
+		// Send packet, not leaving the handler behind if it can't be sent
+		try {
+			_writer.write(packet);
+		} catch(IOException e) {
+			unregister(packet.id(), hdlr);
+			throw e;
+		}
 		return this;
 	}
 	/**
@@ -154,6 +266,102 @@ public class TCPacketClient implements AutoCloseable {
 		return this;
 	}
 	
+	/**
+	 * Sends a batch of packets.
+	 * The packets are encoded together and written in as few writes as possible.
+	 * @param packets The packets to send
+	 * @return This, to be used fluently
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public TCPacketClient sendAll(Collection<Packet> packets) throws IOException {
+		_writer.writeAll(packets);
+		return this;
+	}
+	/**
+	 * Sends a batch of packets and returns a future that completes once all of them have been replied to.
+	 * The packets are encoded together and written in as few writes as possible, and their reply handlers are registered in one pass.
+	 * @param packets The packets to send
+	 * @param timeoutSec The time in seconds to wait for each reply before the future fails with a TimeoutException
+	 * @return A future for the replies, in the same order as the packets they are for, which fails with a ConnectionLostException as soon as the connection is lost
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> requestAll(Collection<Packet> packets, int timeoutSec) throws IOException {
+		ReplyBatch batch = new ReplyBatch(packets.size());
+		Date timeout = new Date(System.currentTimeMillis() + timeoutSec * 1000L);
+		
+		// Register handlers, keeping track of the packets until they're resolved
+		_outstanding.addAndGet(packets.size());
+		PacketReplyHandler[] hdlrs = new PacketReplyHandler[packets.size()];
+		int index = 0;
+		for(Packet packet : packets) {
+			// Set expecting reply before assigning handler so ID is generated
+			packet.expectingReply(true);
+			if(packet.deadline() == 0)
+				packet.deadline(timeout.getTime());
+			
+			ReplyStatusHandler handler = batch.handler(index);
+			_pending.put(packet.id(), packet);
+			hdlrs[index] = PacketReplyHandler.withStatus(timeout, (pkt, status) -> {
+				_outstanding.decrementAndGet();
+				_pending.remove(packet.id());
+				handler.handle(pkt, status);
+			});
+			replyHandler(packet.id(), hdlrs[index++]);
+		}
+		
+		// Send packets, not leaving the handlers behind if they can't be sent
+		try {
+			_writer.writeAll(packets);
+		} catch(IOException e) {
+			index = 0;
+			for(Packet packet : packets)
+				unregister(packet.id(), hdlrs[index++]);
+			throw e;
+		}
+		return batch.future();
+	}
+	/**
+	 * Sends a batch of packets and returns a future that completes once all of them have been replied to.
+	 * Uses the default 5 second timeout time for each reply.
+	 * @param packets The packets to send
+	 * @return A future for the replies, in the same order as the packets they are for
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> requestAll(Collection<Packet> packets) throws IOException {
+		return requestAll(packets, 5);
+	}
+	
+	/**
+	 * Sends the contents of an InputStream as a streamed packet.
+	 * The data is sent in chunks, so other packets can still be sent while it is being transferred.
+	 * Uses the default stream weight.
+	 * @param type The type of the streamed packet
+	 * @param data The data to send
+	 * @return This, to be used fluently
+	 * @throws IOException If reading the data or sending a chunk fails
+	 * @since 1.2
+	 */
+	public TCPacketClient sendStream(short type, InputStream data) throws IOException {
+		return sendStream(type, data, PacketWriter.DEFAULT_STREAM_WEIGHT);
+	}
+	/**
+	 * Sends the contents of an InputStream as a streamed packet.
+	 * The data is sent in chunks, which are interleaved with other packets and streams based on the stream's weight.
+	 * @param type The type of the streamed packet
+	 * @param data The data to send
+	 * @param weight The weight of the stream relative to other streams and normal packets
+	 * @return This, to be used fluently
+	 * @throws IOException If reading the data or sending a chunk fails
+	 * @since 1.2
+	 */
+	public TCPacketClient sendStream(short type, InputStream data, int weight) throws IOException {
+		_writer.writeStream(type, data, _settings.streamChunkSize(), weight);
+		return this;
+	}
+	
 	/**
 	 * Registers a new packet handler
 	 * @param handler The packet handler
@@ -164,6 +372,17 @@ public class TCPacketClient implements AutoCloseable {
 		_packetHandlers.add(handler);
 		return this;
 	}
+	/**
+	 * Registers a new streamed packet handler.
+	 * All handlers receive the same PacketStream, so usually only one should read from it.
+	 * @param handler The streamed packet handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClient streamHandler(PacketStreamHandler handler) {
+		_streamHandlers.add(handler);
+		return this;
+	}
 	/**
 	 * Registers a new packet reply handler
 	 * @param packetId The ID of the packet the reply will be for
@@ -174,6 +393,17 @@ public class TCPacketClient implements AutoCloseable {
 		_replyHandlers.put(packetId, handler);
 		return this;
 	}
+	/**
+	 * Makes this client store its reply handlers in the provided table, so clients can share a single table.
+	 * Must be called before connecting.
+	 * @param replyHandlers The reply handler table to use
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	TCPacketClient shareReplyHandlers(ConcurrentHashMap<Integer, PacketReplyHandler> replyHandlers) {
+		_replyHandlers = replyHandlers;
+		return this;
+	}
 	/**
 	 * Registers a new exception handler
 	 * @param handler The exception handler
@@ -220,6 +450,38 @@ public class TCPacketClient implements AutoCloseable {
 		
 		return this;
 	}
+	// Removes the reply handler of a packet that could not be sent, unless it was already resolved
+	private void unregister(int packetId, PacketReplyHandler hdlr) {
+		if(_replyHandlers.remove(packetId, hdlr)) {
+			_outstanding.decrementAndGet();
+			_pending.remove(packetId);
+		}
+	}
+	
+	/**
+	 * Stops waiting for the reply to a packet sent by this client, executing its handler with STATUS_CANCELLED.
+	 * A reply that arrives afterwards is ignored.
+	 * @param packetId The ID of the packet to stop waiting for a reply to
+	 * @return Whether the packet was still waiting for a reply
+	 * @since 1.2
+	 */
+	public boolean cancelReply(int packetId) {
+		// Only cancel packets sent by this client, since the table may be shared
+		if(!_pending.containsKey(packetId))
+			return false;
+		
+		PacketReplyHandler hdlr = _replyHandlers.remove(packetId);
+		if(hdlr == null)
+			return false;
+		
+		if(_settings.blockingHandlers())
+			hdlr.handle(null, PacketReplyHandler.STATUS_CANCELLED);
+		else
+			_execs.execute(() -> {
+				hdlr.handle(null, PacketReplyHandler.STATUS_CANCELLED);
+			});
+		return true;
+	}
 	/**
 	 * Triggers a packet reply event
 	 * @param packetId The ID of the packet this is a reply for
@@ -228,21 +490,35 @@ public class TCPacketClient implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public TCPacketClient triggerPacketReplyHandler(int packetId, Packet pkt) {
-		// Check if handler exists
-		if(_replyHandlers.containsKey(packetId)) {
-			PacketReplyHandler hdlr = _replyHandlers.get(packetId);
-			
+		// Remove the handler if it exists, so it can't also time out
+		PacketReplyHandler hdlr = _replyHandlers.remove(packetId);
+		if(hdlr != null) {
 			// Trigger event
 			if(_settings.blockingHandlers())
-				hdlr.handler.handle(pkt, false);
+				hdlr.handle(pkt, PacketReplyHandler.STATUS_REPLIED);
 			else
 				_execs.execute(() -> {
-					hdlr.handler.handle(pkt, false);
+					hdlr.handle(pkt, PacketReplyHandler.STATUS_REPLIED);
 				});
 		}
 		
 		return this;
 	}
+	/**
+	 * Triggers a streamed packet event.
+	 * Stream handlers are always executed in the handler pool, since they read from the connection's handler thread.
+	 * @param stream The streamed packet
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClient triggerStreamHandlers(PacketStream stream) {
+		for(PacketStreamHandler hdlr : _streamHandlers)
+			_execs.execute(() -> {
+				hdlr.handle(stream);
+			});
+		
+		return this;
+	}
 	/**
 	 * Triggers an exception event
 	 * @param exception The exception
@@ -296,6 +572,27 @@ public class TCPacketClient implements AutoCloseable {
 		return this;
 	}
 	
+	// Feeds a stream chunk to its stream, creating the stream and firing stream handlers if it's new.
+	// Throws if the stream had to be aborted because its reader fell behind, which only affects that stream.
+	private void feedStream(Packet chunk, HashMap<Integer, PacketStream> streams) throws IOException {
+		PacketStream stream = streams.get(chunk.id());
+		if(stream == null) {
+			// Don't bother buffering streams if nothing will handle them
+			if(_streamHandlers.isEmpty())
+				return;
+			
+			stream = new PacketStream((short) chunk.type(), chunk.id(), chunk.source(), _settings.streamBufferSize());
+			streams.put(chunk.id(), stream);
+			triggerStreamHandlers(stream);
+		}
+		
+		stream.feed(chunk.body());
+		if(chunk.isLastChunk()) {
+			streams.remove(chunk.id());
+			stream.end();
+		}
+	}
+	
 	/**
 	 * Connects to the server
 	 * @throws IOException If connection fails
@@ -303,8 +600,7 @@ public class TCPacketClient implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public TCPacketClient connect() throws IOException {
-		// Connect
-		_socket = new Socket(InetAddress.getByName(_settings.address()), _settings.port());
+		_closing = false;
 		
 		// Setup event executor thread pool
 		_execs = Executors.newFixedThreadPool(_settings.packetHandlerPoolSize());
@@ -318,95 +614,338 @@ public class TCPacketClient implements AutoCloseable {
 				// Loop through handlers and remove if they've expired
 				for(int id: _replyHandlers.keySet()) {
 					PacketReplyHandler hdlr = _replyHandlers.get(id);
-					if(now.isAfter(hdlr.timeoutDate.toInstant())) {
+					
+					// Only execute the handler if this timer was the one to remove it, since the table may be shared
+					if(hdlr != null && now.isAfter(hdlr.timeoutDate.toInstant()) && _replyHandlers.remove(id, hdlr)) {
 						// Execute handler with timed out status
 						if(_settings.blockingHandlers())
-							hdlr.handler.handle(null, true);
+							hdlr.handle(null, PacketReplyHandler.STATUS_TIMED_OUT);
 						else
 							_execs.execute(() -> {
-								hdlr.handler.handle(null, true);
+								hdlr.handle(null, PacketReplyHandler.STATUS_TIMED_OUT);
 							});
-						
-						// Remove the handler
-						_replyHandlers.remove(id);
 					}
 				}
 			}
 		}, 0, 1000);
 		
+		// Setup heartbeats and stalled connection reaping
+		int heartbeat = _settings.heartbeatInterval();
+		int writeIdle = _settings.writeIdleTimeout();
+		if(heartbeat > 0 || writeIdle > 0) {
+			int period = Math.max(50, Math.min(heartbeat > 0 ? heartbeat : writeIdle, writeIdle > 0 ? writeIdle : heartbeat) / 2);
+			_replyTimeoutTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					TransportConnection conn = _conn;
+					PacketWriter writer = _writer;
+					if(conn == null || writer == null || !_connected.get())
+						return;
+					
+					try {
+						if(writeIdle > 0 && writer.stalledTime() >= writeIdle)
+							conn.close();
+						else if(heartbeat > 0 && writer.idleTime() >= heartbeat)
+							writer.write(Packet.control(Packet.CONTROL_PING));
+					} catch(Exception e) {
+						// The input thread will notice the connection is gone
+					}
+				}
+			}, period, period);
+		}
+		
+		// Connect
+		try {
+			open();
+		} catch(IOException e) {
+			_execs.shutdown();
+			_replyTimeoutTimer.cancel();
+			throw e;
+		}
+		
+		// Trigger handlers
+		triggerConnectHandlers();
+		
+		return this;
+	}
+	
+	// Opens the connection, writer, and input thread
+	private void open() throws IOException {
+		Transport transport = _settings.transport();
+		if(transport == null)
+			transport = (_settings.tlsContext() == null ? new TcpTransport() : new TlsTransport(_settings.tlsContext()))
+					.receiveBufferSize(_settings.receiveBufferSize());
+		TransportConnection conn = transport.connect(_settings.address(), _settings.port());
+		_goingAway = false;
+		
+		PacketWriter writer;
+		BufferedInputStream in;
+		ArrayList<Packet> early = new ArrayList<Packet>();
+		try {
+			Socket socket = conn.socket();
+			if(socket != null) {
+				socket.setTcpNoDelay(_settings.tcpNoDelay());
+				socket.setKeepAlive(_settings.keepAlive());
+				if(_settings.sendBufferSize() > 0)
+					socket.setSendBufferSize(_settings.sendBufferSize());
+			}
+			
+			// Buffer the input
+			in = new BufferedInputStream(conn.inputStream());
+			
+			// Agree on an encoding with the server before anything else is sent
+			int features = _settings.checksums() ? PacketCodec.FEATURES : PacketCodec.FEATURES & ~PacketCodec.FEATURE_CHECKSUMS;
+			PacketCodec codec = new PacketCodec(features, _settings.compressionThreshold(), _settings.maxPacketBodySize());
+			if(_settings.handshakeTimeout() > -1)
+				codec = handshake(conn, in, codec, early);
+			
+			// Close the connection if nothing is received for too long
+			conn.readTimeout(Math.max(0, _settings.readIdleTimeout()));
+			
+			writer = new PacketWriter(conn.outputStream(), codec, this::triggerExceptionHandler, "TCPacketClient-writer");
+		} catch(IOException e) {
+			conn.close();
+			throw e;
+		}
+		_conn = conn;
+		_writer = writer;
+		_connected.set(true);
+		
 		// Start input thread
 		Thread thread = new Thread(() -> {
+			// Streamed packets that are still being received
+			HashMap<Integer, PacketStream> streams = new HashMap<Integer, PacketStream>();
+			
+			// Handle packets that arrived during the handshake first
+			for(Packet pkt : early) {
+				try {
+					handlePacket(pkt, conn, writer, streams);
+				} catch(Exception e) {
+					reportError(e);
+				}
+			}
+			
 			try {
-				// Buffer the input
-				BufferedInputStream in = new BufferedInputStream(_socket.getInputStream());
-				
-				// Buffer for packets
-				int leftToRead = 0;
-				int leftToSkip = 0;
-				byte[] pktBuf = new byte[] {};
-				
 				// Input loop
 				int b = 0;
 				while((b = in.read()) > -1) {
-					if(leftToSkip < 1 && leftToRead > 0) {
-						pktBuf[pktBuf.length - leftToRead] = (byte) b;
-						leftToRead--;
-						
-						// If finished, parse and handle packet
-						if(leftToRead < 1) {
-							try {
-								// Parse the packet
-								Packet pkt = Packet.parsePacket(pktBuf).source(_socket);
-								
-								// Fire reply handler if packet is a reply
-								if(pkt.isReply()) {
-									triggerPacketReplyHandler(pkt.replyTo(), pkt);
-									_replyHandlers.remove(pkt.replyTo());
-								}
-								
-								// Send it to handlers
-								triggerPacketHandlers(pkt);
-							} catch(Exception e) {
-								if(_settings.printErrors()) {
-									System.err.println("Error in TCPacketClient:");
-									e.printStackTrace();
-								}
-								
-								// Trigger exception handlers
-								triggerExceptionHandler(e);
-							}
-						}
-					} else if(leftToSkip < 1) {
-						// Get length of next packet
-						byte[] lenBytes = new byte[] { (byte) b, (byte) in.read(), (byte) in.read(), (byte) in.read() };
-						int size = ByteBuffer.wrap(lenBytes).getInt();
+					int size = writer.codec().readFrameSize(b, in);
+					if(size < 0)
+						throw new MalformedPacketException("Invalid frame size: "+size);
+					
+					// Frames that are too large are never buffered
+					if(size > _settings.maxPacketBodySize()) {
+						_oversized.incrementAndGet();
+						if(_settings.oversizedFramePolicy() == TCPacketClientSettings.OVERSIZED_CLOSE)
+							throw new MalformedPacketException("Closing connection after the server sent an oversized frame of "+size+" bytes");
 						
-						// Determine how much needs to be read or skipped
-						if(size > _settings.maxPacketBodySize()) {
-							leftToSkip = size;
-						} else {
-							leftToRead = size;
-							pktBuf = new byte[size];
-						}
+						Streams.skipFully(in, size);
+						continue;
+					}
+					
+					byte[] pktBuf = new byte[size];
+					Streams.readFully(in, pktBuf);
+					
+					try {
+						// Parse and handle the packet
+						handlePacket(writer.codec().decode(pktBuf), conn, writer, streams);
+					} catch(Exception e) {
+						reportError(e);
 					}
 				}
 			} catch(Exception e) {
+				// Errors caused by closing the client aren't worth reporting
+				if(!_closing)
+					reportError(e);
+			}
+			
+			// Fail streams that were cut off
+			for(PacketStream stream : streams.values())
+				stream.fail(new IOException("Connection closed before stream ended"));
+			
+			connectionLost(conn, writer);
+		});
+		thread.setName("TCPacketClient");
+		thread.start();
+	}
+	
+	// Handles a packet received from the server
+	private void handlePacket(Packet pkt, TransportConnection conn, PacketWriter writer, HashMap<Integer, PacketStream> streams) throws Exception {
+		pkt.source(conn.socket()).writer(writer);
+		
+		// Control packets are handled by the client itself
+		if(pkt.isControl()) {
+			if(pkt.type() == Packet.CONTROL_PING)
+				writer.write(Packet.control(Packet.CONTROL_PONG));
+			else if(pkt.type() == Packet.CONTROL_GOAWAY)
+				_goingAway = true;
+			else if(pkt.type() == Packet.CONTROL_BUSY)
+				triggerExceptionHandler(new IOException("Server is busy and turned the connection away"));
+			return;
+		}
+		
+		// Stream chunks go to their stream instead of packet handlers
+		if(pkt.isStreamChunk()) {
+			feedStream(pkt, streams);
+			return;
+		}
+		
+		// Fire reply handler if packet is a reply
+		if(pkt.isReply()) {
+			triggerPacketReplyHandler(pkt.replyTo(), pkt);
+		}
+		
+		// Send it to handlers
+		triggerPacketHandlers(pkt);
+	}
+	
+	// Prints an error if enabled and triggers exception handlers
+	private void reportError(Exception e) {
+		if(_settings.printErrors()) {
+			System.err.println("Error in TCPacketClient:");
+			e.printStackTrace();
+		}
+		
+		// Trigger exception handlers
+		triggerExceptionHandler(e);
+	}
+	
+	// Sends this client's handshake and waits for the server's, returning the codec both sides agreed on.
+	// Other packets that arrive before the server's handshake are added to the early list.
+	private PacketCodec handshake(TransportConnection conn, InputStream in, PacketCodec codec, ArrayList<Packet> early) throws IOException {
+		// The handshake is written directly, since nothing else can be sent until it's done
+		conn.outputStream().write(codec.encode(codec.hello(Packet.CONTROL_HELLO)));
+		conn.outputStream().flush();
+		
+		conn.readTimeout(_settings.handshakeTimeout());
+		try {
+			DataInputStream data = new DataInputStream(in);
+			while(true) {
+				int first = data.read();
+				if(first < 0)
+					throw new EOFException();
+				int size = codec.readFrameSize(first, data);
+				if(size < 0 || size > codec.maxFrameSize())
+					throw new MalformedPacketException("Invalid handshake frame size: "+size);
+				
+				byte[] bytes = new byte[size];
+				data.readFully(bytes);
+				Packet pkt = codec.decode(bytes);
+				
+				if(pkt.isControl() && pkt.type() == Packet.CONTROL_HELLO_ACK)
+					return codec.negotiate(pkt);
+				else if(pkt.isControl() && pkt.type() == Packet.CONTROL_BUSY)
+					throw new IOException("Server is busy and turned the connection away");
+				else
+					early.add(pkt);
+			}
+		} catch(SocketTimeoutException e) {
+			// A slow server may still answer and switch codecs later, which the connection could not follow, so give up on it
+			throw new IOException("Timed out waiting for the server's handshake");
+		} catch(EOFException e) {
+			throw new IOException("Connection closed during handshake");
+		}
+	}
+	
+	// Cleans up after the connection is lost, and reconnects if enabled
+	private void connectionLost(TransportConnection conn, PacketWriter writer) {
+		writer.close();
+		try {
+			conn.close();
+		} catch(IOException e) {
+			// Already lost, nothing else to do
+		}
+		
+		// Closing the client handles everything else
+		if(_closing)
+			return;
+		
+		if(_connected.compareAndSet(true, false))
+			triggerDisconnectHandlers();
+		
+		if(_settings.reconnect()) {
+			// Requests are either failed now or kept to be sent again after reconnecting
+			if(_settings.replayPolicy() == TCPacketClientSettings.REPLAY_FAIL)
+				failPendingReplies();
+			
+			reconnect();
+		} else {
+			failPendingReplies();
+		}
+	}
+	
+	// Tries to reconnect using jittered exponential backoff until connected, out of attempts, or closed
+	private void reconnect() {
+		int attempt = 0;
+		while(!_closing && (_settings.maxReconnectAttempts() < 0 || attempt < _settings.maxReconnectAttempts())) {
+			// Pick a delay between half and all of the current backoff
+			long backoff = Math.min(_settings.maxReconnectDelay(), _settings.reconnectDelay() << Math.min(attempt, 30));
+			long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+			attempt++;
+			
+			synchronized(_reconnectLock) {
+				try {
+					if(!_closing)
+						_reconnectLock.wait(Math.max(1, delay));
+				} catch(InterruptedException e) {
+					break;
+				}
+			}
+			if(_closing)
+				return;
+			
+			try {
+				open();
+			} catch(IOException e) {
 				if(_settings.printErrors()) {
-					System.err.println("Error in TCPacketClient:");
+					System.err.println("Failed to reconnect TCPacketClient (attempt "+attempt+"):");
 					e.printStackTrace();
 				}
 				
-				// Trigger exception handlers
 				triggerExceptionHandler(e);
+				continue;
 			}
-		});
-		thread.setName("TCPacketClient");
-		thread.start();
-		
-		// Trigger handlers
-		triggerConnectHandlers();
+			
+			// Don't keep the new connection if the client was closed while connecting
+			if(_closing) {
+				_writer.close();
+				try {
+					_conn.close();
+				} catch(IOException e) {
+					// Being closed anyway
+				}
+				return;
+			}
+			
+			triggerConnectHandlers();
+			
+			// Send requests that are still waiting for replies again
+			try {
+				for(Packet pkt : _pending.values())
+					_writer.write(pkt);
+			} catch(IOException e) {
+				// The new connection was lost as well, which its own input thread will handle
+			}
+			return;
+		}
 		
-		return this;
+		// Out of attempts, give up on any waiting requests
+		failPendingReplies();
+	}
+	
+	// Executes the handlers of all packets waiting for replies with a connection lost status
+	private void failPendingReplies() {
+		for(int id : _pending.keySet()) {
+			PacketReplyHandler hdlr = _replyHandlers.remove(id);
+			if(hdlr == null)
+				continue;
+			
+			if(_settings.blockingHandlers())
+				hdlr.handle(null, PacketReplyHandler.STATUS_CONNECTION_LOST);
+			else
+				_execs.execute(() -> {
+					hdlr.handle(null, PacketReplyHandler.STATUS_CONNECTION_LOST);
+				});
+		}
 	}
 	
 	/**
@@ -415,15 +954,25 @@ public class TCPacketClient implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public void close() throws IOException {
+		_closing = true;
+		synchronized(_reconnectLock) {
+			_reconnectLock.notifyAll();
+		}
+		
 		// Close resources
-		if(_socket != null && !_socket.isClosed())
-			_socket.close();
+		if(_writer != null)
+			_writer.close();
+		if(_conn != null && !_conn.isClosed())
+			_conn.close();
+		
+		// Trigger handlers before the executor is shut down
+		if(_connected.getAndSet(false))
+			triggerDisconnectHandlers();
+		failPendingReplies();
+		
 		if(_execs != null)
 			_execs.shutdown();
 		if(_replyTimeoutTimer != null)
 			_replyTimeoutTimer.cancel();
-		
-		// Trigger handlers
-		triggerDisconnectHandlers();
 	}
-}
+}
\ No newline at end of file
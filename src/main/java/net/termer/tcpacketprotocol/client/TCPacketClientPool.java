@@ -0,0 +1,556 @@
+package net.termer.tcpacketprotocol.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.termer.tcpacketprotocol.ExceptionHandler;
+import net.termer.tcpacketprotocol.Packet;
+import net.termer.tcpacketprotocol.PacketHandler;
+import net.termer.tcpacketprotocol.PacketReplyHandler;
+import net.termer.tcpacketprotocol.PacketStreamHandler;
+import net.termer.tcpacketprotocol.ReplyPacketHandler;
+
+/**
+ * Pool of TCPacketClients connected to one or more servers.
+ * Packets are routed to the pool's clients using either round robin or least outstanding replies routing,
+ * and all clients share a single reply handler table.
+ * Requests can optionally be hedged, sending a copy of a request with a second client if no reply arrived within a percentile of recent reply latencies.
+ * @author termer
+ * @since 1.2
+ */
+public class TCPacketClientPool implements AutoCloseable {
+	/**
+	 * Routing policy that sends packets to each client in turn
+	 * @since 1.2
+	 */
+	public static final int ROUND_ROBIN = 0;
+	/**
+	 * Routing policy that sends packets to the client with the fewest packets waiting for a reply
+	 * @since 1.2
+	 */
+	public static final int LEAST_OUTSTANDING = 1;
+	
+	// Amount of recent reply latencies kept for calculating the hedging delay
+	private static final int LATENCY_SAMPLES = 256;
+	// Amount of latencies recorded before the hedging delay is calculated again
+	private static final int LATENCY_UPDATE_INTERVAL = 16;
+	
+	// Settings for the servers to connect to
+	private final TCPacketClientSettings[] _servers;
+	// Amount of connections to open to each server
+	private final int _connsPerServer;
+	// Routing policy
+	private int _routing = LEAST_OUTSTANDING;
+	
+	// The pool's clients
+	private CopyOnWriteArrayList<TCPacketClient> _clients = new CopyOnWriteArrayList<TCPacketClient>();
+	// Shared reply handler table
+	private ConcurrentHashMap<Integer, PacketReplyHandler> _replyHandlers = new ConcurrentHashMap<Integer, PacketReplyHandler>();
+	// Next client index for round robin routing
+	private AtomicInteger _next = new AtomicInteger(0);
+	
+	// Latency percentile after which requests are hedged, 0 if disabled
+	private double _hedgePercentile = 0;
+	// Minimum time in milliseconds to wait before hedging a request
+	private long _minHedgeDelay = 10;
+	// Recent reply latencies in milliseconds, and the total amount recorded
+	private final long[] _latencies = new long[LATENCY_SAMPLES];
+	private long _latencyCount = 0;
+	// The current hedging delay in milliseconds, -1 until enough latencies have been recorded
+	private long _hedgeDelay = -1;
+	// Amount of hedged copies that were sent
+	private AtomicLong _hedged = new AtomicLong(0);
+	// Timer for sending hedged copies of requests
+	private Timer _hedgeTimer = null;
+	
+	// Packet handlers
+	private CopyOnWriteArrayList<PacketHandler> _packetHandlers = new CopyOnWriteArrayList<PacketHandler>();
+	// Stream handlers
+	private CopyOnWriteArrayList<PacketStreamHandler> _streamHandlers = new CopyOnWriteArrayList<PacketStreamHandler>();
+	// Exception handlers
+	private CopyOnWriteArrayList<ExceptionHandler> _exceptionHandlers = new CopyOnWriteArrayList<ExceptionHandler>();
+	
+	/**
+	 * Creates a new TCPacketClientPool
+	 * @param connectionsPerServer The amount of connections to open to each server
+	 * @param servers The settings for each server to connect to
+	 * @since 1.2
+	 */
+	public TCPacketClientPool(int connectionsPerServer, TCPacketClientSettings... servers) {
+		if(servers.length < 1)
+			throw new IllegalArgumentException("At least one server must be specified");
+		if(connectionsPerServer < 1)
+			throw new IllegalArgumentException("Must open at least one connection per server");
+		
+		_servers = servers;
+		_connsPerServer = connectionsPerServer;
+	}
+	
+	/**
+	 * Returns this pool's routing policy.
+	 * Default: LEAST_OUTSTANDING
+	 * @return This pool's routing policy
+	 * @since 1.2
+	 */
+	public int routingPolicy() {
+		return _routing;
+	}
+	/**
+	 * Sets this pool's routing policy
+	 * @param policy The routing policy, either ROUND_ROBIN or LEAST_OUTSTANDING
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientPool routingPolicy(int policy) {
+		if(policy != ROUND_ROBIN && policy != LEAST_OUTSTANDING)
+			throw new IllegalArgumentException("Invalid routing policy: "+policy);
+		
+		_routing = policy;
+		return this;
+	}
+	
+	/**
+	 * Returns the percentile of recent reply latencies after which requests sent with a reply handler are hedged, or 0 if hedging is disabled.
+	 * Default: 0
+	 * @return The hedging percentile
+	 * @since 1.2
+	 */
+	public double hedgePercentile() {
+		return _hedgePercentile;
+	}
+	/**
+	 * Sets the percentile of recent reply latencies after which requests sent with a reply handler are hedged.
+	 * A hedged request is sent again using a different client, and the first reply is passed to the reply handler.
+	 * A hedged copy that lost is cancelled, while a first copy that lost keeps waiting for its reply, so its latency still counts towards the percentile.
+	 * Requests are not hedged until enough replies have been received to calculate the percentile.
+	 * Only hedge requests that are safe to handle more than once.
+	 * @param percentile The percentile, greater than 0 and less than 100, or 0 to disable hedging
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientPool hedgePercentile(double percentile) {
+		if(percentile < 0 || percentile >= 100)
+			throw new IllegalArgumentException("Invalid hedging percentile: "+percentile);
+		
+		_hedgePercentile = percentile;
+		synchronized(_latencies) {
+			_latencyCount = 0;
+			_hedgeDelay = -1;
+		}
+		return this;
+	}
+	/**
+	 * Returns the minimum time in milliseconds to wait for a reply before hedging a request.
+	 * Default: 10
+	 * @return The minimum hedging delay
+	 * @since 1.2
+	 */
+	public long minHedgeDelay() {
+		return _minHedgeDelay;
+	}
+	/**
+	 * Sets the minimum time in milliseconds to wait for a reply before hedging a request
+	 * @param delay The minimum hedging delay
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientPool minHedgeDelay(long delay) {
+		_minHedgeDelay = delay;
+		return this;
+	}
+	/**
+	 * Returns the amount of hedged copies of requests this pool has sent
+	 * @return The amount of hedged requests
+	 * @since 1.2
+	 */
+	public long hedgedRequests() {
+		return _hedged.get();
+	}
+	/**
+	 * Returns the time in milliseconds requests currently wait for a reply before being hedged, based on recent reply latencies.
+	 * Returns -1 if hedging is disabled or not enough latencies have been recorded yet.
+	 * @return The current hedging delay
+	 * @since 1.2
+	 */
+	public long hedgeDelay() {
+		synchronized(_latencies) {
+			return _hedgeDelay;
+		}
+	}
+	
+	/**
+	 * Returns all of this pool's clients
+	 * @return All of this pool's clients
+	 * @since 1.2
+	 */
+	public TCPacketClient[] clients() {
+		return _clients.toArray(new TCPacketClient[0]);
+	}
+	
+	/**
+	 * Returns whether all of this pool's clients are closed
+	 * @return Whether this pool is closed
+	 * @since 1.2
+	 */
+	public boolean isClosed() {
+		for(TCPacketClient client : _clients)
+			if(!client.isClosed())
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Registers a new packet handler on all clients
+	 * @param handler The packet handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientPool packetHandler(PacketHandler handler) {
+		_packetHandlers.add(handler);
+		for(TCPacketClient client : _clients)
+			client.packetHandler(handler);
+		return this;
+	}
+	/**
+	 * Registers a new streamed packet handler on all clients
+	 * @param handler The streamed packet handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientPool streamHandler(PacketStreamHandler handler) {
+		_streamHandlers.add(handler);
+		for(TCPacketClient client : _clients)
+			client.streamHandler(handler);
+		return this;
+	}
+	/**
+	 * Registers a new exception handler on all clients
+	 * @param handler The exception handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientPool exceptionHandler(ExceptionHandler handler) {
+		_exceptionHandlers.add(handler);
+		for(TCPacketClient client : _clients)
+			client.exceptionHandler(handler);
+		return this;
+	}
+	
+	/**
+	 * Returns the client the next packet should be sent with, according to the routing policy.
+	 * Clients whose server is shutting down are only used if no other clients are connected.
+	 * @return The next client
+	 * @throws IOException If no clients are connected
+	 * @since 1.2
+	 */
+	public TCPacketClient next() throws IOException {
+		TCPacketClient res = next(false, null);
+		if(res == null)
+			res = next(true, null);
+		if(res == null)
+			throw new IOException("No connected clients in pool");
+		
+		return res;
+	}
+	// Returns the next client other than the excluded one according to the routing policy, or null if none are available
+	private TCPacketClient next(boolean allowGoingAway, TCPacketClient exclude) {
+		TCPacketClient[] clients = clients();
+		TCPacketClient res = null;
+		
+		if(_routing == ROUND_ROBIN) {
+			// Find the next open client
+			int start = _next.getAndIncrement() & Integer.MAX_VALUE;
+			for(int i = 0; i < clients.length && res == null; i++) {
+				TCPacketClient client = clients[(start + i) % clients.length];
+				if(client != exclude && !client.isClosed() && (allowGoingAway || !client.isGoingAway()))
+					res = client;
+			}
+		} else {
+			// Find the open client with the fewest outstanding replies
+			for(TCPacketClient client : clients)
+				if(client != exclude && !client.isClosed() && (allowGoingAway || !client.isGoingAway()) && (res == null || client.outstandingReplies() < res.outstandingReplies()))
+					res = client;
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Sends a packet using the next client
+	 * @param packet The packet to send
+	 * @return This, to be used fluently
+	 * @throws IOException If sending the packet fails
+	 * @since 1.2
+	 */
+	public TCPacketClientPool send(Packet packet) throws IOException {
+		next().send(packet);
+		return this;
+	}
+	/**
+	 * Sends a packet using the next client and calls the specified handler when a reply is received for it
+	 * @param packet The packet to send
+	 * @param replyHandler The handler to execute when a reply is received
+	 * @return This, to be used fluently
+	 * @throws IOException If sending the packet fails
+	 * @since 1.2
+	 */
+	public TCPacketClientPool send(Packet packet, PacketReplyHandler replyHandler) throws IOException {
+		if(_hedgePercentile > 0)
+			new HedgedRequest(packet, replyHandler).send(next(), packet);
+		else
+			next().send(packet, replyHandler);
+		return this;
+	}
+	/**
+	 * Sends a packet using the next client and calls the specified handler when a reply is received for it.
+	 * Uses the default 5 second timeout time for the reply handler.
+	 * @param packet The packet to send
+	 * @param handler The handler to execute when a reply is received
+	 * @return This, to be used fluently
+	 * @throws IOException If sending the packet fails
+	 * @since 1.2
+	 */
+	public TCPacketClientPool send(Packet packet, ReplyPacketHandler handler) throws IOException {
+		send(packet, new PacketReplyHandler(5, handler));
+		return this;
+	}
+	/**
+	 * Sends a batch of packets using the next client
+	 * @param packets The packets to send
+	 * @return This, to be used fluently
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public TCPacketClientPool sendAll(Collection<Packet> packets) throws IOException {
+		next().sendAll(packets);
+		return this;
+	}
+	/**
+	 * Sends a batch of packets using the next client and returns a future that completes once all of them have been replied to
+	 * @param packets The packets to send
+	 * @param timeoutSec The time in seconds to wait for each reply before the future fails with a TimeoutException
+	 * @return A future for the replies, in the same order as the packets they are for, which fails with a ConnectionLostException as soon as the connection is lost
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> requestAll(Collection<Packet> packets, int timeoutSec) throws IOException {
+		return next().requestAll(packets, timeoutSec);
+	}
+	/**
+	 * Sends a batch of packets using the next client and returns a future that completes once all of them have been replied to.
+	 * Uses the default 5 second timeout time for each reply.
+	 * @param packets The packets to send
+	 * @return A future for the replies, in the same order as the packets they are for
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> requestAll(Collection<Packet> packets) throws IOException {
+		return next().requestAll(packets);
+	}
+	/**
+	 * Sends the contents of an InputStream as a streamed packet using the next client
+	 * @param type The type of the streamed packet
+	 * @param data The data to send
+	 * @return This, to be used fluently
+	 * @throws IOException If reading the data or sending a chunk fails
+	 * @since 1.2
+	 */
+	public TCPacketClientPool sendStream(short type, InputStream data) throws IOException {
+		next().sendStream(type, data);
+		return this;
+	}
+	
+	/**
+	 * Connects all of this pool's clients
+	 * @return This, to be used fluently
+	 * @throws IOException If any connection fails, in which case already connected clients are closed
+	 * @since 1.2
+	 */
+	public TCPacketClientPool connect() throws IOException {
+		try {
+			for(TCPacketClientSettings server : _servers) {
+				for(int i = 0; i < _connsPerServer; i++) {
+					TCPacketClient client = new TCPacketClient(server)
+							.shareReplyHandlers(_replyHandlers);
+					
+					for(PacketHandler hdlr : _packetHandlers)
+						client.packetHandler(hdlr);
+					for(PacketStreamHandler hdlr : _streamHandlers)
+						client.streamHandler(hdlr);
+					for(ExceptionHandler hdlr : _exceptionHandlers)
+						client.exceptionHandler(hdlr);
+					
+					_clients.add(client.connect());
+				}
+			}
+			
+			if(_hedgeTimer == null)
+				_hedgeTimer = new Timer(true);
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Closes all of this pool's clients
+	 * @throws IOException If closing any client fails
+	 * @since 1.2
+	 */
+	public void close() throws IOException {
+		IOException error = null;
+		for(TCPacketClient client : _clients) {
+			try {
+				client.close();
+			} catch(IOException e) {
+				error = e;
+			}
+		}
+		_clients.clear();
+		
+		if(_hedgeTimer != null) {
+			_hedgeTimer.cancel();
+			_hedgeTimer = null;
+		}
+		
+		if(error != null)
+			throw error;
+	}
+	
+	// Records the latency of a reply, and calculates the hedging delay again if enough latencies were recorded since the last time
+	private void recordLatency(long latency) {
+		synchronized(_latencies) {
+			_latencies[(int) (_latencyCount++ % LATENCY_SAMPLES)] = latency;
+			if(_latencyCount % LATENCY_UPDATE_INTERVAL != 0)
+				return;
+			
+			long[] sorted = Arrays.copyOf(_latencies, (int) Math.min(_latencyCount, LATENCY_SAMPLES));
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(_hedgePercentile / 100 * sorted.length) - 1;
+			_hedgeDelay = Math.max(_minHedgeDelay, sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+		}
+	}
+	
+	// A request that is sent again using another client if no reply arrives in time
+	private class HedgedRequest {
+		final Packet packet;
+		final PacketReplyHandler handler;
+		final long start = System.currentTimeMillis();
+		// The clients the request was sent with, and the IDs of the copies sent with them
+		final TCPacketClient[] clients = new TCPacketClient[2];
+		final int[] ids = new int[2];
+		int sent = 0;
+		int failed = 0;
+		boolean done = false;
+		TimerTask hedge = null;
+		
+		HedgedRequest(Packet packet, PacketReplyHandler handler) {
+			this.packet = packet;
+			this.handler = handler;
+		}
+		
+		// Sends a copy of the request, scheduling the hedged copy after the first one
+		void send(TCPacketClient client, Packet pkt) throws IOException {
+			// Set expecting reply before sending so ID is generated
+			pkt.expectingReply(true);
+			
+			int index;
+			synchronized(this) {
+				// Don't send the hedged copy if the request was resolved in the meantime
+				if(done)
+					return;
+				index = sent++;
+				clients[index] = client;
+				ids[index] = pkt.id();
+			}
+			
+			client.send(pkt, PacketReplyHandler.withStatus(handler.timeoutDate, (reply, status) -> resolve(index, reply, status)));
+			
+			long delay = hedgeDelay();
+			Timer timer = _hedgeTimer;
+			if(index > 0 || delay < 0 || timer == null)
+				return;
+			
+			TimerTask task = new TimerTask() {
+				public void run() {
+					hedge();
+				}
+			};
+			synchronized(this) {
+				if(done)
+					return;
+				hedge = task;
+			}
+			try {
+				timer.schedule(task, delay);
+			} catch(IllegalStateException e) {
+				// The pool was closed
+			}
+		}
+		
+		// Sends the hedged copy of the request using another client, if still needed
+		void hedge() {
+			synchronized(this) {
+				if(done)
+					return;
+			}
+			
+			TCPacketClient client = next(false, clients[0]);
+			if(client == null)
+				return;
+			
+			Packet copy = new Packet((short) packet.type())
+					.body(packet.body())
+					.priority(packet.priority())
+					.deadline(packet.deadline());
+			try {
+				send(client, copy);
+				_hedged.incrementAndGet();
+			} catch(IOException e) {
+				// The first copy may still be replied to
+			}
+		}
+		
+		// Resolves one of the copies, passing the first reply or the last failure to the handler
+		void resolve(int index, Packet reply, int status) {
+			// The hedging delay is based on how long first copies take, including ones that lost to a hedged copy
+			if(index == 0 && (status == PacketReplyHandler.STATUS_REPLIED || status == PacketReplyHandler.STATUS_TIMED_OUT))
+				recordLatency(System.currentTimeMillis() - start);
+			
+			synchronized(this) {
+				if(done)
+					return;
+				
+				// Keep waiting if another copy may still be replied to
+				if(status != PacketReplyHandler.STATUS_REPLIED && ++failed < sent)
+					return;
+				
+				done = true;
+				if(hedge != null)
+					hedge.cancel();
+			}
+			
+			// Cancel the hedged copy if the first copy won.
+			// The first copy is left waiting if it lost, so its latency is still recorded when it finishes.
+			if(status == PacketReplyHandler.STATUS_REPLIED) {
+				for(int i = 1; i < clients.length; i++)
+					if(i != index && clients[i] != null)
+						clients[i].cancelReply(ids[i]);
+			}
+			
+			handler.handle(reply, status);
+		}
+	}
+}
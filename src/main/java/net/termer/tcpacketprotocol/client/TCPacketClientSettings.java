@@ -1,11 +1,37 @@
 package net.termer.tcpacketprotocol.client;
 
+import javax.net.ssl.SSLContext;
+
+import net.termer.tcpacketprotocol.PacketStream;
+import net.termer.tcpacketprotocol.transport.Transport;
+
 /**
  * Configuration class for TCPacketClient class.
  * @author termer
  * @since 1.0
  */
 public class TCPacketClientSettings {
+	/**
+	 * Replay policy that fails packets waiting for a reply as soon as the connection is lost
+	 * @since 1.2
+	 */
+	public static final int REPLAY_FAIL = 0;
+	/**
+	 * Replay policy that sends packets waiting for a reply again once reconnected, until their reply times out
+	 * @since 1.2
+	 */
+	public static final int REPLAY_RETRY = 1;
+	/**
+	 * Oversized frame policy that discards frames larger than the max packet body size and keeps reading the connection
+	 * @since 1.2
+	 */
+	public static final int OVERSIZED_SKIP = 0;
+	/**
+	 * Oversized frame policy that closes the connection if the server sends a frame larger than the max packet body size
+	 * @since 1.2
+	 */
+	public static final int OVERSIZED_CLOSE = 1;
+	
 	// Max packet body size
 	private int _maxPktBody = 1024;
 	private String _addr = "127.0.0.1";
@@ -13,6 +39,26 @@ public class TCPacketClientSettings {
 	private int _pktHandlePool = 3;
 	private boolean _blockingHdlrs = false;
 	private boolean _printErrs = false;
+	private int _compressThreshold = -1;
+	private int _streamChunkSize = 1000;
+	private int _streamBufferSize = PacketStream.DEFAULT_BUFFER_SIZE;
+	private boolean _reconnect = false;
+	private long _reconnectDelay = 100;
+	private long _maxReconnectDelay = 30000;
+	private int _maxReconnectAttempts = -1;
+	private int _replayPolicy = REPLAY_FAIL;
+	private int _heartbeatInterval = -1;
+	private int _readIdleTimeout = -1;
+	private int _writeIdleTimeout = -1;
+	private boolean _tcpNoDelay = true;
+	private int _sendBufSize = -1;
+	private int _receiveBufSize = -1;
+	private boolean _keepAlive = false;
+	private Transport _transport = null;
+	private SSLContext _tlsContext = null;
+	private int _handshakeTimeout = 5000;
+	private boolean _checksums = false;
+	private int _oversizedPolicy = OVERSIZED_SKIP;
 	
 	/**
 	 * Returns the max packet body size in bytes.
@@ -68,6 +114,198 @@ public class TCPacketClientSettings {
 	public boolean printErrors() {
 		return _printErrs;
 	}
+	/**
+	 * Returns the minimum body size in bytes at which outgoing packet bodies are compressed, or -1 if compression is disabled.
+	 * Bodies are only sent compressed if compressing them actually saves space.
+	 * Default: -1
+	 * @return The minimum body size to compress
+	 * @since 1.2
+	 */
+	public int compressionThreshold() {
+		return _compressThreshold;
+	}
+	/**
+	 * Returns the max amount of bytes sent in each chunk of a streamed packet.
+	 * Chunks plus their 7 byte header must fit in the receiving side's max packet body size.
+	 * Default: 1000
+	 * @return The max stream chunk size
+	 * @since 1.2
+	 */
+	public int streamChunkSize() {
+		return _streamChunkSize;
+	}
+	/**
+	 * Returns the max amount of bytes of a streamed packet that are buffered while waiting to be read.
+	 * If a stream's reader falls further behind than this, the stream is aborted instead of stopping the connection from reading anything else.
+	 * Default: 1048576
+	 * @return The stream buffer size
+	 * @since 1.2
+	 */
+	public int streamBufferSize() {
+		return _streamBufferSize;
+	}
+	/**
+	 * Returns whether the client will automatically reconnect when its connection is lost.
+	 * Default: false
+	 * @return Whether the client will reconnect
+	 * @since 1.2
+	 */
+	public boolean reconnect() {
+		return _reconnect;
+	}
+	/**
+	 * Returns the delay in milliseconds before the first reconnect attempt.
+	 * The delay doubles after each failed attempt, and a random jitter of up to half the delay is subtracted.
+	 * Default: 100
+	 * @return The initial reconnect delay
+	 * @since 1.2
+	 */
+	public long reconnectDelay() {
+		return _reconnectDelay;
+	}
+	/**
+	 * Returns the max delay in milliseconds between reconnect attempts.
+	 * Default: 30000
+	 * @return The max reconnect delay
+	 * @since 1.2
+	 */
+	public long maxReconnectDelay() {
+		return _maxReconnectDelay;
+	}
+	/**
+	 * Returns the max amount of reconnect attempts before giving up, or -1 for no limit.
+	 * Default: -1
+	 * @return The max reconnect attempts
+	 * @since 1.2
+	 */
+	public int maxReconnectAttempts() {
+		return _maxReconnectAttempts;
+	}
+	/**
+	 * Returns what happens to packets waiting for a reply when the connection is lost and the client reconnects.
+	 * Without reconnecting, they are always failed.
+	 * Default: REPLAY_FAIL
+	 * @return The replay policy
+	 * @since 1.2
+	 */
+	public int replayPolicy() {
+		return _replayPolicy;
+	}
+	/**
+	 * Returns the time in milliseconds a connection can go without writing anything before a ping is sent to keep it alive, or -1 if heartbeats are disabled.
+	 * Pings are answered with pongs automatically, so a peer with a read idle timeout longer than this interval will not time out a healthy connection.
+	 * Default: -1
+	 * @return The heartbeat interval
+	 * @since 1.2
+	 */
+	public int heartbeatInterval() {
+		return _heartbeatInterval;
+	}
+	/**
+	 * Returns the time in milliseconds a connection can go without receiving anything before it is closed, or -1 to never close idle connections.
+	 * Default: -1
+	 * @return The read idle timeout
+	 * @since 1.2
+	 */
+	public int readIdleTimeout() {
+		return _readIdleTimeout;
+	}
+	/**
+	 * Returns the time in milliseconds queued packets can go without being written before the connection is closed, or -1 to never close stalled connections.
+	 * This catches peers that have stopped reading, which would otherwise block writes forever.
+	 * Default: -1
+	 * @return The write idle timeout
+	 * @since 1.2
+	 */
+	public int writeIdleTimeout() {
+		return _writeIdleTimeout;
+	}
+	/**
+	 * Returns whether TCP_NODELAY is enabled, which disables Nagle's algorithm so small packets are sent immediately instead of being delayed to be combined with later ones.
+	 * Default: true
+	 * @return Whether TCP_NODELAY is enabled
+	 * @since 1.2
+	 */
+	public boolean tcpNoDelay() {
+		return _tcpNoDelay;
+	}
+	/**
+	 * Returns the socket send buffer size (SO_SNDBUF) in bytes, or -1 to use the operating system's default.
+	 * Default: -1
+	 * @return The SO_SNDBUF size
+	 * @since 1.2
+	 */
+	public int sendBufferSize() {
+		return _sendBufSize;
+	}
+	/**
+	 * Returns the socket receive buffer size (SO_RCVBUF) in bytes, or -1 to use the operating system's default.
+	 * Default: -1
+	 * @return The SO_RCVBUF size
+	 * @since 1.2
+	 */
+	public int receiveBufferSize() {
+		return _receiveBufSize;
+	}
+	/**
+	 * Returns whether TCP keepalive probes (SO_KEEPALIVE) are enabled.
+	 * Default: false
+	 * @return Whether SO_KEEPALIVE is enabled
+	 * @since 1.2
+	 */
+	public boolean keepAlive() {
+		return _keepAlive;
+	}
+	/**
+	 * Returns the transport connections are made over, or null to use TCP.
+	 * Socket options only apply to transports that use sockets, and the receive buffer size is only set by the default TCP transport.
+	 * Default: null
+	 * @return The transport
+	 * @since 1.2
+	 */
+	public Transport transport() {
+		return _transport;
+	}
+	/**
+	 * Returns the SSLContext used to encrypt connections with TLS, or null to not use TLS.
+	 * Only used by the default transport, for more control use a TlsTransport.
+	 * Default: null
+	 * @return The TLS context
+	 * @since 1.2
+	 */
+	public SSLContext tlsContext() {
+		return _tlsContext;
+	}
+	/**
+	 * Returns the max time in milliseconds to wait for the server to answer the protocol handshake when connecting.
+	 * If the server does not answer in time, connecting fails. If -1, no handshake is done and the base packet encoding is used.
+	 * Default: 5000
+	 * @return The handshake timeout
+	 * @since 1.2
+	 */
+	public int handshakeTimeout() {
+		return _handshakeTimeout;
+	}
+	/**
+	 * Returns whether to ask the server to add CRC32C checksums to every frame, so corrupted packets are detected instead of being handled.
+	 * Only used if the server allows checksums.
+	 * Default: false
+	 * @return Whether to use frame checksums
+	 * @since 1.2
+	 */
+	public boolean checksums() {
+		return _checksums;
+	}
+	/**
+	 * Returns what happens when the server sends a frame larger than the max packet body size.
+	 * Oversized frames are never buffered, and are always counted.
+	 * Default: OVERSIZED_SKIP
+	 * @return The oversized frame policy
+	 * @since 1.2
+	 */
+	public int oversizedFramePolicy() {
+		return _oversizedPolicy;
+	}
 	
 	/**
 	 * Sets the max packet body size in bytes
@@ -129,4 +367,207 @@ public class TCPacketClientSettings {
 		_printErrs = print;
 		return this;
 	}
-}
+	/**
+	 * Sets the minimum body size in bytes at which outgoing packet bodies are compressed, or -1 to disable compression
+	 * @param threshold The minimum body size to compress
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings compressionThreshold(int threshold) {
+		_compressThreshold = threshold;
+		return this;
+	}
+	/**
+	 * Sets the max amount of bytes sent in each chunk of a streamed packet
+	 * @param size The max stream chunk size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings streamChunkSize(int size) {
+		_streamChunkSize = size;
+		return this;
+	}
+	/**
+	 * Sets the max amount of bytes of a streamed packet that are buffered while waiting to be read, after which the stream is aborted
+	 * @param size The stream buffer size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings streamBufferSize(int size) {
+		_streamBufferSize = size;
+		return this;
+	}
+	/**
+	 * Sets whether the client will automatically reconnect when its connection is lost
+	 * @param reconnect Whether the client will reconnect
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings reconnect(boolean reconnect) {
+		_reconnect = reconnect;
+		return this;
+	}
+	/**
+	 * Sets the delay in milliseconds before the first reconnect attempt
+	 * @param delay The initial reconnect delay
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings reconnectDelay(long delay) {
+		_reconnectDelay = delay;
+		return this;
+	}
+	/**
+	 * Sets the max delay in milliseconds between reconnect attempts
+	 * @param delay The max reconnect delay
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings maxReconnectDelay(long delay) {
+		_maxReconnectDelay = delay;
+		return this;
+	}
+	/**
+	 * Sets the max amount of reconnect attempts before giving up, or -1 for no limit
+	 * @param attempts The max reconnect attempts
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings maxReconnectAttempts(int attempts) {
+		_maxReconnectAttempts = attempts;
+		return this;
+	}
+	/**
+	 * Sets what happens to packets waiting for a reply when the connection is lost and the client reconnects
+	 * @param policy The replay policy, either REPLAY_FAIL or REPLAY_RETRY
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings replayPolicy(int policy) {
+		_replayPolicy = policy;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds a connection can go without writing anything before a ping is sent, or -1 to disable heartbeats
+	 * @param interval The heartbeat interval
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings heartbeatInterval(int interval) {
+		_heartbeatInterval = interval;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds a connection can go without receiving anything before it is closed, or -1 to never close idle connections
+	 * @param timeout The read idle timeout
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings readIdleTimeout(int timeout) {
+		_readIdleTimeout = timeout;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds queued packets can go without being written before the connection is closed, or -1 to never close stalled connections
+	 * @param timeout The write idle timeout
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings writeIdleTimeout(int timeout) {
+		_writeIdleTimeout = timeout;
+		return this;
+	}
+	/**
+	 * Sets whether TCP_NODELAY is enabled
+	 * @param noDelay Whether to enable TCP_NODELAY
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings tcpNoDelay(boolean noDelay) {
+		_tcpNoDelay = noDelay;
+		return this;
+	}
+	/**
+	 * Sets the socket send buffer size (SO_SNDBUF) in bytes, or -1 to use the operating system's default
+	 * @param size The SO_SNDBUF size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings sendBufferSize(int size) {
+		_sendBufSize = size;
+		return this;
+	}
+	/**
+	 * Sets the socket receive buffer size (SO_RCVBUF) in bytes, or -1 to use the operating system's default
+	 * @param size The SO_RCVBUF size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings receiveBufferSize(int size) {
+		_receiveBufSize = size;
+		return this;
+	}
+	/**
+	 * Sets whether TCP keepalive probes (SO_KEEPALIVE) are enabled
+	 * @param keepAlive Whether to enable SO_KEEPALIVE
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings keepAlive(boolean keepAlive) {
+		_keepAlive = keepAlive;
+		return this;
+	}
+	/**
+	 * Sets the transport connections are made over, or null to use TCP
+	 * @param transport The transport
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings transport(Transport transport) {
+		_transport = transport;
+		return this;
+	}
+	/**
+	 * Sets the SSLContext used to encrypt connections with TLS, or null to not use TLS
+	 * @param context The TLS context
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings tlsContext(SSLContext context) {
+		_tlsContext = context;
+		return this;
+	}
+	/**
+	 * Sets the max time in milliseconds to wait for the server to answer the protocol handshake when connecting.
+	 * If the server does not answer in time, connecting fails.
+	 * Servers older than 1.2 never answer, so set to -1 to skip the handshake for them.
+	 * @param timeout The handshake timeout in milliseconds, or -1 to skip the handshake
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings handshakeTimeout(int timeout) {
+		_handshakeTimeout = timeout;
+		return this;
+	}
+	/**
+	 * Sets whether to ask the server to add CRC32C checksums to every frame, so corrupted packets are detected instead of being handled.
+	 * Only used if the server allows checksums.
+	 * @param checksums Whether to use frame checksums
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings checksums(boolean checksums) {
+		_checksums = checksums;
+		return this;
+	}
+	/**
+	 * Sets what happens when the server sends a frame larger than the max packet body size
+	 * @param policy The oversized frame policy, either OVERSIZED_SKIP or OVERSIZED_CLOSE
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketClientSettings oversizedFramePolicy(int policy) {
+		_oversizedPolicy = policy;
+		return this;
+	}
+}
\ No newline at end of file
@@ -1,13 +1,25 @@
 package net.termer.tcpacketprotocol.server;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.termer.tcpacketprotocol.Packet;
+import net.termer.tcpacketprotocol.PacketCodec;
 import net.termer.tcpacketprotocol.PacketHandler;
 import net.termer.tcpacketprotocol.PacketReplyHandler;
+import net.termer.tcpacketprotocol.PacketWriter;
+import net.termer.tcpacketprotocol.ReplyBatch;
 import net.termer.tcpacketprotocol.ReplyPacketHandler;
+import net.termer.tcpacketprotocol.transport.SocketConnection;
+import net.termer.tcpacketprotocol.transport.TransportConnection;
 
 /**
  * Class to hold methods and data for server connections.
@@ -15,31 +27,94 @@ import net.termer.tcpacketprotocol.ReplyPacketHandler;
  * @since 1.0
  */
 public class ServerConnection implements AutoCloseable {
-	// The actual client socket
-	private final Socket _sock;
+	// The actual client connection
+	private final TransportConnection _conn;
 	// The server this connection is for
 	private final TCPacketServer _server;
+	// Writer for outgoing packets
+	private final PacketWriter _writer;
 	// Packet handlers
 	private CopyOnWriteArrayList<PacketHandler> _packetHandlers = new CopyOnWriteArrayList<PacketHandler>();
+	// Reply handlers for packets sent on this connection
+	private ConcurrentHashMap<Integer, PacketReplyHandler> _replyHandlers = new ConcurrentHashMap<Integer, PacketReplyHandler>();
 	
 	/**
 	 * Creates a new ServerConnection
 	 * @param socket This connection's Socket
 	 * @param server The server this connection is for
+	 * @throws UncheckedIOException If the socket's OutputStream cannot be obtained
 	 * @since 1.0
 	 */
 	public ServerConnection(Socket socket, TCPacketServer server) {
-		_sock = socket;
+		this(new SocketConnection(socket), server, outputStream(socket));
+	}
+	/**
+	 * Creates a new ServerConnection
+	 * @param connection This connection's transport connection
+	 * @param server The server this connection is for
+	 * @throws IOException If the connection's OutputStream cannot be obtained
+	 * @since 1.2
+	 */
+	public ServerConnection(TransportConnection connection, TCPacketServer server) throws IOException {
+		this(connection, server, connection.outputStream());
+	}
+	private ServerConnection(TransportConnection connection, TCPacketServer server, OutputStream out) {
+		_conn = connection;
 		_server = server;
+		
+		int features = server.settings().checksums() ? PacketCodec.FEATURES : PacketCodec.FEATURES & ~PacketCodec.FEATURE_CHECKSUMS;
+		_writer = new PacketWriter(
+				out,
+				new PacketCodec(features, server.settings().compressionThreshold(), server.settings().maxPacketBodySize()),
+				server::triggerExceptionHandler,
+				"TCPacketServer-writer"
+		);
+	}
+	
+	// Returns a socket's OutputStream, keeping the original constructor free of checked exceptions
+	private static OutputStream outputStream(Socket socket) {
+		try {
+			return socket.getOutputStream();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 	
 	/**
-	 * Returns the Socket object for this connection
+	 * Returns the Socket object for this connection, or null if the server's transport does not use sockets
 	 * @return The Socket object for this connection
 	 * @since 1.0
 	 */
 	public Socket socket() {
-		return _sock;
+		return _conn.socket();
+	}
+	
+	/**
+	 * Returns the transport connection for this connection
+	 * @return The transport connection for this connection
+	 * @since 1.2
+	 */
+	public TransportConnection connection() {
+		return _conn;
+	}
+	
+	/**
+	 * Returns this connection's packet writer
+	 * @return This connection's packet writer
+	 * @since 1.2
+	 */
+	public PacketWriter writer() {
+		return _writer;
+	}
+	
+	/**
+	 * Returns the codec this connection currently uses to encode and decode packets.
+	 * Changes from the base codec to the negotiated codec once the client's handshake is received.
+	 * @return This connection's codec
+	 * @since 1.2
+	 */
+	public PacketCodec codec() {
+		return _writer.codec();
 	}
 	
 	/**
@@ -62,6 +137,38 @@ public class ServerConnection implements AutoCloseable {
 		return this;
 	}
 	
+	/**
+	 * Registers a new packet reply handler.
+	 * Only a reply received on this connection can trigger it, and it is resolved as soon as this connection is lost.
+	 * @param packetId The ID of the packet the reply will be for
+	 * @param handler The reply handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public ServerConnection replyHandler(int packetId, PacketReplyHandler handler) {
+		_replyHandlers.put(packetId, handler);
+		return this;
+	}
+	
+	/**
+	 * Returns the amount of packets sent on this connection that are still waiting for a reply or timeout
+	 * @return The amount of outstanding replies
+	 * @since 1.2
+	 */
+	public int outstandingReplies() {
+		return _replyHandlers.size();
+	}
+	
+	// Returns the packet handlers registered on this connection
+	CopyOnWriteArrayList<PacketHandler> packetHandlers() {
+		return _packetHandlers;
+	}
+	
+	// Returns the reply handler table for this connection
+	ConcurrentHashMap<Integer, PacketReplyHandler> replyHandlers() {
+		return _replyHandlers;
+	}
+	
 	/**
 	 * Triggers a server packet event
 	 * @param pkt The packet
@@ -83,7 +190,7 @@ public class ServerConnection implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public ServerConnection send(Packet packet) throws IOException {
-		packet.sendTo(_sock.getOutputStream());
+		_writer.write(packet);
 		return this;
 	}
 	/**
@@ -97,12 +204,19 @@ public class ServerConnection implements AutoCloseable {
 	public ServerConnection send(Packet packet, PacketReplyHandler replyHandler) throws IOException {
 		// Set expecting reply before assigning handler so ID is generated
 		packet.expectingReply(true);
+		if(packet.deadline() == 0)
+			packet.deadline(replyHandler.timeoutDate.getTime());
 		
 		// Register handler
-		_server.replyHandler(packet.id(), replyHandler);
+		_replyHandlers.put(packet.id(), replyHandler);
 		
-		// Send packet
-		packet.sendTo(_sock.getOutputStream());
+		// Send packet, not leaving the handler behind if it can't be sent
+		try {
+			_writer.write(packet);
+		} catch(IOException e) {
+			_replyHandlers.remove(packet.id(), replyHandler);
+			throw e;
+		}
 		return this;
 	}
 	/**
@@ -119,14 +233,100 @@ public class ServerConnection implements AutoCloseable {
 		return this;
 	}
 	
+	/**
+	 * Sends a batch of packets to this client.
+	 * The packets are encoded together and written in as few writes as possible.
+	 * @param packets The packets to send
+	 * @return This, to be used fluently
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public ServerConnection sendAll(Collection<Packet> packets) throws IOException {
+		_writer.writeAll(packets);
+		return this;
+	}
+	/**
+	 * Sends a batch of packets to this client and returns a future that completes once all of them have been replied to.
+	 * The packets are encoded together and written in as few writes as possible, and their reply handlers are registered in one pass.
+	 * @param packets The packets to send
+	 * @param timeoutSec The time in seconds to wait for each reply before the future fails with a TimeoutException
+	 * @return A future for the replies, in the same order as the packets they are for, which fails with a ConnectionLostException as soon as the connection is lost
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> requestAll(Collection<Packet> packets, int timeoutSec) throws IOException {
+		ReplyBatch batch = new ReplyBatch(packets.size());
+		Date timeout = new Date(System.currentTimeMillis() + timeoutSec * 1000L);
+		
+		// Register handlers
+		int index = 0;
+		for(Packet packet : packets) {
+			// Set expecting reply before assigning handler so ID is generated
+			packet.expectingReply(true);
+			if(packet.deadline() == 0)
+				packet.deadline(timeout.getTime());
+			_replyHandlers.put(packet.id(), PacketReplyHandler.withStatus(timeout, batch.handler(index++)));
+		}
+		
+		// Send packets, not leaving the handlers behind if they can't be sent
+		try {
+			_writer.writeAll(packets);
+		} catch(IOException e) {
+			for(Packet packet : packets)
+				_replyHandlers.remove(packet.id());
+			throw e;
+		}
+		return batch.future();
+	}
+	/**
+	 * Sends a batch of packets to this client and returns a future that completes once all of them have been replied to.
+	 * Uses the default 5 second timeout time for each reply.
+	 * @param packets The packets to send
+	 * @return A future for the replies, in the same order as the packets they are for
+	 * @throws IOException If sending the packets fails
+	 * @since 1.2
+	 */
+	public CompletableFuture<Packet[]> requestAll(Collection<Packet> packets) throws IOException {
+		return requestAll(packets, 5);
+	}
+	
+	/**
+	 * Sends the contents of an InputStream to this client as a streamed packet.
+	 * The data is sent in chunks, so other packets can still be sent while it is being transferred.
+	 * Uses the default stream weight.
+	 * @param type The type of the streamed packet
+	 * @param data The data to send
+	 * @return This, to be used fluently
+	 * @throws IOException If reading the data or sending a chunk fails
+	 * @since 1.2
+	 */
+	public ServerConnection sendStream(short type, InputStream data) throws IOException {
+		return sendStream(type, data, PacketWriter.DEFAULT_STREAM_WEIGHT);
+	}
+	/**
+	 * Sends the contents of an InputStream to this client as a streamed packet.
+	 * The data is sent in chunks, which are interleaved with other packets and streams based on the stream's weight.
+	 * @param type The type of the streamed packet
+	 * @param data The data to send
+	 * @param weight The weight of the stream relative to other streams and normal packets
+	 * @return This, to be used fluently
+	 * @throws IOException If reading the data or sending a chunk fails
+	 * @since 1.2
+	 */
+	public ServerConnection sendStream(short type, InputStream data, int weight) throws IOException {
+		_writer.writeStream(type, data, _server.settings().streamChunkSize(), weight);
+		return this;
+	}
+	
 	/**
 	 * Disconnects this connection and closes all of its resources
 	 * @throws IOException If closing this connection fails
 	 * @since 1.0
 	 */
 	public void disconnect() throws IOException {
-		if(!_sock.isClosed())
-			_sock.close();
+		_writer.close();
+		if(!_conn.isClosed())
+			_conn.close();
 	}
 
 	/**
@@ -5,19 +5,46 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.nio.ByteBuffer;
+import java.net.Socket;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLSocket;
 
 import net.termer.tcpacketprotocol.ExceptionHandler;
+import net.termer.tcpacketprotocol.HandlerMonitor;
+import net.termer.tcpacketprotocol.MalformedPacketException;
 import net.termer.tcpacketprotocol.Packet;
+import net.termer.tcpacketprotocol.PacketCodec;
 import net.termer.tcpacketprotocol.PacketHandler;
 import net.termer.tcpacketprotocol.PacketReplyHandler;
+import net.termer.tcpacketprotocol.PacketStream;
+import net.termer.tcpacketprotocol.PacketStreamHandler;
+import net.termer.tcpacketprotocol.RequestHandler;
+import net.termer.tcpacketprotocol.transport.SocketListener;
+import net.termer.tcpacketprotocol.transport.TcpTransport;
+import net.termer.tcpacketprotocol.transport.TlsTransport;
+import net.termer.tcpacketprotocol.transport.Transport;
+import net.termer.tcpacketprotocol.transport.TransportConnection;
+import net.termer.tcpacketprotocol.transport.TransportListener;
+import net.termer.tcpacketprotocol.util.LatencyHistogram;
+import net.termer.tcpacketprotocol.util.Streams;
 
 /**
  * Main TCPacketProtocol server class. Handles all server functions.
@@ -28,17 +55,39 @@ public class TCPacketServer implements AutoCloseable {
 	// Server settings
 	private TCPacketServerSettings _settings = new TCPacketServerSettings();
 	
-	// Server socket
-	private ServerSocket _server = null;
+	// Listener for new connections
+	private TransportListener _listener = null;
 	
 	// Executor pool for events
-	private ExecutorService _execs = null;
+	private ThreadPoolExecutor _execs = null;
+	// Timing and watchdog for handlers
+	private HandlerMonitor _monitor = new HandlerMonitor(-1, false, null);
+	// Acceptor and connection handler threads
+	private ArrayList<Thread> _threads = new ArrayList<Thread>();
+	
+	// Accepted sockets waiting for a connection handler thread
+	private LinkedBlockingQueue<TransportConnection> _accepted = new LinkedBlockingQueue<TransportConnection>();
+	// Connection handler threads that are waiting for an accepted socket
+	private Set<Thread> _idleThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+	// Amount of admitted connections, including ones that are still waiting for a thread
+	private AtomicInteger _admitted = new AtomicInteger(0);
+	// Amount of admitted connections for each address
+	private ConcurrentHashMap<InetAddress, Integer> _addressConns = new ConcurrentHashMap<InetAddress, Integer>();
+	// Amount of connections rejected by admission control
+	private AtomicLong _rejected = new AtomicLong(0);
+	// Amount of received frames that were larger than the max packet body size
+	private AtomicLong _oversized = new AtomicLong(0);
+	// Amount of received requests dropped because their deadline had already passed
+	private AtomicLong _expired = new AtomicLong(0);
+	// Accept rate token bucket, only used by the acceptor thread
+	private double _acceptTokens = 0;
+	private long _lastRefill = 0;
 	
 	// Handlers for replies
 	private ConcurrentHashMap<Integer, PacketReplyHandler> _replyHandlers = new ConcurrentHashMap<Integer, PacketReplyHandler>();
 	
 	// Whether the server is shut down
-	private boolean _shutDown = false;
+	private volatile boolean _shutDown = false;
 	
 	// Packet handlers
 	private CopyOnWriteArrayList<PacketHandler> _packetHandlers = new CopyOnWriteArrayList<PacketHandler>();
@@ -46,6 +95,10 @@ public class TCPacketServer implements AutoCloseable {
 	private CopyOnWriteArrayList<ConnectHandler> _connectHandlers = new CopyOnWriteArrayList<ConnectHandler>();
 	// Connect handlers
 	private CopyOnWriteArrayList<DisconnectHandler> _disconnectHandlers = new CopyOnWriteArrayList<DisconnectHandler>();
+	// Stream handlers
+	private CopyOnWriteArrayList<PacketStreamHandler> _streamHandlers = new CopyOnWriteArrayList<PacketStreamHandler>();
+	// Request handlers, by packet type
+	private ConcurrentHashMap<Integer, RequestHandler> _requestHandlers = new ConcurrentHashMap<Integer, RequestHandler>();
 	// Exception handlers
 	private CopyOnWriteArrayList<ExceptionHandler> _exceptionHandlers = new CopyOnWriteArrayList<ExceptionHandler>();
 	
@@ -107,12 +160,21 @@ public class TCPacketServer implements AutoCloseable {
 	}
 	
 	/**
-	 * Returns this server's ServerSocket object
+	 * Returns this server's ServerSocket object, or null if the server's transport does not use sockets
 	 * @return This server's ServerSocket
 	 * @since 1.0
 	 */
 	public ServerSocket serverSocket() {
-		return _server;
+		return _listener instanceof SocketListener ? ((SocketListener) _listener).serverSocket() : null;
+	}
+	
+	/**
+	 * Returns the listener this server accepts connections from
+	 * @return This server's listener
+	 * @since 1.2
+	 */
+	public TransportListener listener() {
+		return _listener;
 	}
 	
 	/**
@@ -121,7 +183,7 @@ public class TCPacketServer implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public boolean isClosed() {
-		return _server == null ? true : _server.isClosed();
+		return _listener == null ? true : _listener.isClosed();
 	}
 	
 	/**
@@ -155,7 +217,32 @@ public class TCPacketServer implements AutoCloseable {
 		return this;
 	}
 	/**
-	 * Registers a new packet reply handler
+	 * Registers a new streamed packet handler.
+	 * All handlers receive the same PacketStream, so usually only one should read from it.
+	 * @param handler The streamed packet handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServer streamHandler(PacketStreamHandler handler) {
+		_streamHandlers.add(handler);
+		return this;
+	}
+	/**
+	 * Registers the request handler for a packet type, replacing any previous one.
+	 * Packets of the type that expect a reply go to the request handler instead of packet handlers,
+	 * and the reply it completes with is sent through the connection's writer, so handlers can reply asynchronously without blocking a thread on the write.
+	 * @param type The packet type
+	 * @param handler The request handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServer requestHandler(short type, RequestHandler handler) {
+		_requestHandlers.put((int) type, handler);
+		return this;
+	}
+	/**
+	 * Registers a new packet reply handler that a reply from any connection can trigger.
+	 * Handlers for packets sent with ServerConnection.send() are registered on the connection instead, so only that connection's replies can trigger them.
 	 * @param packetId The ID of the packet the reply will be for
 	 * @param handler The reply handler
 	 * @return This, to be used fluently
@@ -184,11 +271,13 @@ public class TCPacketServer implements AutoCloseable {
 	public TCPacketServer triggerPacketHandlers(Packet pkt) {
 		if(_settings.blockingHandlers())
 			for(PacketHandler hdlr : _packetHandlers)
-				hdlr.handle(pkt);
+				_monitor.run(hdlr, () -> hdlr.handle(pkt));
 		else
 			for(PacketHandler hdlr : _packetHandlers)
 				_execs.execute(() -> {
-					hdlr.handle(pkt);
+					// Requests that expired while waiting for a thread are skipped
+					if(!pkt.isExpired())
+						_monitor.run(hdlr, () -> hdlr.handle(pkt));
 				});
 		
 		return this;
@@ -202,11 +291,11 @@ public class TCPacketServer implements AutoCloseable {
 	public TCPacketServer triggerConnectHandlers(ServerConnection connection) {
 		if(_settings.blockingHandlers())
 			for(ConnectHandler hdlr : _connectHandlers)
-				hdlr.handle(connection);
+				_monitor.run(hdlr, () -> hdlr.handle(connection));
 		else
 			for(ConnectHandler hdlr : _connectHandlers)
 				_execs.execute(() -> {
-					hdlr.handle(connection);
+					_monitor.run(hdlr, () -> hdlr.handle(connection));
 				});
 		
 		return this;
@@ -220,11 +309,11 @@ public class TCPacketServer implements AutoCloseable {
 	public TCPacketServer triggerDisconnectHandlers(ServerConnection connection) {
 		if(_settings.blockingHandlers())
 			for(DisconnectHandler hdlr : _disconnectHandlers)
-				hdlr.handle(connection);
+				_monitor.run(hdlr, () -> hdlr.handle(connection));
 		else
 			for(DisconnectHandler hdlr : _disconnectHandlers)
 				_execs.execute(() -> {
-					hdlr.handle(connection);
+					_monitor.run(hdlr, () -> hdlr.handle(connection));
 				});
 		
 		return this;
@@ -237,18 +326,74 @@ public class TCPacketServer implements AutoCloseable {
 	 * @since 1.0
 	 */
 	public TCPacketServer triggerPacketReplyHandler(int packetId, Packet pkt) {
-		// Check if handler exists
-		if(_replyHandlers.containsKey(packetId)) {
-			PacketReplyHandler hdlr = _replyHandlers.get(packetId);
+		// Remove the handler if it exists, so it can't also time out
+		PacketReplyHandler hdlr = _replyHandlers.remove(packetId);
+		if(hdlr != null)
+			runReplyHandler(hdlr, pkt, PacketReplyHandler.STATUS_REPLIED);
+		
+		return this;
+	}
+	/**
+	 * Triggers a packet reply event for a reply received on the specified connection.
+	 * Handlers registered on the connection are checked first, then handlers registered on the server.
+	 * @param conn The connection the reply was received on
+	 * @param packetId The ID of the packet this is a reply for
+	 * @param pkt The reply
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServer triggerPacketReplyHandler(ServerConnection conn, int packetId, Packet pkt) {
+		PacketReplyHandler hdlr = conn.replyHandlers().remove(packetId);
+		if(hdlr == null)
+			return triggerPacketReplyHandler(packetId, pkt);
+		
+		runReplyHandler(hdlr, pkt, PacketReplyHandler.STATUS_REPLIED);
+		return this;
+	}
+	
+	// Executes a reply handler
+	private void runReplyHandler(PacketReplyHandler hdlr, Packet pkt, int status) {
+		if(_settings.blockingHandlers())
+			hdlr.handle(pkt, status);
+		else
+			_execs.execute(() -> {
+				hdlr.handle(pkt, status);
+			});
+	}
+	
+	// Times out the expired handlers in a reply handler table
+	private void expireReplyHandlers(ConcurrentHashMap<Integer, PacketReplyHandler> handlers, Instant now) {
+		for(int id : handlers.keySet()) {
+			PacketReplyHandler hdlr = handlers.get(id);
 			
-			// Trigger event
-			if(_settings.blockingHandlers())
-				hdlr.handler.handle(pkt, false);
-			else
-				_execs.execute(() -> {
-					hdlr.handler.handle(pkt, false);
-				});
+			// Only execute the handler if this was the one to remove it, since a reply may have arrived in the meantime
+			if(hdlr != null && now.isAfter(hdlr.timeoutDate.toInstant()) && handlers.remove(id, hdlr))
+				runReplyHandler(hdlr, null, PacketReplyHandler.STATUS_TIMED_OUT);
 		}
+	}
+	
+	// Resolves all reply handlers of a lost connection at once, since their replies can no longer arrive
+	private void failReplyHandlers(ServerConnection conn) {
+		ConcurrentHashMap<Integer, PacketReplyHandler> handlers = conn.replyHandlers();
+		for(int id : handlers.keySet()) {
+			PacketReplyHandler hdlr = handlers.remove(id);
+			if(hdlr != null)
+				runReplyHandler(hdlr, null, PacketReplyHandler.STATUS_CONNECTION_LOST);
+		}
+	}
+	
+	/**
+	 * Triggers a streamed packet event.
+	 * Stream handlers are always executed in the handler pool, since they read from the connection's handler thread.
+	 * @param stream The streamed packet
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServer triggerStreamHandlers(PacketStream stream) {
+		for(PacketStreamHandler hdlr : _streamHandlers)
+			_execs.execute(() -> {
+				hdlr.handle(stream);
+			});
 		
 		return this;
 	}
@@ -271,6 +416,194 @@ public class TCPacketServer implements AutoCloseable {
 		return this;
 	}
 	
+	// Feeds a stream chunk to its stream, creating the stream and firing stream handlers if it's new.
+	// Throws if the stream had to be aborted because its reader fell behind, which only affects that stream.
+	private void feedStream(Packet chunk, HashMap<Integer, PacketStream> streams) throws IOException {
+		PacketStream stream = streams.get(chunk.id());
+		if(stream == null) {
+			// Don't bother buffering streams if nothing will handle them
+			if(_streamHandlers.isEmpty())
+				return;
+			
+			stream = new PacketStream((short) chunk.type(), chunk.id(), chunk.source(), _settings.streamBufferSize());
+			streams.put(chunk.id(), stream);
+			triggerStreamHandlers(stream);
+		}
+		
+		stream.feed(chunk.body());
+		if(chunk.isLastChunk()) {
+			streams.remove(chunk.id());
+			stream.end();
+		}
+	}
+	
+	// Decides whether to admit a new connection, reserving a slot for it if so
+	private boolean admit(TransportConnection conn) {
+		// Refill accept rate tokens
+		int rate = _settings.acceptRate();
+		if(rate > 0) {
+			long now = System.nanoTime();
+			int burst = _settings.acceptBurst() > 0 ? _settings.acceptBurst() : rate;
+			_acceptTokens = Math.min(burst, _acceptTokens + (now - _lastRefill) / 1e9 * rate);
+			_lastRefill = now;
+			
+			if(_acceptTokens < 1)
+				return false;
+		}
+		
+		// Check connection limits
+		InetAddress addr = conn.remoteAddress();
+		if(_admitted.get() >= _settings.maxConnections())
+			return false;
+		if(addr != null && _settings.maxConnectionsPerAddress() > 0 && _addressConns.getOrDefault(addr, 0) >= _settings.maxConnectionsPerAddress())
+			return false;
+		
+		if(rate > 0)
+			_acceptTokens--;
+		_admitted.incrementAndGet();
+		if(addr != null)
+			_addressConns.merge(addr, 1, Integer::sum);
+		return true;
+	}
+	// Applies socket options to an accepted connection if it uses a socket
+	private void configure(TransportConnection conn) throws IOException {
+		Socket socket = conn.socket();
+		if(socket == null)
+			return;
+		
+		socket.setTcpNoDelay(_settings.tcpNoDelay());
+		socket.setKeepAlive(_settings.keepAlive());
+		if(_settings.sendBufferSize() > 0)
+			socket.setSendBufferSize(_settings.sendBufferSize());
+	}
+	// Frees the slot of an admitted connection and closes it
+	private void release(TransportConnection conn) {
+		_admitted.decrementAndGet();
+		if(conn.remoteAddress() != null)
+			_addressConns.computeIfPresent(conn.remoteAddress(), (addr, count) -> count > 1 ? count - 1 : null);
+		
+		try {
+			conn.close();
+		} catch(IOException e) {
+			// Already closed
+		}
+	}
+	// Tells a client the server is busy and closes its connection
+	private void reject(TransportConnection conn) {
+		_rejected.incrementAndGet();
+		
+		try(TransportConnection c = conn) {
+			// Sending over TLS would mean handshaking on the acceptor thread, where a slow client could hold up accepting, so just hang up
+			if(!(c.socket() instanceof SSLSocket))
+				Packet.control(Packet.CONTROL_BUSY).sendTo(c.outputStream());
+		} catch(IOException e) {
+			// The client is being turned away anyway
+		}
+	}
+	
+	/**
+	 * Returns the amount of connections that have been rejected by admission control since this server was created
+	 * @return The amount of rejected connections
+	 * @since 1.2
+	 */
+	public long rejectedConnections() {
+		return _rejected.get();
+	}
+	
+	/**
+	 * Returns the amount of frames received since this server was created that were larger than the max packet body size, and were skipped or caused their connection to be closed
+	 * @return The amount of oversized frames
+	 * @since 1.2
+	 */
+	public long oversizedFrames() {
+		return _oversized.get();
+	}
+	
+	/**
+	 * Returns the latency histograms of this server's handlers, by handler class.
+	 * Packet, request, connect, and disconnect handler invocations are timed, including packet handlers registered on connections.
+	 * @return The handler latency histograms
+	 * @since 1.2
+	 */
+	public Map<Class<?>, LatencyHistogram> handlerStats() {
+		return _monitor.histograms();
+	}
+	/**
+	 * Returns the amount of handler invocations that were reported as slow since this server was started
+	 * @return The amount of slow handler invocations
+	 * @since 1.2
+	 */
+	public long slowHandlerInvocations() {
+		return _monitor.slowInvocations();
+	}
+	
+	/**
+	 * Returns the amount of requests received since this server was created that were dropped without running handlers, because their deadline had already passed
+	 * @return The amount of expired requests
+	 * @since 1.2
+	 */
+	public long expiredRequests() {
+		return _expired.get();
+	}
+	
+	// Runs the packet handlers registered on a connection
+	private void triggerConnectionPacketHandlers(ServerConnection conn, Packet pkt) {
+		for(PacketHandler hdlr : conn.packetHandlers())
+			_monitor.run(hdlr, () -> hdlr.handle(pkt));
+	}
+	
+	// Reports a slow handler invocation, calling exception handlers directly since handler threads may all be busy
+	private void reportSlowHandler(Exception ex) {
+		if(_settings.printErrors())
+			ex.printStackTrace();
+		
+		for(ExceptionHandler hdlr : _exceptionHandlers)
+			hdlr.handle(ex);
+	}
+	
+	// Runs a request handler, and sends the reply through the connection's writer once it completes
+	private void handleRequest(RequestHandler hdlr, Packet pkt, ServerConnection conn) {
+		AtomicReference<CompletionStage<Packet>> result = new AtomicReference<CompletionStage<Packet>>();
+		try {
+			_monitor.run(hdlr, () -> result.set(hdlr.handle(pkt)));
+		} catch(Exception e) {
+			triggerExceptionHandler(e);
+			return;
+		}
+		CompletionStage<Packet> stage = result.get();
+		if(stage == null)
+			return;
+		
+		stage.whenComplete((reply, error) -> {
+			if(error != null) {
+				Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+				triggerExceptionHandler(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+				return;
+			}
+			
+			// Nobody is waiting for the reply if the request expired in the meantime
+			if(reply == null || pkt.isExpired())
+				return;
+			
+			try {
+				conn.writer().write(reply.setReplyTo(pkt.id()));
+			} catch(IOException e) {
+				triggerExceptionHandler(e);
+			}
+		});
+	}
+	
+	// Handles a control packet received from a connection
+	private void handleControl(Packet pkt, ServerConnection conn) throws IOException {
+		if(pkt.type() == Packet.CONTROL_PING) {
+			conn.writer().write(Packet.control(Packet.CONTROL_PONG));
+		} else if(pkt.type() == Packet.CONTROL_HELLO) {
+			// Answer with this side's handshake using the base codec, then switch to the negotiated codec for everything after it
+			PacketCodec codec = conn.codec();
+			conn.writer().switchCodec(codec.hello(Packet.CONTROL_HELLO_ACK), codec.negotiate(pkt));
+		}
+	}
+	
 	// Safely read a byte and return -1 if there's an error
 	private int safeReadByte(InputStream in) {
 		try {
@@ -290,10 +623,20 @@ public class TCPacketServer implements AutoCloseable {
 		_shutDown = false;
 		
 		// Start TCP server
-		_server = new ServerSocket(_settings.bindPort(), 10, InetAddress.getByName(_settings.bindAddress()));
+		Transport transport = _settings.transport();
+		if(transport == null)
+			transport = (_settings.tlsContext() == null ? new TcpTransport() : new TlsTransport(_settings.tlsContext()))
+					.reuseAddress(_settings.reuseAddress())
+					.reusePort(_settings.reusePort())
+					.receiveBufferSize(_settings.receiveBufferSize());
+		_listener = transport.listen(_settings.bindAddress(), _settings.bindPort(), _settings.backlog());
 		
 		// Setup event executor thread pool
-		_execs = Executors.newFixedThreadPool(_settings.packetHandlerPoolSize());
+		_execs = new ThreadPoolExecutor(_settings.packetHandlerPoolSize(), _settings.packetHandlerPoolSize(), 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		
+		// Setup handler timing and the slow handler watchdog
+		_monitor = new HandlerMonitor(_settings.slowHandlerThreshold(), _settings.interruptSlowHandlers(), this::reportSlowHandler);
+		_monitor.start();
 		
 		// Setup reply timeout timer
 		_replyTimeoutTimer = new Timer();
@@ -302,23 +645,62 @@ public class TCPacketServer implements AutoCloseable {
 				Instant now = Instant.now();
 				
 				// Loop through handlers and remove if they've expired
-				for(int id: _replyHandlers.keySet()) {
-					PacketReplyHandler hdlr = _replyHandlers.get(id);
-					if(now.isAfter(hdlr.timeoutDate.toInstant())) {
-						// Execute handler with timed out status
-						if(_settings.blockingHandlers())
-							hdlr.handler.handle(null, true);
-						else
-							_execs.execute(() -> {
-								hdlr.handler.handle(null, true);
-							});
-						
-						// Remove the handler
-						_replyHandlers.remove(id);
+				expireReplyHandlers(_replyHandlers, now);
+				for(ServerConnection conn : _connections)
+					expireReplyHandlers(conn.replyHandlers(), now);
+			}
+		}, 0, 1000);
+		
+		// Setup heartbeats and stalled connection reaping
+		int heartbeat = _settings.heartbeatInterval();
+		int writeIdle = _settings.writeIdleTimeout();
+		if(heartbeat > 0 || writeIdle > 0) {
+			int period = Math.max(50, Math.min(heartbeat > 0 ? heartbeat : writeIdle, writeIdle > 0 ? writeIdle : heartbeat) / 2);
+			_replyTimeoutTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					for(ServerConnection conn : _connections) {
+						try {
+							if(writeIdle > 0 && conn.writer().stalledTime() >= writeIdle)
+								conn.connection().close();
+							else if(heartbeat > 0 && conn.writer().idleTime() >= heartbeat)
+								conn.writer().write(Packet.control(Packet.CONTROL_PING));
+						} catch(Exception e) {
+							// The connection's read loop will notice it's gone
+						}
+					}
+				}
+			}, period, period);
+		}
+		
+		// Create the acceptor thread, which admits connections or turns them away
+		_acceptTokens = _settings.acceptBurst() > 0 ? _settings.acceptBurst() : _settings.acceptRate();
+		_lastRefill = System.nanoTime();
+		Thread acceptor = new Thread(() -> {
+			while(!_shutDown) {
+				try {
+					TransportConnection conn = _listener.accept();
+					if(admit(conn))
+						_accepted.add(conn);
+					else
+						reject(conn);
+				} catch(Exception e) {
+					// Errors caused by shutting down the server aren't worth reporting
+					if(_shutDown)
+						break;
+					
+					if(_settings.printErrors()) {
+						System.err.println("Error in TCPacketServer acceptor:");
+						e.printStackTrace();
 					}
+					
+					// Trigger exception handlers
+					triggerExceptionHandler(e);
 				}
 			}
-		}, 0, 1000);
+		});
+		acceptor.setName("TCPacketServer-acceptor");
+		_threads.add(acceptor);
+		acceptor.start();
 		
 		for(int i = 0; i < _settings.maxConnections(); i++) {
 			int threadId = i;
@@ -327,93 +709,149 @@ public class TCPacketServer implements AutoCloseable {
 			Thread thread = new Thread(() -> {
 				// Loop while the server is running
 				while(!_shutDown) {
-					try(ServerConnection sock = new ServerConnection(_server.accept(), this)) {
+					// Wait for an admitted connection, registering as idle first so closing the server can interrupt the wait
+					TransportConnection accepted = null;
+					_idleThreads.add(Thread.currentThread());
+					try {
+						if(_shutDown)
+							break;
+						accepted = _accepted.take();
+					} catch(InterruptedException e) {
+						break;
+					} finally {
+						_idleThreads.remove(Thread.currentThread());
+					}
+					
+					// The server was closed while this thread was taking the connection
+					if(_shutDown) {
+						Thread.interrupted();
+						release(accepted);
+						break;
+					}
+					
+					try(ServerConnection sock = new ServerConnection(accepted, this)) {
+						configure(accepted);
+						
+						// Close the connection if nothing is received for too long
+						if(_settings.readIdleTimeout() > 0)
+							accepted.readTimeout(_settings.readIdleTimeout());
+						
 						// Add to connections
 						_connections.add(sock);
 						
 						// Fire connect handlers
-						if(_settings.blockingHandlers())
-							for(ConnectHandler hdlr : _connectHandlers)
-								hdlr.handle(sock);
-						else
-							for(ConnectHandler hdlr : _connectHandlers)
-								_execs.execute(() -> {
-									hdlr.handle(sock);
-								});
+						triggerConnectHandlers(sock);
 						
 						// Buffer the input
-						BufferedInputStream in = new BufferedInputStream(sock.socket().getInputStream());
+						BufferedInputStream in = new BufferedInputStream(accepted.inputStream());
 						
-						// Buffer for packets
-						int leftToRead = 0;
-						int leftToSkip = 0;
-						byte[] pktBuf = new byte[] {};
+						// Streamed packets that are still being received
+						HashMap<Integer, PacketStream> streams = new HashMap<Integer, PacketStream>();
 						
 						// Input loop
 						int b = 0;
-						while(!sock.socket().isClosed() && (b = safeReadByte(in)) > -1) {
-							if(leftToSkip < 1 && leftToRead > 0) {
-								pktBuf[pktBuf.length - leftToRead] = (byte) b;
-								leftToRead--;
+						while(!accepted.isClosed() && (b = safeReadByte(in)) > -1) {
+							// Read the next frame, treating errors in the middle of one like the end of the stream
+							byte[] pktBuf;
+							try {
+								int size = sock.codec().readFrameSize(b, in);
+								if(size < 0) {
+									triggerExceptionHandler(new MalformedPacketException("Invalid frame size: "+size));
+									break;
+								}
 								
-								// If finished, parse and handle packet
-								if(leftToRead < 1) {
-									try {
-										// Parse the packet
-										Packet pkt = Packet.parsePacket(pktBuf).source(sock.socket());
-										
-										// Fire reply handler if packet is a reply
-										if(pkt.isReply()) {
-											triggerPacketReplyHandler(pkt.replyTo(), pkt);
-											_replyHandlers.remove(pkt.replyTo());
-										}
-										
-										// Send it to handlers
-										triggerPacketHandlers(pkt);
-										if(_settings.blockingHandlers())
-											sock.triggerPacketHandlers(pkt);
-										else
-											_execs.execute(() -> {
-												sock.triggerPacketHandlers(pkt);
-											});
-									} catch(Exception e) {
-										if(_settings.printErrors()) {
-											System.err.println("Error in TCPacketServer loop #"+threadId+':');
-											e.printStackTrace();
-										}
-										
-										// Trigger exception handlers
-										triggerExceptionHandler(e);
+								// Frames that are too large are never buffered
+								if(size > _settings.maxPacketBodySize()) {
+									_oversized.incrementAndGet();
+									if(_settings.oversizedFramePolicy() == TCPacketServerSettings.OVERSIZED_CLOSE) {
+										triggerExceptionHandler(new MalformedPacketException("Closing connection that sent an oversized frame of "+size+" bytes"));
+										break;
 									}
+									
+									Streams.skipFully(in, size);
+									continue;
 								}
-							} else if(leftToSkip < 1) {
-								// Get length of next packet
-								byte[] lenBytes = new byte[] { (byte) b, (byte) in.read(), (byte) in.read(), (byte) in.read() };
-								int size = ByteBuffer.wrap(lenBytes).getInt();
 								
-								// Determine how much needs to be read or skipped
-								if(size > _settings.maxPacketBodySize()) {
-									leftToSkip = size;
-								} else {
-									leftToRead = size;
-									pktBuf = new byte[size];
+								pktBuf = new byte[size];
+								Streams.readFully(in, pktBuf);
+							} catch(IOException e) {
+								break;
+							}
+							
+							try {
+								// Parse the packet
+								Packet pkt = sock.codec().decode(pktBuf).source(sock.socket()).writer(sock.writer());
+								
+								// Control packets are handled by the server itself
+								if(pkt.isControl()) {
+									handleControl(pkt, sock);
+									continue;
+								}
+								
+								// Stream chunks go to their stream instead of packet handlers
+								if(pkt.isStreamChunk()) {
+									feedStream(pkt, streams);
+									continue;
+								}
+								
+								// Nobody is waiting for the reply to a request whose deadline passed
+								if(pkt.isExpired()) {
+									_expired.incrementAndGet();
+									continue;
+								}
+								
+								// Requests of types with a request handler go to it instead of packet handlers
+								RequestHandler reqHdlr = pkt.expectingReply() ? _requestHandlers.get(pkt.type()) : null;
+								if(reqHdlr != null) {
+									if(_settings.blockingHandlers())
+										handleRequest(reqHdlr, pkt, sock);
+									else
+										_execs.execute(() -> {
+											if(!pkt.isExpired())
+												handleRequest(reqHdlr, pkt, sock);
+										});
+									continue;
+								}
+								
+								// Fire reply handler if packet is a reply
+								if(pkt.isReply())
+									triggerPacketReplyHandler(sock, pkt.replyTo(), pkt);
+								
+								// Send it to handlers
+								triggerPacketHandlers(pkt);
+								if(_settings.blockingHandlers())
+									triggerConnectionPacketHandlers(sock, pkt);
+								else
+									_execs.execute(() -> {
+										if(!pkt.isExpired())
+											triggerConnectionPacketHandlers(sock, pkt);
+									});
+							} catch(Exception e) {
+								if(_settings.printErrors()) {
+									System.err.println("Error in TCPacketServer loop #"+threadId+':');
+									e.printStackTrace();
 								}
+								
+								// Trigger exception handlers
+								triggerExceptionHandler(e);
 							}
 						}
 						
+						// Fail streams that were cut off
+						for(PacketStream stream : streams.values())
+							stream.fail(new IOException("Connection closed before stream ended"));
+						
 						// Remove connection
 						_connections.remove(sock);
+						failReplyHandlers(sock);
 						
 						// Fire disconnect handlers
-						if(_settings.blockingHandlers())
-							for(DisconnectHandler hdlr : _disconnectHandlers)
-								hdlr.handle(sock);
-						else
-							for(DisconnectHandler hdlr : _disconnectHandlers)
-								_execs.execute(() -> {
-									hdlr.handle(sock);
-								});
+						triggerDisconnectHandlers(sock);
 					} catch(Exception e) {
+						// Errors caused by shutting down the server aren't worth reporting
+						if(_shutDown)
+							break;
+						
 						if(_settings.printErrors()) {
 							System.err.println("Error in TCPacketServer loop #"+threadId+':');
 							e.printStackTrace();
@@ -421,33 +859,124 @@ public class TCPacketServer implements AutoCloseable {
 						
 						// Trigger exception handlers
 						triggerExceptionHandler(e);
+					} finally {
+						release(accepted);
 					}
 				}
 			});
 			thread.setName("TCPacketServer-"+i);
 			
 			// Start thread
+			_threads.add(thread);
 			thread.start();
 		}
 		
 		return this;
 	}
 	
+	// Returns whether all handler tasks and queued outgoing packets are finished
+	private boolean isDrained() {
+		if(_execs != null && (_execs.getActiveCount() > 0 || !_execs.getQueue().isEmpty()))
+			return false;
+		for(ServerConnection conn : _connections)
+			if(!conn.writer().isClosed() && conn.writer().stalledTime() > 0)
+				return false;
+		
+		return true;
+	}
+	
 	/**
-	 * Closes this server and its resources
+	 * Closes this server and its resources immediately.
+	 * Connected clients are still sent a CONTROL_GOAWAY packet, but packets that have not been sent yet may be lost.
+	 * Queued handlers, including disconnect handlers, still run after the server is closed, and running handlers are not interrupted.
 	 * @throws IOException If closing server resources fails
 	 * @since 1.0
 	 */
 	public void close() throws IOException {
+		close(0);
+	}
+	/**
+	 * Gracefully shuts down this server.
+	 * The server stops accepting connections and sends connected clients a CONTROL_GOAWAY packet,
+	 * then waits for queued handlers to run and for outgoing packets to be sent until the timeout is reached.
+	 * Afterwards, all connections are closed, and if the timeout was positive, handlers that are still running are interrupted and queued handlers are dropped.
+	 * With a timeout of 0, queued handlers still run after this returns, like with close().
+	 * Connections can still receive packets while the server is draining, so replies to in-flight requests are not lost.
+	 * @param timeout The max time in milliseconds to wait for the server to drain
+	 * @throws IOException If closing server resources fails
+	 * @since 1.2
+	 */
+	public void close(long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + Math.max(0, timeout);
 		_shutDown = true;
 		
-		// Close resources
-		if(_server != null && !_server.isClosed())
-			_server.close();
+		// Stop accepting connections
+		if(_listener != null && !_listener.isClosed())
+			_listener.close();
+		
+		// Tell clients to stop sending new requests
+		for(ServerConnection conn : _connections) {
+			try {
+				conn.writer().write(Packet.control(Packet.CONTROL_GOAWAY));
+			} catch(IOException e) {
+				// Already disconnected
+			}
+		}
+		
+		// Wait for handlers and outgoing packets to finish
+		try {
+			while(!isDrained() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		// Close connections, which stops their threads
+		for(ServerConnection conn : _connections) {
+			try {
+				// Past the deadline, don't wait for the writer either
+				if(System.currentTimeMillis() >= deadline)
+					conn.connection().close();
+				conn.disconnect();
+			} catch(IOException e) {
+				// Already disconnected
+			}
+		}
+		
+		// Wake up connection threads that are waiting for a connection, so they can exit
+		for(Thread thread : _idleThreads)
+			thread.interrupt();
+		
+		// Let connection threads fire their disconnect handlers before the executor is shut down
+		try {
+			for(Thread thread : _threads)
+				thread.join(Math.max(100, Math.min(deadline - System.currentTimeMillis(), 1000)));
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_threads.clear();
 		_connections.clear();
-		if(_execs != null)
+		
+		// Close connections that never got a thread
+		TransportConnection waiting;
+		while((waiting = _accepted.poll()) != null)
+			release(waiting);
+		
+		// Only force the executor to stop if the caller was willing to wait for it
+		if(_execs != null) {
 			_execs.shutdown();
+			if(timeout > 0) {
+				try {
+					if(!_execs.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+						_execs.shutdownNow();
+				} catch(InterruptedException e) {
+					_execs.shutdownNow();
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
 		if(_replyTimeoutTimer != null)
 			_replyTimeoutTimer.cancel();
+		_monitor.close();
 	}
 }
\ No newline at end of file
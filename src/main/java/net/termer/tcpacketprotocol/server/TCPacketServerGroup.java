@@ -0,0 +1,268 @@
+package net.termer.tcpacketprotocol.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.termer.tcpacketprotocol.ExceptionHandler;
+import net.termer.tcpacketprotocol.PacketHandler;
+import net.termer.tcpacketprotocol.PacketStreamHandler;
+import net.termer.tcpacketprotocol.RequestHandler;
+
+/**
+ * Group of TCPacketServer shards listening on the same address and port using SO_REUSEPORT.
+ * The operating system balances incoming connections between the shards, and each shard has its own acceptor, connection threads, handler executor, and connection registry,
+ * so shards do not contend with each other when accepting or handling connections.
+ * Connection limits and admission control apply to each shard separately.
+ * Requires Java 9 or newer and a platform that supports SO_REUSEPORT.
+ * @author termer
+ * @since 1.2
+ */
+public class TCPacketServerGroup implements AutoCloseable {
+	// The shards
+	private final TCPacketServer[] _shards;
+	
+	/**
+	 * Creates a new TCPacketServerGroup.
+	 * Shards use a copy of the provided settings with SO_REUSEPORT enabled, so the provided settings are not changed.
+	 * @param shards The amount of shards to create
+	 * @param settings The settings for all shards
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup(int shards, TCPacketServerSettings settings) {
+		if(shards < 1)
+			throw new IllegalArgumentException("Must have at least one shard");
+		
+		TCPacketServerSettings shardSettings = settings.copy().reusePort(true);
+		_shards = new TCPacketServer[shards];
+		for(int i = 0; i < shards; i++)
+			_shards[i] = new TCPacketServer(shardSettings);
+	}
+	/**
+	 * Creates a new TCPacketServerGroup with one shard for each available processor.
+	 * Shards use a copy of the provided settings with SO_REUSEPORT enabled, so the provided settings are not changed.
+	 * @param settings The settings for all shards
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup(TCPacketServerSettings settings) {
+		this(Runtime.getRuntime().availableProcessors(), settings);
+	}
+	
+	/**
+	 * Returns this group's shards
+	 * @return This group's shards
+	 * @since 1.2
+	 */
+	public TCPacketServer[] shards() {
+		return _shards.clone();
+	}
+	
+	/**
+	 * Returns all current connections of all shards
+	 * @return All current server connections
+	 * @since 1.2
+	 */
+	public ServerConnection[] connections() {
+		ArrayList<ServerConnection> conns = new ArrayList<ServerConnection>();
+		for(TCPacketServer shard : _shards)
+			for(ServerConnection conn : shard.connections())
+				conns.add(conn);
+		
+		return conns.toArray(new ServerConnection[0]);
+	}
+	
+	/**
+	 * Returns the amount of connections that have been rejected by admission control on all shards
+	 * @return The amount of rejected connections
+	 * @since 1.2
+	 */
+	public long rejectedConnections() {
+		long rejected = 0;
+		for(TCPacketServer shard : _shards)
+			rejected += shard.rejectedConnections();
+		
+		return rejected;
+	}
+	
+	/**
+	 * Returns the amount of oversized frames received by all shards
+	 * @return The amount of oversized frames
+	 * @since 1.2
+	 */
+	public long oversizedFrames() {
+		long oversized = 0;
+		for(TCPacketServer shard : _shards)
+			oversized += shard.oversizedFrames();
+		
+		return oversized;
+	}
+	
+	/**
+	 * Returns the amount of expired requests dropped by all shards
+	 * @return The amount of expired requests
+	 * @since 1.2
+	 */
+	public long expiredRequests() {
+		long expired = 0;
+		for(TCPacketServer shard : _shards)
+			expired += shard.expiredRequests();
+		
+		return expired;
+	}
+	
+	/**
+	 * Returns the amount of handler invocations that were reported as slow by all shards
+	 * @return The amount of slow handler invocations
+	 * @since 1.2
+	 */
+	public long slowHandlerInvocations() {
+		long slow = 0;
+		for(TCPacketServer shard : _shards)
+			slow += shard.slowHandlerInvocations();
+		
+		return slow;
+	}
+	
+	/**
+	 * Returns whether all shards are closed
+	 * @return Whether this group is closed
+	 * @since 1.2
+	 */
+	public boolean isClosed() {
+		for(TCPacketServer shard : _shards)
+			if(!shard.isClosed())
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Registers a new packet handler on all shards
+	 * @param handler The packet handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup packetHandler(PacketHandler handler) {
+		for(TCPacketServer shard : _shards)
+			shard.packetHandler(handler);
+		return this;
+	}
+	/**
+	 * Registers a new connect handler on all shards
+	 * @param handler The connect handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup connectHandler(ConnectHandler handler) {
+		for(TCPacketServer shard : _shards)
+			shard.connectHandler(handler);
+		return this;
+	}
+	/**
+	 * Registers a new disconnect handler on all shards
+	 * @param handler The disconnect handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup disconnectHandler(DisconnectHandler handler) {
+		for(TCPacketServer shard : _shards)
+			shard.disconnectHandler(handler);
+		return this;
+	}
+	/**
+	 * Registers a new streamed packet handler on all shards
+	 * @param handler The streamed packet handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup streamHandler(PacketStreamHandler handler) {
+		for(TCPacketServer shard : _shards)
+			shard.streamHandler(handler);
+		return this;
+	}
+	/**
+	 * Registers the request handler for a packet type on all shards
+	 * @param type The packet type
+	 * @param handler The request handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup requestHandler(short type, RequestHandler handler) {
+		for(TCPacketServer shard : _shards)
+			shard.requestHandler(type, handler);
+		return this;
+	}
+	/**
+	 * Registers a new exception handler on all shards
+	 * @param handler The exception handler
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup exceptionHandler(ExceptionHandler handler) {
+		for(TCPacketServer shard : _shards)
+			shard.exceptionHandler(handler);
+		return this;
+	}
+	
+	/**
+	 * Starts all shards
+	 * @return This, to be used fluently
+	 * @throws IOException If starting any shard fails, in which case already started shards are closed
+	 * @since 1.2
+	 */
+	public TCPacketServerGroup start() throws IOException {
+		try {
+			for(TCPacketServer shard : _shards)
+				shard.start();
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Closes all shards immediately
+	 * @throws IOException If closing any shard fails
+	 * @since 1.2
+	 */
+	public void close() throws IOException {
+		close(0);
+	}
+	/**
+	 * Gracefully shuts down all shards at the same time, using the same timeout for each
+	 * @param timeout The max time in milliseconds to wait for the shards to drain
+	 * @throws IOException If closing any shard fails, with errors from other shards as suppressed exceptions
+	 * @since 1.2
+	 */
+	public void close(long timeout) throws IOException {
+		AtomicReference<IOException> error = new AtomicReference<IOException>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		
+		for(TCPacketServer shard : _shards) {
+			Thread thread = new Thread(() -> {
+				try {
+					shard.close(timeout);
+				} catch(IOException e) {
+					// Report the first error, with errors from other shards attached to it
+					if(!error.compareAndSet(null, e))
+						error.get().addSuppressed(e);
+				}
+			});
+			thread.setName("TCPacketServerGroup-close");
+			threads.add(thread);
+			thread.start();
+		}
+		
+		try {
+			for(Thread thread : threads)
+				thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if(error.get() != null)
+			throw error.get();
+	}
+}
@@ -1,11 +1,27 @@
 package net.termer.tcpacketprotocol.server;
 
+import javax.net.ssl.SSLContext;
+
+import net.termer.tcpacketprotocol.PacketStream;
+import net.termer.tcpacketprotocol.transport.Transport;
+
 /**
  * Configuration class for TCPacketServer class.
  * @author termer
  * @since 1.0
  */
-public class TCPacketServerSettings {
+public class TCPacketServerSettings implements Cloneable {
+	/**
+	 * Oversized frame policy that discards frames larger than the max packet body size and keeps reading the connection
+	 * @since 1.2
+	 */
+	public static final int OVERSIZED_SKIP = 0;
+	/**
+	 * Oversized frame policy that closes connections that send a frame larger than the max packet body size
+	 * @since 1.2
+	 */
+	public static final int OVERSIZED_CLOSE = 1;
+	
 	// Max packet body size
 	private int _maxPktBody = 1024;
 	private int _maxConns = 20;
@@ -14,6 +30,28 @@ public class TCPacketServerSettings {
 	private int _pktHandlePool = 10;
 	private boolean _blockingHdlrs = false;
 	private boolean _printErrs = false;
+	private int _compressThreshold = -1;
+	private int _streamChunkSize = 1000;
+	private int _streamBufferSize = PacketStream.DEFAULT_BUFFER_SIZE;
+	private int _heartbeatInterval = -1;
+	private int _readIdleTimeout = -1;
+	private int _writeIdleTimeout = -1;
+	private int _backlog = 10;
+	private int _maxConnsPerAddr = -1;
+	private int _acceptRate = -1;
+	private int _acceptBurst = -1;
+	private boolean _tcpNoDelay = true;
+	private int _sendBufSize = -1;
+	private int _receiveBufSize = -1;
+	private boolean _keepAlive = false;
+	private boolean _reuseAddr = true;
+	private boolean _reusePort = false;
+	private Transport _transport = null;
+	private SSLContext _tlsContext = null;
+	private boolean _checksums = true;
+	private int _oversizedPolicy = OVERSIZED_SKIP;
+	private int _slowHandlerThreshold = -1;
+	private boolean _interruptSlowHandlers = false;
 	
 	/**
 	 * Returns the max packet body size in bytes.
@@ -78,6 +116,216 @@ public class TCPacketServerSettings {
 	public boolean printErrors() {
 		return _printErrs;
 	}
+	/**
+	 * Returns the minimum body size in bytes at which outgoing packet bodies are compressed, or -1 if compression is disabled.
+	 * Bodies are only sent compressed if compressing them actually saves space.
+	 * Default: -1
+	 * @return The minimum body size to compress
+	 * @since 1.2
+	 */
+	public int compressionThreshold() {
+		return _compressThreshold;
+	}
+	/**
+	 * Returns the max amount of bytes sent in each chunk of a streamed packet.
+	 * Chunks plus their 7 byte header must fit in the receiving side's max packet body size.
+	 * Default: 1000
+	 * @return The max stream chunk size
+	 * @since 1.2
+	 */
+	public int streamChunkSize() {
+		return _streamChunkSize;
+	}
+	/**
+	 * Returns the max amount of bytes of a streamed packet that are buffered while waiting to be read.
+	 * If a stream's reader falls further behind than this, the stream is aborted instead of stopping the connection from reading anything else.
+	 * Default: 1048576
+	 * @return The stream buffer size
+	 * @since 1.2
+	 */
+	public int streamBufferSize() {
+		return _streamBufferSize;
+	}
+	/**
+	 * Returns the time in milliseconds a connection can go without writing anything before a ping is sent to keep it alive, or -1 if heartbeats are disabled.
+	 * Pings are answered with pongs automatically, so a peer with a read idle timeout longer than this interval will not time out a healthy connection.
+	 * Default: -1
+	 * @return The heartbeat interval
+	 * @since 1.2
+	 */
+	public int heartbeatInterval() {
+		return _heartbeatInterval;
+	}
+	/**
+	 * Returns the time in milliseconds a connection can go without receiving anything before it is closed, or -1 to never close idle connections.
+	 * Default: -1
+	 * @return The read idle timeout
+	 * @since 1.2
+	 */
+	public int readIdleTimeout() {
+		return _readIdleTimeout;
+	}
+	/**
+	 * Returns the time in milliseconds queued packets can go without being written before the connection is closed, or -1 to never close stalled connections.
+	 * This catches peers that have stopped reading, which would otherwise block writes forever.
+	 * Default: -1
+	 * @return The write idle timeout
+	 * @since 1.2
+	 */
+	public int writeIdleTimeout() {
+		return _writeIdleTimeout;
+	}
+	/**
+	 * Returns the max amount of pending connections the operating system will queue before they are accepted.
+	 * Default: 10
+	 * @return The accept backlog
+	 * @since 1.2
+	 */
+	public int backlog() {
+		return _backlog;
+	}
+	/**
+	 * Returns the max amount of connections allowed from a single IP address, or -1 for no limit.
+	 * Default: -1
+	 * @return The per address connection limit
+	 * @since 1.2
+	 */
+	public int maxConnectionsPerAddress() {
+		return _maxConnsPerAddr;
+	}
+	/**
+	 * Returns the max amount of new connections accepted per second, or -1 for no limit.
+	 * Connections over the limit are turned away with a CONTROL_BUSY packet, as are connections over maxConnections() or maxConnectionsPerAddress().
+	 * TLS connections are closed without one, since sending it would mean handshaking on the thread that accepts connections.
+	 * Default: -1
+	 * @return The accept rate
+	 * @since 1.2
+	 */
+	public int acceptRate() {
+		return _acceptRate;
+	}
+	/**
+	 * Returns the max amount of new connections that can be accepted at once before the accept rate applies, or -1 to use the accept rate.
+	 * Default: -1
+	 * @return The accept burst size
+	 * @since 1.2
+	 */
+	public int acceptBurst() {
+		return _acceptBurst;
+	}
+	/**
+	 * Returns whether TCP_NODELAY is enabled on accepted connections, which disables Nagle's algorithm so small packets are sent immediately instead of being delayed to be combined with later ones.
+	 * Default: true
+	 * @return Whether TCP_NODELAY is enabled
+	 * @since 1.2
+	 */
+	public boolean tcpNoDelay() {
+		return _tcpNoDelay;
+	}
+	/**
+	 * Returns the socket send buffer size (SO_SNDBUF) in bytes, or -1 to use the operating system's default.
+	 * Default: -1
+	 * @return The SO_SNDBUF size
+	 * @since 1.2
+	 */
+	public int sendBufferSize() {
+		return _sendBufSize;
+	}
+	/**
+	 * Returns the socket receive buffer size (SO_RCVBUF) in bytes, or -1 to use the operating system's default.
+	 * Default: -1
+	 * @return The SO_RCVBUF size
+	 * @since 1.2
+	 */
+	public int receiveBufferSize() {
+		return _receiveBufSize;
+	}
+	/**
+	 * Returns whether TCP keepalive probes (SO_KEEPALIVE) are enabled.
+	 * Default: false
+	 * @return Whether SO_KEEPALIVE is enabled
+	 * @since 1.2
+	 */
+	public boolean keepAlive() {
+		return _keepAlive;
+	}
+	/**
+	 * Returns whether SO_REUSEADDR is enabled on the server socket, allowing the server to bind while old connections to its port are still in TIME_WAIT.
+	 * Default: true
+	 * @return Whether SO_REUSEADDR is enabled
+	 * @since 1.2
+	 */
+	public boolean reuseAddress() {
+		return _reuseAddr;
+	}
+	/**
+	 * Returns whether SO_REUSEPORT is enabled on the server socket, allowing multiple server sockets to bind the same address and port.
+	 * Requires Java 9 or newer and a platform that supports it, otherwise starting the server fails.
+	 * Default: false
+	 * @return Whether SO_REUSEPORT is enabled
+	 * @since 1.2
+	 */
+	public boolean reusePort() {
+		return _reusePort;
+	}
+	/**
+	 * Returns the transport connections are made over, or null to use TCP.
+	 * Socket options only apply to transports that use sockets, and SO_REUSEADDR, SO_REUSEPORT, and the receive buffer size are only set by the default TCP transport.
+	 * Default: null
+	 * @return The transport
+	 * @since 1.2
+	 */
+	public Transport transport() {
+		return _transport;
+	}
+	/**
+	 * Returns the SSLContext used to encrypt connections with TLS, or null to not use TLS.
+	 * Only used by the default transport, for more control use a TlsTransport.
+	 * Default: null
+	 * @return The TLS context
+	 * @since 1.2
+	 */
+	public SSLContext tlsContext() {
+		return _tlsContext;
+	}
+	/**
+	 * Returns whether clients are allowed to use CRC32C frame checksums.
+	 * Checksums are only used for clients that ask for them.
+	 * Default: true
+	 * @return Whether clients are allowed to use frame checksums
+	 * @since 1.2
+	 */
+	public boolean checksums() {
+		return _checksums;
+	}
+	/**
+	 * Returns what happens when a client sends a frame larger than the max packet body size.
+	 * Oversized frames are never buffered, and are always counted.
+	 * Default: OVERSIZED_SKIP
+	 * @return The oversized frame policy
+	 * @since 1.2
+	 */
+	public int oversizedFramePolicy() {
+		return _oversizedPolicy;
+	}
+	/**
+	 * Returns the time in milliseconds after which a running handler invocation is reported to exception handlers as a SlowHandlerException, or -1 if handlers are only timed.
+	 * Default: -1
+	 * @return The slow handler threshold
+	 * @since 1.2
+	 */
+	public int slowHandlerThreshold() {
+		return _slowHandlerThreshold;
+	}
+	/**
+	 * Returns whether handler invocations are interrupted once they are reported as slow.
+	 * Default: false
+	 * @return Whether slow handlers are interrupted
+	 * @since 1.2
+	 */
+	public boolean interruptSlowHandlers() {
+		return _interruptSlowHandlers;
+	}
 	
 	/**
 	 * Sets the max packet body size in bytes
@@ -149,4 +397,240 @@ public class TCPacketServerSettings {
 		_printErrs = print;
 		return this;
 	}
-}
+	/**
+	 * Sets the minimum body size in bytes at which outgoing packet bodies are compressed, or -1 to disable compression
+	 * @param threshold The minimum body size to compress
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings compressionThreshold(int threshold) {
+		_compressThreshold = threshold;
+		return this;
+	}
+	/**
+	 * Sets the max amount of bytes sent in each chunk of a streamed packet
+	 * @param size The max stream chunk size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings streamChunkSize(int size) {
+		_streamChunkSize = size;
+		return this;
+	}
+	/**
+	 * Sets the max amount of bytes of a streamed packet that are buffered while waiting to be read, after which the stream is aborted
+	 * @param size The stream buffer size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings streamBufferSize(int size) {
+		_streamBufferSize = size;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds a connection can go without writing anything before a ping is sent, or -1 to disable heartbeats
+	 * @param interval The heartbeat interval
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings heartbeatInterval(int interval) {
+		_heartbeatInterval = interval;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds a connection can go without receiving anything before it is closed, or -1 to never close idle connections
+	 * @param timeout The read idle timeout
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings readIdleTimeout(int timeout) {
+		_readIdleTimeout = timeout;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds queued packets can go without being written before the connection is closed, or -1 to never close stalled connections
+	 * @param timeout The write idle timeout
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings writeIdleTimeout(int timeout) {
+		_writeIdleTimeout = timeout;
+		return this;
+	}
+	/**
+	 * Sets the max amount of pending connections the operating system will queue before they are accepted
+	 * @param backlog The accept backlog
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings backlog(int backlog) {
+		_backlog = backlog;
+		return this;
+	}
+	/**
+	 * Sets the max amount of connections allowed from a single IP address, or -1 for no limit
+	 * @param max The per address connection limit
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings maxConnectionsPerAddress(int max) {
+		_maxConnsPerAddr = max;
+		return this;
+	}
+	/**
+	 * Sets the max amount of new connections accepted per second, or -1 for no limit
+	 * @param rate The accept rate
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings acceptRate(int rate) {
+		_acceptRate = rate;
+		return this;
+	}
+	/**
+	 * Sets the max amount of new connections that can be accepted at once before the accept rate applies, or -1 to use the accept rate
+	 * @param burst The accept burst size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings acceptBurst(int burst) {
+		_acceptBurst = burst;
+		return this;
+	}
+	/**
+	 * Sets whether TCP_NODELAY is enabled
+	 * @param noDelay Whether to enable TCP_NODELAY
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings tcpNoDelay(boolean noDelay) {
+		_tcpNoDelay = noDelay;
+		return this;
+	}
+	/**
+	 * Sets the socket send buffer size (SO_SNDBUF) in bytes, or -1 to use the operating system's default
+	 * @param size The SO_SNDBUF size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings sendBufferSize(int size) {
+		_sendBufSize = size;
+		return this;
+	}
+	/**
+	 * Sets the socket receive buffer size (SO_RCVBUF) in bytes, or -1 to use the operating system's default
+	 * @param size The SO_RCVBUF size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings receiveBufferSize(int size) {
+		_receiveBufSize = size;
+		return this;
+	}
+	/**
+	 * Sets whether TCP keepalive probes (SO_KEEPALIVE) are enabled
+	 * @param keepAlive Whether to enable SO_KEEPALIVE
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings keepAlive(boolean keepAlive) {
+		_keepAlive = keepAlive;
+		return this;
+	}
+	/**
+	 * Sets whether SO_REUSEADDR is enabled on the server socket
+	 * @param reuse Whether to enable SO_REUSEADDR
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings reuseAddress(boolean reuse) {
+		_reuseAddr = reuse;
+		return this;
+	}
+	/**
+	 * Sets whether SO_REUSEPORT is enabled on the server socket
+	 * @param reuse Whether to enable SO_REUSEPORT
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings reusePort(boolean reuse) {
+		_reusePort = reuse;
+		return this;
+	}
+	/**
+	 * Sets the transport connections are made over, or null to use TCP
+	 * @param transport The transport
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings transport(Transport transport) {
+		_transport = transport;
+		return this;
+	}
+	/**
+	 * Sets the SSLContext used to encrypt connections with TLS, or null to not use TLS
+	 * @param context The TLS context
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings tlsContext(SSLContext context) {
+		_tlsContext = context;
+		return this;
+	}
+	/**
+	 * Sets whether clients are allowed to use CRC32C frame checksums.
+	 * Checksums are only used for clients that ask for them.
+	 * @param checksums Whether clients are allowed to use frame checksums
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings checksums(boolean checksums) {
+		_checksums = checksums;
+		return this;
+	}
+	/**
+	 * Sets what happens when a client sends a frame larger than the max packet body size
+	 * @param policy The oversized frame policy, either OVERSIZED_SKIP or OVERSIZED_CLOSE
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings oversizedFramePolicy(int policy) {
+		_oversizedPolicy = policy;
+		return this;
+	}
+	/**
+	 * Sets the time in milliseconds after which a running handler invocation is reported to exception handlers as a SlowHandlerException.
+	 * Reports are delivered on a watchdog thread, so they arrive even when all handler threads are busy.
+	 * @param threshold The slow handler threshold, or -1 to only time handlers
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings slowHandlerThreshold(int threshold) {
+		_slowHandlerThreshold = threshold;
+		return this;
+	}
+	/**
+	 * Sets whether handler invocations are interrupted once they are reported as slow.
+	 * Only handlers that respond to interrupts, such as ones waiting or sleeping, are actually stopped.
+	 * @param interrupt Whether to interrupt slow handlers
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings interruptSlowHandlers(boolean interrupt) {
+		_interruptSlowHandlers = interrupt;
+		return this;
+	}	
+	/**
+	 * Returns a copy of these settings, which can be changed without affecting these
+	 * @return A copy of these settings
+	 * @since 1.2
+	 */
+	public TCPacketServerSettings copy() {
+		try {
+			return (TCPacketServerSettings) super.clone();
+		} catch(CloneNotSupportedException e) {
+			// Settings are Cloneable
+			throw new IllegalStateException(e);
+		}
+	}
+}
\ No newline at end of file
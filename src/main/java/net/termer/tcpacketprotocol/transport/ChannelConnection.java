@@ -0,0 +1,161 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TransportConnection that uses a SocketChannel.
+ * The channel is used in non-blocking mode with a separate selector for reading and writing, so reads can time out and reads and writes never wait on each other.
+ * @author termer
+ * @since 1.2
+ */
+public class ChannelConnection implements TransportConnection {
+	// The channel
+	private final SocketChannel _channel;
+	// Selectors used to wait until the channel can be read from or written to
+	private final Selector _readSelector;
+	private final Selector _writeSelector;
+	// Read timeout in milliseconds
+	private volatile int _timeout = 0;
+	
+	// Streams for the channel
+	private final InputStream _in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read;
+			while((read = read(b, 0, 1)) == 0);
+			return read < 0 ? -1 : b[0] & 0xFF;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len < 1)
+				return 0;
+			
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			long deadline = _timeout > 0 ? System.currentTimeMillis() + _timeout : 0;
+			while(true) {
+				int read = _channel.read(buf);
+				if(read != 0)
+					return read;
+				
+				long wait = 0;
+				if(deadline > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if(wait < 1)
+						throw new SocketTimeoutException("Read timed out");
+				}
+				select(_readSelector, wait);
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			ChannelConnection.this.close();
+		}
+	};
+	private final OutputStream _out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while(buf.hasRemaining())
+				if(_channel.write(buf) == 0)
+					select(_writeSelector, 0);
+		}
+		@Override
+		public void close() throws IOException {
+			ChannelConnection.this.close();
+		}
+	};
+	
+	/**
+	 * Creates a new ChannelConnection, switching the channel to non-blocking mode
+	 * @param channel The connected SocketChannel to use
+	 * @throws IOException If setting up the channel fails
+	 * @since 1.2
+	 */
+	public ChannelConnection(SocketChannel channel) throws IOException {
+		_channel = channel;
+		_readSelector = Selector.open();
+		_writeSelector = Selector.open();
+		
+		try {
+			channel.configureBlocking(false);
+			channel.register(_readSelector, SelectionKey.OP_READ);
+			channel.register(_writeSelector, SelectionKey.OP_WRITE);
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	// Waits until a selector's channel is ready or the timeout passes
+	private void select(Selector selector, long timeout) throws IOException {
+		try {
+			selector.select(timeout);
+			selector.selectedKeys().clear();
+		} catch(ClosedSelectorException e) {
+			throw new ClosedChannelException();
+		}
+		
+		if(!_channel.isOpen())
+			throw new ClosedChannelException();
+	}
+	
+	/**
+	 * Returns the SocketChannel this connection uses
+	 * @return The connection's SocketChannel
+	 * @since 1.2
+	 */
+	public SocketChannel channel() {
+		return _channel;
+	}
+	
+	public InputStream inputStream() {
+		return _in;
+	}
+	public OutputStream outputStream() {
+		return _out;
+	}
+	public void readTimeout(int timeout) {
+		_timeout = timeout;
+	}
+	public InetAddress remoteAddress() {
+		try {
+			SocketAddress addr = _channel.getRemoteAddress();
+			return addr instanceof InetSocketAddress ? ((InetSocketAddress) addr).getAddress() : null;
+		} catch(IOException e) {
+			return null;
+		}
+	}
+	public Socket socket() {
+		return null;
+	}
+	public boolean isClosed() {
+		return !_channel.isOpen();
+	}
+	public void close() throws IOException {
+		// Closing the selectors wakes up any reads or writes waiting on them
+		try {
+			_channel.close();
+		} finally {
+			_readSelector.close();
+			_writeSelector.close();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * TransportListener that uses a blocking ServerSocketChannel
+ * @author termer
+ * @since 1.2
+ */
+public class ChannelListener implements TransportListener {
+	// The channel
+	private final ServerSocketChannel _server;
+	
+	/**
+	 * Creates a new ChannelListener
+	 * @param server The bound ServerSocketChannel to accept connections from
+	 * @since 1.2
+	 */
+	public ChannelListener(ServerSocketChannel server) {
+		_server = server;
+	}
+	
+	/**
+	 * Returns the ServerSocketChannel this listener uses
+	 * @return The listener's ServerSocketChannel
+	 * @since 1.2
+	 */
+	public ServerSocketChannel channel() {
+		return _server;
+	}
+	
+	public TransportConnection accept() throws IOException {
+		return new ChannelConnection(_server.accept());
+	}
+	public boolean isClosed() {
+		return !_server.isOpen();
+	}
+	public void close() throws IOException {
+		_server.close();
+	}
+}
@@ -0,0 +1,226 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process transport for clients and servers running in the same JVM.
+ * Encoded frames are passed between the client and server through bounded in-memory queues, so no sockets or system calls are involved.
+ * Servers are registered by their bind port, and clients connect to them using the same port. Addresses are ignored.
+ * @author termer
+ * @since 1.2
+ */
+public class LocalTransport implements Transport {
+	// Max amount of written chunks buffered in each direction before writes wait
+	private static final int PIPE_CAPACITY = 256;
+	// Max time in milliseconds that reads and writes wait before checking whether the connection was closed
+	private static final long POLL_INTERVAL = 100;
+	
+	// Listeners, by port
+	private static final ConcurrentHashMap<Integer, Listener> _listeners = new ConcurrentHashMap<Integer, Listener>();
+	
+	// Bytes going in one direction of a connection
+	private static class Pipe {
+		final ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(PIPE_CAPACITY);
+		volatile boolean closed = false;
+		// The chunk currently being read and the position in it
+		byte[] current = null;
+		int pos = 0;
+		
+		void write(byte[] b, int off, int len) throws IOException {
+			if(len < 1)
+				return;
+			
+			byte[] chunk = Arrays.copyOfRange(b, off, off + len);
+			try {
+				do {
+					if(closed)
+						throw new IOException("Connection closed");
+				} while(!chunks.offer(chunk, POLL_INTERVAL, TimeUnit.MILLISECONDS));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing");
+			}
+		}
+		
+		int read(byte[] b, int off, int len, int timeout) throws IOException {
+			if(len < 1)
+				return 0;
+			
+			long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+			try {
+				while(current == null || pos >= current.length) {
+					if(closed && chunks.isEmpty())
+						return -1;
+					
+					long wait = POLL_INTERVAL;
+					if(deadline > 0) {
+						wait = Math.min(wait, deadline - System.currentTimeMillis());
+						if(wait < 1)
+							throw new SocketTimeoutException("Read timed out");
+					}
+					
+					current = chunks.poll(wait, TimeUnit.MILLISECONDS);
+					pos = 0;
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading");
+			}
+			
+			int count = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+	}
+	
+	// One side of a local connection
+	private static class Connection implements TransportConnection {
+		final Pipe in;
+		final Pipe out;
+		volatile int timeout = 0;
+		volatile boolean closed = false;
+		
+		final InputStream inStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(closed)
+					throw new IOException("Connection closed");
+				return in.read(b, off, len, timeout);
+			}
+		};
+		final OutputStream outStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		};
+		
+		Connection(Pipe in, Pipe out) {
+			this.in = in;
+			this.out = out;
+		}
+		
+		public InputStream inputStream() {
+			return inStream;
+		}
+		public OutputStream outputStream() {
+			return outStream;
+		}
+		public void readTimeout(int timeout) {
+			this.timeout = timeout;
+		}
+		public InetAddress remoteAddress() {
+			return null;
+		}
+		public Socket socket() {
+			return null;
+		}
+		public boolean isClosed() {
+			return closed;
+		}
+		public void close() {
+			// The other side can still read what was already written before seeing the end of the stream
+			closed = true;
+			in.closed = true;
+			out.closed = true;
+		}
+	}
+	
+	// Listener that receives connections from clients
+	private static class Listener implements TransportListener {
+		final int port;
+		final int backlog;
+		// Connections waiting to be accepted, guarded by the listener's lock so none can be queued after it closes
+		final ArrayDeque<Connection> pending = new ArrayDeque<Connection>();
+		volatile boolean closed = false;
+		
+		Listener(int port, int backlog) {
+			this.port = port;
+			this.backlog = Math.max(1, backlog);
+		}
+		
+		// Queues a connection from a client to be accepted
+		synchronized void offer(Connection conn) throws ConnectException {
+			if(closed)
+				throw new ConnectException("No local server on port "+port);
+			if(pending.size() >= backlog)
+				throw new ConnectException("Local server on port "+port+" is not accepting connections");
+			
+			pending.add(conn);
+			notifyAll();
+		}
+		
+		public synchronized TransportConnection accept() throws IOException {
+			try {
+				while(!closed && pending.isEmpty())
+					wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while accepting");
+			}
+			
+			if(closed)
+				throw new IOException("Listener closed");
+			return pending.poll();
+		}
+		public boolean isClosed() {
+			return closed;
+		}
+		public void close() {
+			_listeners.remove(port, this);
+			
+			synchronized(this) {
+				closed = true;
+				
+				// Turn away connections that were never accepted, so their clients see the end of the stream
+				Connection conn;
+				while((conn = pending.poll()) != null)
+					conn.close();
+				
+				notifyAll();
+			}
+		}
+	}
+	
+	public TransportConnection connect(String address, int port) throws IOException {
+		Listener listener = _listeners.get(port);
+		if(listener == null)
+			throw new ConnectException("No local server on port "+port);
+		
+		Pipe toServer = new Pipe();
+		Pipe toClient = new Pipe();
+		listener.offer(new Connection(toServer, toClient));
+		
+		return new Connection(toClient, toServer);
+	}
+	
+	public TransportListener listen(String address, int port, int backlog) throws IOException {
+		Listener listener = new Listener(port, backlog);
+		if(_listeners.putIfAbsent(port, listener) != null)
+			throw new IOException("Local port already in use: "+port);
+		
+		return listener;
+	}
+}
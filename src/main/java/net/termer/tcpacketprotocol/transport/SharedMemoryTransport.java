@@ -0,0 +1,467 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport over ring buffers in memory-mapped files, for the lowest possible latency between processes on the same machine.
+ * Each connection is a file in the transport's directory containing one single producer, single consumer ring buffer for each direction.
+ * Frames are copied into the ring and published by advancing its tail, so sending a packet involves no system calls,
+ * and waiting readers spin briefly before backing off to sleeping.
+ * Servers are registered by their bind port, and clients connect to them using the same port. Addresses are ignored.
+ * Since a peer that dies without closing the connection cannot be detected, a read idle timeout and heartbeats should be used with this transport.
+ * @author termer
+ * @since 1.2
+ */
+public class SharedMemoryTransport implements Transport {
+	/**
+	 * The default size of each ring buffer in bytes
+	 * @since 1.2
+	 */
+	public static final int DEFAULT_RING_SIZE = 1 << 20;
+	
+	// Marker at the start of connection files
+	private static final int MAGIC = 0x54435052;
+	// Size of the file header, which holds the magic number and ring size
+	private static final int FILE_HEADER = 64;
+	// Size of each ring's header, with its fields on separate cache lines so the producer and consumer don't share one
+	private static final int RING_HEADER = 192;
+	private static final int TAIL = 0;
+	private static final int HEAD = 64;
+	private static final int CLOSED = 128;
+	
+	// Amount of times to check a ring before yielding, and before sleeping
+	private static final int SPIN_TRIES = 1000;
+	private static final int YIELD_TRIES = 1100;
+	// Max time in nanoseconds to sleep between checks
+	private static final long MAX_SLEEP = 1000000;
+	
+	// Memory fences, or null if they aren't available
+	private static final MethodHandle STORE_FENCE;
+	private static final MethodHandle LOAD_FENCE;
+	// Fallback fence for when Unsafe isn't available
+	private static volatile int _fence = 0;
+	
+	static {
+		// The Java memory model doesn't cover memory shared through a mapping, so real fences are needed to order accesses to it
+		MethodHandle store = null;
+		MethodHandle load = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			store = lookup.findVirtual(unsafeClass, "storeFence", MethodType.methodType(void.class)).bindTo(unsafe);
+			load = lookup.findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class)).bindTo(unsafe);
+		} catch(Throwable e) {
+			store = null;
+			load = null;
+		}
+		STORE_FENCE = store;
+		LOAD_FENCE = load;
+	}
+	
+	// Makes sure all reads and writes before it are done before any writes after it
+	private static void storeFence() {
+		if(STORE_FENCE == null) {
+			_fence = 0;
+			return;
+		}
+		
+		try {
+			STORE_FENCE.invokeExact();
+		} catch(Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	// Makes sure all reads before it are done before any reads or writes after it
+	private static void loadFence() {
+		if(LOAD_FENCE == null) {
+			int fence = _fence;
+			return;
+		}
+		
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch(Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// Waits a little, spinning at first and then yielding and sleeping for longer each time
+	private static void backoff(int tries) {
+		if(tries < SPIN_TRIES)
+			return;
+		else if(tries < YIELD_TRIES)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(Math.min(MAX_SLEEP, 1000L * (tries - YIELD_TRIES + 1)));
+	}
+	
+	// Single producer, single consumer ring buffer in a mapped file
+	private static class Ring {
+		final ByteBuffer buf;
+		// Buffers used only by the producer and consumer for bulk copies
+		final ByteBuffer writeBuf;
+		final ByteBuffer readBuf;
+		final int hdr;
+		final int data;
+		final int cap;
+		
+		Ring(MappedByteBuffer map, int offset, int capacity) {
+			buf = map.duplicate();
+			writeBuf = map.duplicate();
+			readBuf = map.duplicate();
+			hdr = offset;
+			data = offset + RING_HEADER;
+			cap = capacity;
+		}
+		
+		boolean closed() {
+			loadFence();
+			return buf.getInt(hdr + CLOSED) != 0;
+		}
+		void close() {
+			buf.putInt(hdr + CLOSED, 1);
+			storeFence();
+		}
+		
+		void write(byte[] b, int off, int len) throws IOException {
+			int tries = 0;
+			while(len > 0) {
+				if(closed())
+					throw new IOException("Connection closed");
+				
+				long tail = buf.getLong(hdr + TAIL);
+				long head = buf.getLong(hdr + HEAD);
+				// Don't write over the space until the consumer is done reading it
+				loadFence();
+				
+				int free = cap - (int) (tail - head);
+				if(free < 1) {
+					backoff(tries++);
+					continue;
+				}
+				tries = 0;
+				
+				// Copy, wrapping around to the start of the ring if needed
+				int count = Math.min(len, free);
+				int idx = (int) (tail & (cap - 1));
+				int first = Math.min(count, cap - idx);
+				writeBuf.position(data + idx);
+				writeBuf.put(b, off, first);
+				if(count > first) {
+					writeBuf.position(data);
+					writeBuf.put(b, off + first, count - first);
+				}
+				
+				// Publish the bytes only once they're written
+				storeFence();
+				buf.putLong(hdr + TAIL, tail + count);
+				
+				off += count;
+				len -= count;
+			}
+		}
+		
+		int read(byte[] b, int off, int len, int timeout) throws IOException {
+			if(len < 1)
+				return 0;
+			
+			long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+			int tries = 0;
+			while(true) {
+				long head = buf.getLong(hdr + HEAD);
+				long tail = buf.getLong(hdr + TAIL);
+				// Don't read the bytes until after the tail that published them
+				loadFence();
+				
+				int available = (int) (tail - head);
+				if(available < 1) {
+					if(closed())
+						return -1;
+					if(deadline > 0 && tries >= SPIN_TRIES && System.currentTimeMillis() >= deadline)
+						throw new SocketTimeoutException("Read timed out");
+					
+					backoff(tries++);
+					continue;
+				}
+				
+				// Copy, wrapping around to the start of the ring if needed
+				int count = Math.min(len, available);
+				int idx = (int) (head & (cap - 1));
+				int first = Math.min(count, cap - idx);
+				readBuf.position(data + idx);
+				readBuf.get(b, off, first);
+				if(count > first) {
+					readBuf.position(data);
+					readBuf.get(b, off + first, count - first);
+				}
+				
+				// Free the space only once it's read
+				storeFence();
+				buf.putLong(hdr + HEAD, head + count);
+				
+				return count;
+			}
+		}
+	}
+	
+	// One side of a shared memory connection
+	private static class Connection implements TransportConnection {
+		final File file;
+		final Ring in;
+		final Ring out;
+		volatile int timeout = 0;
+		volatile boolean closed = false;
+		
+		final InputStream inStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(closed)
+					throw new IOException("Connection closed");
+				return in.read(b, off, len, timeout);
+			}
+		};
+		final OutputStream outStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(closed)
+					throw new IOException("Connection closed");
+				out.write(b, off, len);
+			}
+		};
+		
+		Connection(File file, MappedByteBuffer map, int ringSize, boolean server) {
+			this.file = file;
+			Ring toServer = new Ring(map, FILE_HEADER, ringSize);
+			Ring toClient = new Ring(map, FILE_HEADER + RING_HEADER + ringSize, ringSize);
+			in = server ? toServer : toClient;
+			out = server ? toClient : toServer;
+		}
+		
+		public InputStream inputStream() {
+			return inStream;
+		}
+		public OutputStream outputStream() {
+			return outStream;
+		}
+		public void readTimeout(int timeout) {
+			this.timeout = timeout;
+		}
+		public InetAddress remoteAddress() {
+			return null;
+		}
+		public Socket socket() {
+			return null;
+		}
+		public boolean isClosed() {
+			return closed;
+		}
+		public void close() {
+			if(closed)
+				return;
+			
+			// The other side can still read what was already written before seeing the end of the stream
+			closed = true;
+			in.close();
+			out.close();
+			file.delete();
+		}
+	}
+	
+	// Listener that picks up connection files created by clients
+	private class Listener implements TransportListener {
+		final int port;
+		final File lockFile;
+		final RandomAccessFile lockRaf;
+		final FileLock lock;
+		volatile boolean closed = false;
+		
+		Listener(int port) throws IOException {
+			this.port = port;
+			lockFile = new File(_dir, port+".listener");
+			lockRaf = new RandomAccessFile(lockFile, "rw");
+			
+			FileLock acquired = null;
+			try {
+				acquired = lockRaf.getChannel().tryLock();
+			} catch(OverlappingFileLockException e) {
+				acquired = null;
+			}
+			if(acquired == null) {
+				lockRaf.close();
+				throw new IOException("Shared memory port already in use: "+port);
+			}
+			lock = acquired;
+		}
+		
+		// Returns the connection files that are waiting to be accepted
+		File[] waiting() {
+			File[] files = _dir.listFiles((dir, name) -> name.startsWith(port+"-") && name.endsWith(".conn"));
+			return files == null ? new File[0] : files;
+		}
+		
+		public TransportConnection accept() throws IOException {
+			int tries = 0;
+			while(!closed) {
+				for(File file : waiting()) {
+					// Claim the file so it's only accepted once
+					File claimed = new File(_dir, file.getName().replace(".conn", ".open"));
+					if(file.renameTo(claimed))
+						return new Connection(claimed, map(claimed), _ringSize, true);
+				}
+				
+				// Checking for new files is a system call, so don't spin
+				LockSupport.parkNanos(Math.min(MAX_SLEEP, 50000L * ++tries));
+			}
+			
+			throw new IOException("Listener closed");
+		}
+		public boolean isClosed() {
+			return closed;
+		}
+		public void close() throws IOException {
+			closed = true;
+			
+			// Turn away connections that were never accepted
+			for(File file : waiting()) {
+				try {
+					new Connection(file, map(file), _ringSize, true).close();
+				} catch(IOException e) {
+					file.delete();
+				}
+			}
+			
+			lock.release();
+			lockRaf.close();
+			lockFile.delete();
+		}
+	}
+	
+	// Directory for connection files
+	private final File _dir;
+	// Size of each ring buffer
+	private final int _ringSize;
+	
+	/**
+	 * Creates a new SharedMemoryTransport with the default ring buffer size
+	 * @param directory The directory to keep connection files in, preferably on a memory-backed filesystem such as /dev/shm
+	 * @since 1.2
+	 */
+	public SharedMemoryTransport(File directory) {
+		this(directory, DEFAULT_RING_SIZE);
+	}
+	/**
+	 * Creates a new SharedMemoryTransport.
+	 * Both sides of a connection must use the same ring buffer size.
+	 * @param directory The directory to keep connection files in, preferably on a memory-backed filesystem such as /dev/shm
+	 * @param ringSize The size of each ring buffer in bytes, which will be rounded up to a power of two
+	 * @since 1.2
+	 */
+	public SharedMemoryTransport(File directory, int ringSize) {
+		if(ringSize < 1024)
+			throw new IllegalArgumentException("Ring size must be at least 1024 bytes");
+		if(ringSize > 1 << 29)
+			throw new IllegalArgumentException("Ring size must be at most 512MiB");
+		
+		_dir = directory;
+		_ringSize = Integer.bitCount(ringSize) == 1 ? ringSize : Integer.highestOneBit(ringSize) << 1;
+	}
+	
+	// Size of a connection file
+	private long fileSize() {
+		return FILE_HEADER + 2L * (RING_HEADER + _ringSize);
+	}
+	
+	// Maps a connection file, checking that it was set up with the same ring size
+	private MappedByteBuffer map(File file) throws IOException {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize());
+			loadFence();
+			if(map.getInt(0) != MAGIC || map.getInt(4) != _ringSize)
+				throw new IOException("Connection file "+file+" was not created with a ring size of "+_ringSize);
+			
+			return map;
+		}
+	}
+	
+	public TransportConnection connect(String address, int port) throws IOException {
+		// Make sure something is listening, which means it holds the lock
+		File lockFile = new File(_dir, port+".listener");
+		if(!lockFile.exists())
+			throw new ConnectException("No shared memory server on port "+port);
+		try(RandomAccessFile raf = new RandomAccessFile(lockFile, "rw")) {
+			FileLock lock = raf.getChannel().tryLock();
+			if(lock != null) {
+				lock.release();
+				throw new ConnectException("No shared memory server on port "+port);
+			}
+		} catch(OverlappingFileLockException e) {
+			// Held by a listener in this JVM
+		}
+		
+		// Set up the file before it's visible to the listener
+		String name = port+"-"+Long.toHexString(System.nanoTime())+Integer.toHexString(ThreadLocalRandom.current().nextInt());
+		File tmp = new File(_dir, name+".tmp");
+		File file = new File(_dir, name+".conn");
+		MappedByteBuffer map;
+		try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(fileSize());
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize());
+			map.putInt(0, MAGIC);
+			map.putInt(4, _ringSize);
+			storeFence();
+		}
+		if(!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Failed to create connection file "+file);
+		}
+		
+		return new Connection(file, map, _ringSize, false) {
+			@Override
+			public void close() {
+				super.close();
+				
+				// The listener renames the file once it accepts it
+				new File(_dir, name+".open").delete();
+			}
+		};
+	}
+	
+	public TransportListener listen(String address, int port, int backlog) throws IOException {
+		if(!_dir.isDirectory() && !_dir.mkdirs())
+			throw new IOException("Failed to create directory "+_dir);
+		
+		return new Listener(port);
+	}
+}
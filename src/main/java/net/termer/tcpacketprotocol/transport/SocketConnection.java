@@ -0,0 +1,48 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * TransportConnection that uses a Socket
+ * @author termer
+ * @since 1.2
+ */
+public class SocketConnection implements TransportConnection {
+	// The Socket
+	private final Socket _sock;
+	
+	/**
+	 * Creates a new SocketConnection
+	 * @param socket The connected Socket to use
+	 * @since 1.2
+	 */
+	public SocketConnection(Socket socket) {
+		_sock = socket;
+	}
+	
+	public InputStream inputStream() throws IOException {
+		return _sock.getInputStream();
+	}
+	public OutputStream outputStream() throws IOException {
+		return _sock.getOutputStream();
+	}
+	public void readTimeout(int timeout) throws IOException {
+		_sock.setSoTimeout(timeout);
+	}
+	public InetAddress remoteAddress() {
+		return _sock.getInetAddress();
+	}
+	public Socket socket() {
+		return _sock;
+	}
+	public boolean isClosed() {
+		return _sock.isClosed();
+	}
+	public void close() throws IOException {
+		_sock.close();
+	}
+}
@@ -0,0 +1,42 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * TransportListener that uses a ServerSocket
+ * @author termer
+ * @since 1.2
+ */
+public class SocketListener implements TransportListener {
+	// The ServerSocket
+	private final ServerSocket _server;
+	
+	/**
+	 * Creates a new SocketListener
+	 * @param server The bound ServerSocket to accept connections from
+	 * @since 1.2
+	 */
+	public SocketListener(ServerSocket server) {
+		_server = server;
+	}
+	
+	/**
+	 * Returns the ServerSocket this listener uses
+	 * @return The listener's ServerSocket
+	 * @since 1.2
+	 */
+	public ServerSocket serverSocket() {
+		return _server;
+	}
+	
+	public TransportConnection accept() throws IOException {
+		return new SocketConnection(_server.accept());
+	}
+	public boolean isClosed() {
+		return _server.isClosed();
+	}
+	public void close() throws IOException {
+		_server.close();
+	}
+}
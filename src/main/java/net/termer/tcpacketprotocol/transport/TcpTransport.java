@@ -0,0 +1,118 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.termer.tcpacketprotocol.util.SocketOptions;
+
+/**
+ * Transport over TCP sockets, used by default.
+ * Options that must be set before a socket is bound or connected are set here, other socket options can be set on the connection's socket afterwards.
+ * @author termer
+ * @since 1.2
+ */
+public class TcpTransport implements Transport {
+	private boolean _reuseAddr = true;
+	private boolean _reusePort = false;
+	private int _receiveBufSize = -1;
+	
+	/**
+	 * Sets whether SO_REUSEADDR is enabled on listening sockets.
+	 * Default: true
+	 * @param reuse Whether to enable SO_REUSEADDR
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TcpTransport reuseAddress(boolean reuse) {
+		_reuseAddr = reuse;
+		return this;
+	}
+	/**
+	 * Sets whether SO_REUSEPORT is enabled on listening sockets.
+	 * Default: false
+	 * @param reuse Whether to enable SO_REUSEPORT
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TcpTransport reusePort(boolean reuse) {
+		_reusePort = reuse;
+		return this;
+	}
+	/**
+	 * Sets the socket receive buffer size (SO_RCVBUF) in bytes, or -1 to use the operating system's default.
+	 * Default: -1
+	 * @param size The SO_RCVBUF size
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TcpTransport receiveBufferSize(int size) {
+		_receiveBufSize = size;
+		return this;
+	}
+	
+	/**
+	 * Creates an unconnected socket for a new connection
+	 * @return The new socket
+	 * @throws IOException If creating the socket fails
+	 * @since 1.2
+	 */
+	protected Socket createSocket() throws IOException {
+		return new Socket();
+	}
+	/**
+	 * Creates an unbound server socket for a new listener
+	 * @return The new server socket
+	 * @throws IOException If creating the server socket fails
+	 * @since 1.2
+	 */
+	protected ServerSocket createServerSocket() throws IOException {
+		return new ServerSocket();
+	}
+	/**
+	 * Called once a socket created by this transport has connected, before the connection is used
+	 * @param socket The connected socket
+	 * @throws IOException If setting up the connection fails
+	 * @since 1.2
+	 */
+	protected void connected(Socket socket) throws IOException {}
+	
+	public TransportConnection connect(String address, int port) throws IOException {
+		Socket socket = createSocket();
+		
+		// Must be set before connecting to allow large TCP windows
+		if(_receiveBufSize > 0)
+			socket.setReceiveBufferSize(_receiveBufSize);
+		
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getByName(address), port));
+			connected(socket);
+		} catch(IOException e) {
+			socket.close();
+			throw e;
+		}
+		
+		return new SocketConnection(socket);
+	}
+	
+	public TransportListener listen(String address, int port, int backlog) throws IOException {
+		ServerSocket server = createServerSocket();
+		
+		try {
+			server.setReuseAddress(_reuseAddr);
+			if(_reusePort)
+				SocketOptions.reusePort(server, true);
+			// Accepted sockets inherit the receive buffer size, which must be set before binding to allow large TCP windows
+			if(_receiveBufSize > 0)
+				server.setReceiveBufferSize(_receiveBufSize);
+			server.bind(new InetSocketAddress(InetAddress.getByName(address), port), backlog);
+		} catch(IOException e) {
+			server.close();
+			throw e;
+		}
+		
+		return new SocketListener(server);
+	}
+}
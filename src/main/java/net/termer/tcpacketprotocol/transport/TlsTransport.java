@@ -0,0 +1,175 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Transport over TLS encrypted TCP sockets.
+ * Sessions are cached by the SSLContext, so reconnecting to the same server resumes the previous session (or uses a session ticket with TLS 1.3) instead of doing a full handshake.
+ * Clients handshake while connecting so failures are reported by connect(), while servers handshake on each connection's own thread so slow clients can't hold up accepting.
+ * @author termer
+ * @since 1.2
+ */
+public class TlsTransport extends TcpTransport {
+	// The context to create sockets with
+	private final SSLContext _context;
+	private boolean _verifyHostname = true;
+	private boolean _needClientAuth = false;
+	private String[] _protocols = null;
+	private String[] _cipherSuites = null;
+	private int _handshakeTimeout = 10000;
+	
+	/**
+	 * Creates a new TlsTransport
+	 * @param context The SSLContext with the key and trust material to use
+	 * @since 1.2
+	 */
+	public TlsTransport(SSLContext context) {
+		_context = context;
+	}
+	
+	/**
+	 * Returns the SSLContext this transport uses
+	 * @return This transport's SSLContext
+	 * @since 1.2
+	 */
+	public SSLContext context() {
+		return _context;
+	}
+	
+	/**
+	 * Sets whether clients check that the server's certificate matches the address they connected to.
+	 * Default: true
+	 * @param verify Whether to verify the server's hostname
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport verifyHostname(boolean verify) {
+		_verifyHostname = verify;
+		return this;
+	}
+	/**
+	 * Sets whether servers require clients to present a trusted certificate.
+	 * Default: false
+	 * @param need Whether to require client authentication
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport needClientAuth(boolean need) {
+		_needClientAuth = need;
+		return this;
+	}
+	/**
+	 * Sets the TLS protocol versions to allow, or null to use the context's defaults.
+	 * Default: null
+	 * @param protocols The allowed protocols, such as "TLSv1.3"
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport protocols(String... protocols) {
+		_protocols = protocols;
+		return this;
+	}
+	/**
+	 * Sets the cipher suites to allow, or null to use the context's defaults.
+	 * Default: null
+	 * @param suites The allowed cipher suites
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport cipherSuites(String... suites) {
+		_cipherSuites = suites;
+		return this;
+	}
+	/**
+	 * Sets the max time in milliseconds clients wait for the handshake to finish while connecting.
+	 * Default: 10000
+	 * @param timeout The handshake timeout
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport handshakeTimeout(int timeout) {
+		_handshakeTimeout = timeout;
+		return this;
+	}
+	/**
+	 * Sets the max amount of sessions the context caches for resumption, for both clients and servers
+	 * @param size The session cache size, or 0 for no limit
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport sessionCacheSize(int size) {
+		_context.getClientSessionContext().setSessionCacheSize(size);
+		_context.getServerSessionContext().setSessionCacheSize(size);
+		return this;
+	}
+	/**
+	 * Sets the time in seconds cached sessions can be resumed for, for both clients and servers
+	 * @param timeout The session timeout, or 0 for no limit
+	 * @return This, to be used fluently
+	 * @since 1.2
+	 */
+	public TlsTransport sessionTimeout(int timeout) {
+		_context.getClientSessionContext().setSessionTimeout(timeout);
+		_context.getServerSessionContext().setSessionTimeout(timeout);
+		return this;
+	}
+	
+	@Override
+	public TlsTransport reuseAddress(boolean reuse) {
+		super.reuseAddress(reuse);
+		return this;
+	}
+	@Override
+	public TlsTransport reusePort(boolean reuse) {
+		super.reusePort(reuse);
+		return this;
+	}
+	@Override
+	public TlsTransport receiveBufferSize(int size) {
+		super.receiveBufferSize(size);
+		return this;
+	}
+	
+	@Override
+	protected Socket createSocket() throws IOException {
+		SSLSocket socket = (SSLSocket) _context.getSocketFactory().createSocket();
+		
+		SSLParameters params = socket.getSSLParameters();
+		if(_verifyHostname)
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+		if(_protocols != null)
+			params.setProtocols(_protocols);
+		if(_cipherSuites != null)
+			params.setCipherSuites(_cipherSuites);
+		socket.setSSLParameters(params);
+		
+		return socket;
+	}
+	@Override
+	protected ServerSocket createServerSocket() throws IOException {
+		SSLServerSocket server = (SSLServerSocket) _context.getServerSocketFactory().createServerSocket();
+		
+		server.setNeedClientAuth(_needClientAuth);
+		if(_protocols != null)
+			server.setEnabledProtocols(_protocols);
+		if(_cipherSuites != null)
+			server.setEnabledCipherSuites(_cipherSuites);
+		
+		return server;
+	}
+	@Override
+	protected void connected(Socket socket) throws IOException {
+		// Handshake now so failures are reported while connecting
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout(_handshakeTimeout);
+		((SSLSocket) socket).startHandshake();
+		socket.setSoTimeout(timeout);
+	}
+}
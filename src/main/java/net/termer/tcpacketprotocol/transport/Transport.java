@@ -0,0 +1,32 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.IOException;
+
+/**
+ * Interface for transports that clients and servers communicate over.
+ * Packets are framed the same way on every transport, so handlers work the same regardless of which one is used.
+ * @author termer
+ * @since 1.2
+ */
+public interface Transport {
+	/**
+	 * Opens a connection to a server
+	 * @param address The server's address, as understood by this transport
+	 * @param port The server's port, if this transport uses ports
+	 * @return The new connection
+	 * @throws IOException If connecting fails
+	 * @since 1.2
+	 */
+	public TransportConnection connect(String address, int port) throws IOException;
+	
+	/**
+	 * Starts listening for connections
+	 * @param address The address to listen on, as understood by this transport
+	 * @param port The port to listen on, if this transport uses ports
+	 * @param backlog The max amount of pending connections to queue before they are accepted
+	 * @return The new listener
+	 * @throws IOException If listening fails
+	 * @since 1.2
+	 */
+	public TransportListener listen(String address, int port, int backlog) throws IOException;
+}
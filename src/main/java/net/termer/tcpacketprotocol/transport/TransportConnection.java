@@ -0,0 +1,60 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Interface for connections opened by a Transport
+ * @author termer
+ * @since 1.2
+ */
+public interface TransportConnection extends Closeable {
+	/**
+	 * Returns the stream to read from this connection
+	 * @return The connection's InputStream
+	 * @throws IOException If the stream cannot be obtained
+	 * @since 1.2
+	 */
+	public InputStream inputStream() throws IOException;
+	
+	/**
+	 * Returns the stream to write to this connection
+	 * @return The connection's OutputStream
+	 * @throws IOException If the stream cannot be obtained
+	 * @since 1.2
+	 */
+	public OutputStream outputStream() throws IOException;
+	
+	/**
+	 * Sets the time in milliseconds a read can wait before it fails with a SocketTimeoutException
+	 * @param timeout The read timeout, or 0 to wait forever
+	 * @throws IOException If setting the timeout fails
+	 * @since 1.2
+	 */
+	public void readTimeout(int timeout) throws IOException;
+	
+	/**
+	 * Returns the IP address of the other side of this connection, or null if this transport does not use IP addresses
+	 * @return The remote IP address
+	 * @since 1.2
+	 */
+	public InetAddress remoteAddress();
+	
+	/**
+	 * Returns the Socket this connection uses, or null if this transport does not use sockets
+	 * @return The connection's Socket
+	 * @since 1.2
+	 */
+	public Socket socket();
+	
+	/**
+	 * Returns whether this connection is closed
+	 * @return Whether this connection is closed
+	 * @since 1.2
+	 */
+	public boolean isClosed();
+}
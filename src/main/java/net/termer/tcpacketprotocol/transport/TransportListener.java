@@ -0,0 +1,26 @@
+package net.termer.tcpacketprotocol.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Interface for listeners that accept connections on a Transport
+ * @author termer
+ * @since 1.2
+ */
+public interface TransportListener extends Closeable {
+	/**
+	 * Waits for a new connection and returns it
+	 * @return The new connection
+	 * @throws IOException If accepting fails, or the listener is closed
+	 * @since 1.2
+	 */
+	public TransportConnection accept() throws IOException;
+	
+	/**
+	 * Returns whether this listener is closed
+	 * @return Whether this listener is closed
+	 * @since 1.2
+	 */
+	public boolean isClosed();
+}
@@ -0,0 +1,107 @@
+package net.termer.tcpacketprotocol.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Utility class to compress and decompress packet bodies using pooled Deflater and Inflater instances.
+ * Bodies are stored as raw DEFLATE data without zlib headers or checksums.
+ * @author termer
+ * @since 1.2
+ */
+public class Compression {
+	// Max amount of idle instances kept in each pool
+	private static final int POOL_SIZE = 16;
+	
+	// Pools of idle instances
+	private static ConcurrentLinkedQueue<Deflater> _deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private static ConcurrentLinkedQueue<Inflater> _inflaters = new ConcurrentLinkedQueue<Inflater>();
+	
+	/**
+	 * Compresses the provided bytes.
+	 * Returns null if the compressed data would not be smaller than the original.
+	 * @param data The bytes to compress
+	 * @return The compressed bytes, or null if compressing would not save any space
+	 * @since 1.2
+	 */
+	public static byte[] compress(byte[] data) {
+		Deflater deflater = _deflaters.poll();
+		if(deflater == null)
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			
+			// Output must be smaller than the input to be worth it
+			byte[] buf = new byte[data.length];
+			int len = 0;
+			while(!deflater.finished()) {
+				if(len == buf.length)
+					return null;
+				len += deflater.deflate(buf, len, buf.length - len);
+			}
+			if(len >= data.length)
+				return null;
+			
+			byte[] res = new byte[len];
+			System.arraycopy(buf, 0, res, 0, len);
+			return res;
+		} finally {
+			release(deflater);
+		}
+	}
+	
+	/**
+	 * Decompresses the provided bytes
+	 * @param data The bytes to decompress
+	 * @param maxSize The max amount of decompressed bytes to allow
+	 * @return The decompressed bytes
+	 * @throws DataFormatException If the data is not valid DEFLATE data, or decompresses to more than maxSize bytes
+	 * @since 1.2
+	 */
+	public static byte[] decompress(byte[] data, int maxSize) throws DataFormatException {
+		Inflater inflater = _inflaters.poll();
+		if(inflater == null)
+			inflater = new Inflater(true);
+		
+		try {
+			inflater.setInput(data);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, data.length * 4));
+			byte[] buf = new byte[1024];
+			while(!inflater.finished()) {
+				int len = inflater.inflate(buf);
+				if(len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("Truncated compressed data");
+				if(out.size() + len > maxSize)
+					throw new DataFormatException("Decompressed data exceeds "+maxSize+" bytes");
+				out.write(buf, 0, len);
+			}
+			
+			return out.toByteArray();
+		} finally {
+			release(inflater);
+		}
+	}
+	
+	// Resets a Deflater and returns it to the pool
+	private static void release(Deflater deflater) {
+		deflater.reset();
+		if(_deflaters.size() < POOL_SIZE)
+			_deflaters.offer(deflater);
+		else
+			deflater.end();
+	}
+	// Resets an Inflater and returns it to the pool
+	private static void release(Inflater inflater) {
+		inflater.reset();
+		if(_inflaters.size() < POOL_SIZE)
+			_inflaters.offer(inflater);
+		else
+			inflater.end();
+	}
+}
@@ -0,0 +1,97 @@
+package net.termer.tcpacketprotocol.util;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * Utility class to compute CRC32C (Castagnoli) checksums.
+ * Uses java.util.zip.CRC32C, which is hardware accelerated on most CPUs, if the running Java version has it.
+ * It was added in Java 9, so on Java 8 a table-driven implementation that produces the same checksums is used instead.
+ * @author termer
+ * @since 1.2
+ */
+public class Crc32c {
+	// Reversed CRC32C polynomial
+	private static final int POLYNOMIAL = 0x82F63B78;
+	
+	// Lookup table for the fallback implementation
+	private static final int[] _table = new int[256];
+	// Constructor of java.util.zip.CRC32C, or null if the running Java version doesn't have it
+	private static Constructor<? extends Checksum> _jdk = null;
+	
+	// Checksum instance for each thread, since they aren't thread safe
+	private static final ThreadLocal<Checksum> _checksums = new ThreadLocal<Checksum>() {
+		@Override
+		protected Checksum initialValue() {
+			if(_jdk != null) {
+				try {
+					return _jdk.newInstance();
+				} catch(ReflectiveOperationException e) {
+					// Fall back to the table-driven implementation
+				}
+			}
+			
+			return new TableCrc32c();
+		}
+	};
+	
+	static {
+		for(int i = 0; i < _table.length; i++) {
+			int crc = i;
+			for(int j = 0; j < 8; j++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			_table[i] = crc;
+		}
+		
+		try {
+			_jdk = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+		} catch(ReflectiveOperationException e) {
+			_jdk = null;
+		}
+	}
+	
+	// Table-driven CRC32C for Java versions without java.util.zip.CRC32C
+	private static class TableCrc32c implements Checksum {
+		private int _crc = 0xFFFFFFFF;
+		
+		public void update(int b) {
+			_crc = (_crc >>> 8) ^ _table[(_crc ^ b) & 0xFF];
+		}
+		public void update(byte[] b, int off, int len) {
+			int crc = _crc;
+			for(int i = off; i < off + len; i++)
+				crc = (crc >>> 8) ^ _table[(crc ^ b[i]) & 0xFF];
+			_crc = crc;
+		}
+		public long getValue() {
+			return ~_crc & 0xFFFFFFFFL;
+		}
+		public void reset() {
+			_crc = 0xFFFFFFFF;
+		}
+	}
+	
+	/**
+	 * Returns whether the JDK's CRC32C implementation is used, rather than the slower table-driven fallback
+	 * @return Whether java.util.zip.CRC32C is available
+	 * @since 1.2
+	 */
+	public static boolean isNative() {
+		return _jdk != null;
+	}
+	
+	/**
+	 * Computes the CRC32C checksum of a range of bytes
+	 * @param data The bytes
+	 * @param offset The offset of the first byte to include
+	 * @param length The amount of bytes to include
+	 * @return The checksum
+	 * @since 1.2
+	 */
+	public static int compute(byte[] data, int offset, int length) {
+		Checksum checksum = _checksums.get();
+		checksum.reset();
+		checksum.update(data, offset, length);
+		return (int) checksum.getValue();
+	}
+}
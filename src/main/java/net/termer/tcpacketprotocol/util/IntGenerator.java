@@ -1,6 +1,7 @@
 package net.termer.tcpacketprotocol.util;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class to output unique integers.
@@ -9,7 +10,7 @@ import java.util.Random;
  */
 public class IntGenerator {
 	// Create an integer with the minimum value + 1 to avoid problems
-	private static int _val = Integer.MIN_VALUE+1;
+	private static AtomicInteger _val = new AtomicInteger(Integer.MIN_VALUE+1);
 	
 	private static Random _rand = new Random();
 	
@@ -19,11 +20,16 @@ public class IntGenerator {
 	 * @since 1.0
 	 */
 	public static int nextInt() {
-		// Reset if needed
-		if(_val == Integer.MAX_VALUE)
-			_val = Integer.MIN_VALUE+1;
+		int val;
+		int next;
+		do {
+			val = _val.get();
+			
+			// Reset if needed
+			next = val == Integer.MAX_VALUE ? Integer.MIN_VALUE+1 : val+1;
+		} while(!_val.compareAndSet(val, next));
 		
-		return _val++;
+		return val;
 	}
 	
 	/**
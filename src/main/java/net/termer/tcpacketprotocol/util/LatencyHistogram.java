@@ -0,0 +1,108 @@
+package net.termer.tcpacketprotocol.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of latencies, using buckets that double in size.
+ * Bucket 0 counts latencies under 1 microsecond, and every bucket after it counts latencies under twice the bound of the one before, so percentiles are accurate to within a factor of 2.
+ * @author termer
+ * @since 1.2
+ */
+public class LatencyHistogram {
+	/**
+	 * The amount of buckets, the last one counting all latencies over about 6 days
+	 * @since 1.2
+	 */
+	public static final int BUCKETS = 40;
+	
+	// Amount of latencies in each bucket
+	private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+	// Amount and sum of all latencies
+	private final AtomicLong _count = new AtomicLong(0);
+	private final AtomicLong _total = new AtomicLong(0);
+	// Highest latency
+	private final AtomicLong _max = new AtomicLong(0);
+	
+	/**
+	 * Records a latency
+	 * @param nanos The latency in nanoseconds
+	 * @since 1.2
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		_buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		_count.incrementAndGet();
+		_total.addAndGet(nanos);
+		_max.accumulateAndGet(nanos, Math::max);
+	}
+	
+	/**
+	 * Returns the amount of recorded latencies
+	 * @return The amount of recorded latencies
+	 * @since 1.2
+	 */
+	public long count() {
+		return _count.get();
+	}
+	/**
+	 * Returns the mean of all recorded latencies in nanoseconds, or 0 if none were recorded
+	 * @return The mean latency
+	 * @since 1.2
+	 */
+	public long meanNanos() {
+		long count = _count.get();
+		return count > 0 ? _total.get() / count : 0;
+	}
+	/**
+	 * Returns the highest recorded latency in nanoseconds
+	 * @return The highest latency
+	 * @since 1.2
+	 */
+	public long maxNanos() {
+		return _max.get();
+	}
+	/**
+	 * Returns the amount of latencies in each bucket
+	 * @return The amount of latencies in each bucket
+	 * @since 1.2
+	 */
+	public long[] buckets() {
+		long[] res = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+			res[i] = _buckets.get(i);
+		
+		return res;
+	}
+	
+	/**
+	 * Returns an upper bound in nanoseconds for the specified percentile of recorded latencies, or 0 if none were recorded
+	 * @param percentile The percentile, between 0 and 100
+	 * @return The latency at the percentile
+	 * @since 1.2
+	 */
+	public long percentileNanos(double percentile) {
+		long[] buckets = buckets();
+		long count = 0;
+		for(long amount : buckets)
+			count += amount;
+		if(count == 0)
+			return 0;
+		
+		// Find the bucket containing the percentile, and use its upper bound
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if(seen >= target && i < BUCKETS - 1)
+				return Math.min(_max.get(), (1L << i) * 1000);
+		}
+		
+		return _max.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "count="+count()+" mean="+meanNanos() / 1000+"us p50="+percentileNanos(50) / 1000+"us p99="+percentileNanos(99) / 1000+"us max="+maxNanos() / 1000+"us";
+	}
+}
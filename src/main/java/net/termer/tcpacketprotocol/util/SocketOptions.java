@@ -0,0 +1,61 @@
+package net.termer.tcpacketprotocol.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+/**
+ * Utility class for socket options that are not available on every Java version.
+ * SO_REUSEPORT was added in Java 9, so it is set reflectively to keep Java 8 compatibility.
+ * @author termer
+ * @since 1.2
+ */
+public class SocketOptions {
+	// The SO_REUSEPORT option and ServerSocket.setOption method, or null if the running Java version doesn't have them
+	private static SocketOption<?> _reusePort = null;
+	private static Method _setOption = null;
+	
+	static {
+		try {
+			_reusePort = (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			_setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+		} catch(ReflectiveOperationException e) {
+			_reusePort = null;
+			_setOption = null;
+		}
+	}
+	
+	/**
+	 * Returns whether SO_REUSEPORT can be set on this Java version
+	 * @return Whether SO_REUSEPORT is available
+	 * @since 1.2
+	 */
+	public static boolean reusePortAvailable() {
+		return _setOption != null;
+	}
+	
+	/**
+	 * Sets SO_REUSEPORT on an unbound ServerSocket, allowing multiple sockets to bind the same address and port
+	 * @param socket The ServerSocket
+	 * @param reuse Whether to enable SO_REUSEPORT
+	 * @throws IOException If SO_REUSEPORT is not supported by this Java version or platform, or setting it fails
+	 * @since 1.2
+	 */
+	public static void reusePort(ServerSocket socket, boolean reuse) throws IOException {
+		if(_setOption == null)
+			throw new IOException("SO_REUSEPORT requires Java 9 or newer");
+		
+		try {
+			_setOption.invoke(socket, _reusePort, reuse);
+		} catch(InvocationTargetException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("SO_REUSEPORT is not supported on this platform", e.getCause());
+		} catch(IllegalAccessException e) {
+			throw new IOException("Failed to set SO_REUSEPORT", e);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package net.termer.tcpacketprotocol.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Utility class for reading from InputStreams
+ * @author termer
+ * @since 1.2
+ */
+public class Streams {
+	/**
+	 * Reads bytes until the provided array is full
+	 * @param in The stream to read from
+	 * @param buf The array to read into
+	 * @throws IOException If reading fails, or the stream ends before the array is full
+	 * @since 1.2
+	 */
+	public static void readFully(InputStream in, byte[] buf) throws IOException {
+		int len = 0;
+		while(len < buf.length) {
+			int read = in.read(buf, len, buf.length - len);
+			if(read < 0)
+				throw new EOFException("Stream ended after "+len+" of "+buf.length+" bytes");
+			len += read;
+		}
+	}
+	
+	/**
+	 * Discards the specified amount of bytes, using skip() where possible so nothing is buffered
+	 * @param in The stream to skip bytes in
+	 * @param count The amount of bytes to skip
+	 * @throws IOException If reading fails, or the stream ends before all bytes were skipped
+	 * @since 1.2
+	 */
+	public static void skipFully(InputStream in, long count) throws IOException {
+		while(count > 0) {
+			long skipped = in.skip(count);
+			
+			// Some streams can't skip, or won't until data arrives, so fall back to reading a byte
+			if(skipped < 1) {
+				if(in.read() < 0)
+					throw new EOFException("Stream ended with "+count+" bytes left to skip");
+				skipped = 1;
+			}
+			
+			count -= skipped;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package net.termer.tcpacketprotocol.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Utility class to read and write unsigned variable length integers.
+ * Each byte holds 7 bits of the value, least significant first, with the high bit set on all bytes except the last.
+ * Values are treated as unsigned, so they take between 1 and 5 bytes.
+ * @author termer
+ * @since 1.2
+ */
+public class Varint {
+	/**
+	 * Returns the amount of bytes the provided value takes up when written
+	 * @param value The value
+	 * @return The value's size in bytes
+	 * @since 1.2
+	 */
+	public static int size(int value) {
+		int size = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Writes a value to a ByteBuffer
+	 * @param buf The buffer to write to
+	 * @param value The value to write
+	 * @since 1.2
+	 */
+	public static void write(ByteBuffer buf, int value) {
+		while((value & ~0x7F) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+	
+	/**
+	 * Reads a value from a ByteBuffer
+	 * @param buf The buffer to read from
+	 * @return The value
+	 * @throws BufferUnderflowException If the buffer ends before the value does
+	 * @throws IllegalArgumentException If the value is longer than 5 bytes
+	 * @since 1.2
+	 */
+	public static int read(ByteBuffer buf) {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		
+		throw new IllegalArgumentException("Varint is longer than 5 bytes");
+	}
+	
+	/**
+	 * Reads a value from an InputStream, starting with a byte that was already read
+	 * @param first The first byte of the value
+	 * @param in The stream to read the rest of the value from
+	 * @return The value
+	 * @throws IOException If reading fails, the stream ends before the value does, or the value is longer than 5 bytes
+	 * @since 1.2
+	 */
+	public static int read(int first, InputStream in) throws IOException {
+		int b = first;
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			if(b < 0)
+				throw new EOFException("Stream ended in the middle of a varint");
+			
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+			
+			b = in.read();
+		}
+		
+		throw new IOException("Varint is longer than 5 bytes");
+	}
+}
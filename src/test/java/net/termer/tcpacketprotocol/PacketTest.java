@@ -2,6 +2,14 @@ package net.termer.tcpacketprotocol;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
+
+import net.termer.tcpacketprotocol.util.Crc32c;
+
 import static org.junit.Assert.*;
 
 /**
@@ -70,4 +78,182 @@ public class PacketTest {
         	e.printStackTrace();
         }
     }
+    
+    /**
+	 * Test that compressed packets survive encoding and parsing
+	 * @since 1.2
+	 */
+    @Test public void testCompressedRoundTrip() {
+    	String body = "";
+    	for(int i = 0; i < 50; i++)
+    		body += "Compressible text ";
+    	
+        try {
+        	Packet pkt = new Packet((short) 7).body(body);
+        	pkt.expectingReply(true);
+        	byte[] bytes = pkt.toBytes(64);
+        	assertTrue("Assert that the body was compressed", bytes.length < pkt.toBytes().length);
+        	
+        	Packet parsed = Packet.parsePacket(bytes, 1024);
+        	assertEquals(7, parsed.type());
+        	assertEquals(pkt.id(), parsed.id());
+        	assertEquals(body, parsed.bodyAsString());
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        }
+    }
+    
+    /**
+	 * Returns a codec negotiated between two sides that both support the provided features
+	 * @param features The features both sides support
+	 * @return The negotiated codec
+	 * @throws MalformedPacketException If negotiation fails
+	 * @since 1.2
+	 */
+    private static PacketCodec negotiated(int features) throws MalformedPacketException {
+    	PacketCodec peer = new PacketCodec(features, -1, 1024);
+    	return new PacketCodec(features, -1, 1024).negotiate(peer.hello(Packet.CONTROL_HELLO));
+    }
+    
+    /**
+	 * Strips the frame size from an encoded frame, the way a connection reads it
+	 * @param codec The codec that encoded the frame
+	 * @param frame The encoded frame
+	 * @return The frame's bytes, not including its size
+	 * @throws IOException If reading the frame size fails
+	 * @since 1.2
+	 */
+    private static byte[] frameBody(PacketCodec codec, byte[] frame) throws IOException {
+    	ByteArrayInputStream in = new ByteArrayInputStream(frame);
+    	int size = codec.readFrameSize(in.read(), in);
+    	assertEquals("Assert that the frame size matches the rest of the frame", in.available(), size);
+    	
+    	byte[] bytes = new byte[size];
+    	in.read(bytes, 0, size);
+    	return bytes;
+    }
+    
+    /**
+	 * Test that packets survive encoding and decoding through negotiated codecs using compact headers, checksums, and both
+	 * @since 1.2
+	 */
+    @Test public void testCodecRoundTrip() {
+    	int[] featureSets = {
+    			PacketCodec.FEATURE_COMPACT_HEADERS,
+    			PacketCodec.FEATURE_CHECKSUMS,
+    			PacketCodec.FEATURE_COMPACT_HEADERS | PacketCodec.FEATURE_CHECKSUMS
+    	};
+    	
+        try {
+        	for(int features : featureSets) {
+        		PacketCodec codec = negotiated(features);
+        		assertEquals((features & PacketCodec.FEATURE_COMPACT_HEADERS) != 0, codec.isCompact());
+        		assertEquals((features & PacketCodec.FEATURE_CHECKSUMS) != 0, codec.hasChecksums());
+        		
+        		Packet pkt = new Packet((short) 300).body("Round trip");
+        		pkt.expectingReply(true);
+        		Packet parsed = codec.decode(frameBody(codec, codec.encode(pkt)));
+        		
+        		assertEquals("Assert that the type survives with features "+features, 300, parsed.type());
+        		assertEquals("Assert that the ID survives with features "+features, pkt.id(), parsed.id());
+        		assertTrue("Assert that the packet still expects a reply with features "+features, parsed.expectingReply());
+        		assertEquals("Assert that the body survives with features "+features, "Round trip", parsed.bodyAsString());
+        	}
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        }
+    }
+    
+    /**
+	 * Test that compact headers make a frame with a tiny body smaller than the plain encoding
+	 * @since 1.2
+	 */
+    @Test public void testCompactFrameSize() {
+        try {
+        	Packet pkt = new Packet((short) 1).body("hi");
+        	pkt.expectingReply(true);
+        	
+        	int plain = negotiated(0).encode(pkt).length;
+        	int compact = negotiated(PacketCodec.FEATURE_COMPACT_HEADERS).encode(pkt).length;
+        	assertTrue("Assert that the compact frame ("+compact+" bytes) is smaller than the plain frame ("+plain+" bytes)", compact < plain);
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        }
+    }
+    
+    /**
+	 * Test that a base codec neither compresses bodies nor sends streamed packets, since the other side never agreed to them
+	 * @since 1.2
+	 */
+    @Test public void testBaseCodecFeatures() {
+    	String body = "";
+    	for(int i = 0; i < 50; i++)
+    		body += "Compressible text ";
+    	
+    	PacketCodec base = new PacketCodec(PacketCodec.FEATURES, 64, 1024);
+        try {
+        	Packet pkt = new Packet((short) 3).body(body);
+        	assertEquals("Assert that the body was left uncompressed", pkt.toBytes().length + 4, base.encode(pkt).length);
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        }
+        
+        try {
+        	base.encode(new Packet((short) 3).body("Chunk").setStreamChunk(1, true));
+        	fail("Assert that encoding a stream chunk fails");
+        } catch(IOException e) {
+        	// Expected
+        }
+    }
+    
+    /**
+	 * Test that a frame with a corrupted byte is rejected when checksums are negotiated
+	 * @since 1.2
+	 */
+    @Test public void testChecksumMismatch() {
+    	byte[] bytes;
+        try {
+        	PacketCodec codec = negotiated(PacketCodec.FEATURE_CHECKSUMS);
+        	bytes = frameBody(codec, codec.encode(new Packet((short) 2).body("Checksummed body")));
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        	return;
+        }
+        
+        // Flip a byte in the body
+        bytes[bytes.length - 6] ^= 0x01;
+        try {
+        	negotiated(PacketCodec.FEATURE_CHECKSUMS).decode(bytes);
+        	fail("Assert that decoding a corrupted frame fails");
+        } catch(MalformedPacketException e) {
+        	// Expected
+        }
+    }
+    
+    /**
+	 * Test that both CRC32C implementations produce the standard check value for "123456789"
+	 * @since 1.2
+	 */
+    @Test public void testCrc32cCheckValue() {
+    	byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+    	
+        try {
+        	assertEquals("Assert that Crc32c.compute produces the check value", 0xE3069283, Crc32c.compute(data, 0, data.length));
+        	
+        	// Exercise the table-driven fallback directly, since it is only used automatically on Java 8
+        	Constructor<?> ctor = Class.forName(Crc32c.class.getName()+"$TableCrc32c").getDeclaredConstructor();
+        	ctor.setAccessible(true);
+        	Checksum table = (Checksum) ctor.newInstance();
+        	table.update(data, 0, data.length);
+        	assertEquals("Assert that the table-driven fallback produces the check value", 0xE3069283, (int) table.getValue());
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+package net.termer.tcpacketprotocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Tests the packet writer
+ * @author termer
+ * @since 1.2
+ */
+public class PacketWriterTest {
+	/**
+	 * OutputStream that records what is written to it, and can be blocked to make frames queue up in a writer
+	 * @since 1.2
+	 */
+	public static class BlockingOutputStream extends OutputStream {
+		private final ByteArrayOutputStream _written = new ByteArrayOutputStream();
+		private boolean _blocked = false;
+		
+		// Sets whether writes block
+		public synchronized void blocked(boolean blocked) {
+			_blocked = blocked;
+			notifyAll();
+		}
+		
+		// Returns everything written so far
+		public synchronized byte[] written() {
+			return _written.toByteArray();
+		}
+		
+		public synchronized void write(int b) throws IOException {
+			awaitUnblocked();
+			_written.write(b);
+		}
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			awaitUnblocked();
+			_written.write(b, off, len);
+		}
+		
+		private void awaitUnblocked() throws IOException {
+			try {
+				while(_blocked)
+					wait();
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while blocked");
+			}
+		}
+	}
+	
+	/**
+	 * Parses the frames written by a writer using the base codec
+	 * @param written The bytes that were written
+	 * @return The packets in the order they were written
+	 * @throws MalformedPacketException If a frame can't be parsed
+	 * @since 1.2
+	 */
+	private static ArrayList<Packet> frames(byte[] written) throws MalformedPacketException {
+		ArrayList<Packet> res = new ArrayList<Packet>();
+		ByteBuffer buf = ByteBuffer.wrap(written);
+		while(buf.remaining() > 0) {
+			byte[] frame = new byte[buf.getInt()];
+			buf.get(frame);
+			res.add(Packet.parsePacket(frame));
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Blocks a writer's OutputStream and writes a packet too large to be buffered, so the writer is stuck writing it and everything written after it is queued
+	 * @param writer The writer
+	 * @param out The writer's OutputStream
+	 * @throws Exception If writing fails
+	 * @since 1.2
+	 */
+	private static void plug(PacketWriter writer, BlockingOutputStream out) throws Exception {
+		out.blocked(true);
+		writer.write(new Packet((short) 99).body(new byte[10000]));
+		
+		// Give the writer time to start writing it
+		Thread.sleep(100);
+	}
+	
+	/**
+	 * Test that queued packets are written in order of priority, and in the order they were queued within a priority
+	 * @since 1.2
+	 */
+    @Test public void testPriorityOrder() {
+    	ArrayList<Packet> written = null;
+    	BlockingOutputStream out = new BlockingOutputStream();
+    	PacketWriter writer = new PacketWriter(out, -1, null, "PacketWriterTest-writer");
+        try {
+        	plug(writer, out);
+        	
+        	writer.write(new Packet((short) 1).priority(Packet.PRIORITY_LOW));
+        	writer.write(new Packet((short) 2).priority(Packet.PRIORITY_NORMAL));
+        	writer.write(new Packet((short) 3).priority(Packet.PRIORITY_HIGH));
+        	writer.write(new Packet((short) 4).priority(Packet.PRIORITY_LOW));
+        	writer.write(new Packet((short) 5).priority(Packet.PRIORITY_NORMAL));
+        	writer.write(new Packet((short) 6).priority(Packet.PRIORITY_HIGH));
+        	
+        	out.blocked(false);
+        	writer.close();
+        	written = frames(out.written());
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        } finally {
+        	out.blocked(false);
+        	writer.close();
+        }
+        
+        int[] expected = {99, 3, 6, 2, 5, 1, 4};
+        assertEquals("Assert that every packet was written", expected.length, written.size());
+        for(int i = 0; i < expected.length; i++)
+        	assertEquals("Assert that packet "+i+" is in priority order", expected[i], written.get(i).type());
+    }
+    
+	/**
+	 * Test that queued streams share the connection in proportion to their weights
+	 * @since 1.2
+	 */
+    @Test public void testStreamWeights() {
+    	ArrayList<Packet> written = null;
+    	int light = 0;
+    	int heavy = 0;
+    	BlockingOutputStream out = new BlockingOutputStream();
+    	PacketWriter writer = new PacketWriter(out, -1, null, "PacketWriterTest-writer");
+        try {
+        	plug(writer, out);
+        	
+        	// Chunks just under the quantum, so each point of weight lets a stream write one chunk per round
+        	light = writer.writeStream((short) 1, new ByteArrayInputStream(new byte[4000 * 12]), 4000, 1);
+        	heavy = writer.writeStream((short) 2, new ByteArrayInputStream(new byte[4000 * 12]), 4000, 3);
+        	
+        	out.blocked(false);
+        	writer.close();
+        	written = frames(out.written());
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        } finally {
+        	out.blocked(false);
+        	writer.close();
+        }
+        
+        // Each stream sends 12 full chunks and an empty last chunk after the plug
+        assertEquals("Assert that every chunk was written", 1 + 13 * 2, written.size());
+        
+        // While both have chunks queued, the heavier stream writes three chunks for every one of the lighter stream
+        int lightCount = 0;
+        int heavyCount = 0;
+        for(int i = 1; i <= 16; i++) {
+        	Packet chunk = written.get(i);
+        	assertTrue("Assert that frame "+i+" is a stream chunk", chunk.isStreamChunk());
+        	if(chunk.id() == light)
+        		lightCount++;
+        	else if(chunk.id() == heavy)
+        		heavyCount++;
+        }
+        assertEquals("Assert that the lighter stream got a quarter of the first rounds", 4, lightCount);
+        assertEquals("Assert that the heavier stream got three quarters of the first rounds", 12, heavyCount);
+    }
+    
+	/**
+	 * Test that a write after a long quiet period is not reported as stalled for the time the writer was idle
+	 * @since 1.2
+	 */
+    @Test public void testStallAfterIdle() {
+    	long stalled = -1;
+    	BlockingOutputStream out = new BlockingOutputStream();
+    	PacketWriter writer = new PacketWriter(out, -1, null, "PacketWriterTest-writer");
+        try {
+        	// Stay idle, then write a packet too large to be buffered, so it gets stuck in the OutputStream
+        	Thread.sleep(400);
+        	out.blocked(true);
+        	writer.write(new Packet().body(new byte[10000]));
+        	Thread.sleep(100);
+        	
+        	stalled = writer.stalledTime();
+        } catch(Exception e) {
+        	e.printStackTrace();
+        	fail(e.getMessage());
+        } finally {
+        	out.blocked(false);
+        	writer.close();
+        }
+        assertTrue("Assert that the writer reports being stalled", stalled > 0);
+        assertTrue("Assert that the stall ("+stalled+"ms) was measured from the write, not from the end of the idle period", stalled < 300);
+    }
+}
\ No newline at end of file
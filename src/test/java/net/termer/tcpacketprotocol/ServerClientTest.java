@@ -1,15 +1,46 @@
 package net.termer.tcpacketprotocol;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 import net.termer.tcpacketprotocol.client.TCPacketClient;
+import net.termer.tcpacketprotocol.client.TCPacketClientPool;
 import net.termer.tcpacketprotocol.client.TCPacketClientSettings;
+import net.termer.tcpacketprotocol.server.ServerConnection;
 import net.termer.tcpacketprotocol.server.TCPacketServer;
+import net.termer.tcpacketprotocol.server.TCPacketServerGroup;
 import net.termer.tcpacketprotocol.server.TCPacketServerSettings;
+import net.termer.tcpacketprotocol.transport.LocalTransport;
+import net.termer.tcpacketprotocol.transport.SharedMemoryTransport;
+import net.termer.tcpacketprotocol.transport.TransportConnection;
+import net.termer.tcpacketprotocol.transport.TransportListener;
+import net.termer.tcpacketprotocol.transport.UnixDomainTransport;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Tests basic server capabilities
@@ -234,4 +265,1702 @@ public class ServerClientTest {
 		}
 		assertTrue("Assert that client recieved a reply", clientGotReply);
     }
+    
+    private byte[] serverStreamBody = null;
+    /**
+     * Test a server's ability to receive a streamed packet larger than the max packet body size
+     * @since 1.2
+     */
+    @Test public void testServerStreamReceive() {
+    	byte[] data = new byte[100000];
+    	for(int i = 0; i < data.length; i++)
+    		data[i] = (byte) i;
+    	
+    	TCPacketServer server = null;
+    	TCPacketClient client = null;
+		try {
+			server = server(true);
+			client = client(server, true);
+			
+			int triesLeft = 50;
+			
+			// Read the whole stream
+			server.streamHandler(stream -> {
+				try {
+					byte[] body = new byte[data.length];
+					int len = 0;
+					int read = 0;
+					while((read = stream.read(body, len, body.length - len)) > 0)
+						len += read;
+					
+					serverStreamBody = body;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			
+			// Send the data as a stream
+			client.sendStream((short) 0, new ByteArrayInputStream(data));
+			
+			// Sleep until got the stream or ran out of tries
+			while(serverStreamBody == null && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(client != null)
+					client.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		assertTrue("Assert that server recieved the full stream", Arrays.equals(data, serverStreamBody));
+    }
+    
+    private PacketStream unreadStream = null;
+    private boolean gotReplyDuringStream = false;
+    /**
+     * Test that a stream nobody reads is aborted instead of stopping the connection from handling other packets
+     * @since 1.2
+     */
+    @Test public void testUnreadStreamAborted() {
+    	boolean readFailed = false;
+    	TCPacketServer server = null;
+    	TCPacketClient client = null;
+		try {
+			server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.streamBufferSize(10000)
+			).start();
+			client = client(server, true);
+			
+			// Keep the stream without reading it
+			server.streamHandler(stream -> unreadStream = stream);
+			server.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body("Test"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			
+			// Send far more than the stream buffer holds, then a packet that needs the connection to keep reading
+			client.sendStream((short) 0, new ByteArrayInputStream(new byte[100000]));
+			client.send(new Packet().body("Test"), (pkt, timedOut) -> {
+				gotReplyDuringStream = !timedOut;
+			});
+			
+			// Sleep until got a reply or ran out of tries
+			int triesLeft = 50;
+			while(!gotReplyDuringStream && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			try {
+				while(unreadStream.read() > -1);
+			} catch(IOException e) {
+				readFailed = true;
+			}
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(client != null)
+					client.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		assertTrue("Assert that the connection kept handling packets while the stream went unread", gotReplyDuringStream);
+		assertTrue("Assert that the unread stream was aborted", unreadStream != null && unreadStream.isAborted());
+		assertTrue("Assert that reading the aborted stream failed", readFailed);
+    }
+    
+    /**
+     * Test a client pool's ability to route packets and receive their replies
+     * @since 1.2
+     */
+    @Test public void testClientPoolReplies() {
+    	AtomicInteger replies = new AtomicInteger(0);
+    	TCPacketServer server = null;
+    	TCPacketClientPool pool = null;
+		try {
+			server = server(true);
+			
+			int triesLeft = 50;
+			
+			// Reply to received packets
+			server.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body("Test"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			
+			pool = new TCPacketClientPool(3, new TCPacketClientSettings()
+					.port(server.serverSocket().getLocalPort())
+					.printErrors(true)
+			).connect();
+			
+			// Send packets and count replies
+			for(int i = 0; i < 30; i++)
+				pool.send(new Packet().body("Test"), (pkt, timedOut) -> {
+					if(!timedOut)
+						replies.incrementAndGet();
+				});
+			
+			// Sleep until got all replies or ran out of tries
+			while(replies.get() < 30 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(pool != null)
+					pool.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		assertEquals("Assert that the pool recieved all replies", 30, replies.get());
+    }
+    
+    /**
+     * Starts a server that replies to each copy of a request after the delay listed for that copy in the request's comma-separated body.
+     * The ports of the connections that received each body are recorded in the order they arrived.
+     * @param receivers The ports of the connections that received each body
+     * @return The server
+     * @throws IOException If starting the server fails
+     * @since 1.2
+     */
+    private TCPacketServer delayingServer(ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> receivers) throws IOException {
+    	TCPacketServer server = server(true);
+		server.packetHandler(pkt -> {
+			String body = pkt.bodyAsString();
+			String[] delays = body.split(",");
+			
+			int copy;
+			synchronized(receivers) {
+				CopyOnWriteArrayList<Integer> ports = receivers.computeIfAbsent(body, key -> new CopyOnWriteArrayList<Integer>());
+				copy = ports.size();
+				ports.add(pkt.source().getPort());
+			}
+			long delay = Long.parseLong(delays[Math.min(copy, delays.length - 1)]);
+			
+			new Thread(() -> {
+				try {
+					Thread.sleep(delay);
+					pkt.replyWith(new Packet().body(String.valueOf(copy)));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}).start();
+		});
+		
+		return server;
+    }
+    /**
+     * Creates a pool with two connections to the provided server that hedges requests slower than all recent ones, and sends enough fast requests for hedging to start
+     * @param server The server to connect to
+     * @return The pool
+     * @throws Exception If connecting or sending fails
+     * @since 1.2
+     */
+    private TCPacketClientPool hedgingPool(TCPacketServer server) throws Exception {
+    	TCPacketClientPool pool = new TCPacketClientPool(2, new TCPacketClientSettings()
+				.port(server.serverSocket().getLocalPort())
+				.printErrors(true)
+		).hedgePercentile(99).minHedgeDelay(50).connect();
+    	
+    	// The hedging delay is calculated after every 16 replies
+    	CountDownLatch warmedUp = new CountDownLatch(16);
+    	for(int i = 0; i < 16; i++)
+    		pool.send(new Packet().body("0"), (pkt, timedOut) -> warmedUp.countDown());
+    	warmedUp.await();
+    	
+    	return pool;
+    }
+    
+    /**
+     * Test that a request whose first copy is slow is hedged on another client, and gets the hedged copy's reply
+     * @since 1.2
+     */
+    @Test public void testHedgedRequest() {
+    	ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> receivers = new ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>();
+    	AtomicInteger winner = new AtomicInteger(-1);
+    	long hedgeDelay = -1;
+    	long hedged = 0;
+    	TCPacketServer server = null;
+    	TCPacketClientPool pool = null;
+		try {
+			server = delayingServer(receivers);
+			pool = hedgingPool(server);
+			hedgeDelay = pool.hedgeDelay();
+			
+			// The first copy takes far longer than the hedging delay, and the hedged copy is fast
+			pool.send(new Packet().body("1000,0"), new PacketReplyHandler(5, (pkt, timedOut) -> {
+				if(!timedOut)
+					winner.set(Integer.parseInt(pkt.bodyAsString()));
+			}));
+			
+			// Sleep until got a reply or ran out of tries
+			int triesLeft = 5;
+			while(winner.get() < 0 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			hedged = pool.hedgedRequests();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(pool != null)
+					pool.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		CopyOnWriteArrayList<Integer> ports = receivers.get("1000,0");
+		assertTrue("Assert that hedging started with a delay ("+hedgeDelay+"ms) well under the first copy's", hedgeDelay >= 50 && hedgeDelay < 500);
+		assertEquals("Assert that one hedged copy was sent", 1, hedged);
+		assertEquals("Assert that the hedged copy's reply won", 1, winner.get());
+		assertTrue("Assert that the hedged copy was sent with another client", ports != null && ports.size() == 2 && !ports.get(0).equals(ports.get(1)));
+    }
+    
+    /**
+     * Test that the hedged copy of a request is cancelled when the first copy's reply wins
+     * @since 1.2
+     */
+    @Test public void testHedgedCopyCancelled() {
+    	ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> receivers = new ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>();
+    	AtomicInteger winner = new AtomicInteger(-1);
+    	int outstanding = -1;
+    	long hedged = 0;
+    	TCPacketServer server = null;
+    	TCPacketClientPool pool = null;
+		try {
+			server = delayingServer(receivers);
+			pool = hedgingPool(server);
+			
+			// The first copy is slow enough to be hedged, but the hedged copy is much slower
+			pool.send(new Packet().body("150,3000"), new PacketReplyHandler(5, (pkt, timedOut) -> {
+				if(!timedOut)
+					winner.set(Integer.parseInt(pkt.bodyAsString()));
+			}));
+			
+			// Sleep until got a reply or ran out of tries
+			int triesLeft = 20;
+			while(winner.get() < 0 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			hedged = pool.hedgedRequests();
+			
+			// Give the cancellation time to run, which is well before the hedged copy would be replied to
+			Thread.sleep(200);
+			outstanding = 0;
+			for(TCPacketClient client : pool.clients())
+				outstanding += client.outstandingReplies();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(pool != null)
+					pool.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		assertEquals("Assert that one hedged copy was sent", 1, hedged);
+		assertEquals("Assert that the first copy's reply won", 0, winner.get());
+		assertEquals("Assert that the hedged copy stopped waiting for its reply", 0, outstanding);
+    }
+    
+    /**
+     * Test that the latency of a first copy that lost to its hedged copy still counts towards the hedging delay
+     * @since 1.2
+     */
+    @Test public void testHedgedLoserLatencyRecorded() {
+    	ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> receivers = new ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>();
+    	long hedgeDelay = -1;
+    	TCPacketServer server = null;
+    	TCPacketClientPool pool = null;
+		try {
+			server = delayingServer(receivers);
+			pool = hedgingPool(server);
+			
+			// The first copy loses to the hedged copy, but is still replied to later
+			CountDownLatch replied = new CountDownLatch(1);
+			pool.send(new Packet().body("600,0"), new PacketReplyHandler(5, (pkt, timedOut) -> replied.countDown()));
+			replied.await();
+			Thread.sleep(800);
+			
+			// The hedging delay is only calculated again after every 16 replies, so keep sending fast requests until it changes
+			for(int i = 0; i < 64 && pool.hedgeDelay() < 500; i++) {
+				CountDownLatch filled = new CountDownLatch(1);
+				pool.send(new Packet().body("0"), (pkt, timedOut) -> filled.countDown());
+				filled.await();
+			}
+			hedgeDelay = pool.hedgeDelay();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(pool != null)
+					pool.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		assertTrue("Assert that the losing first copy's latency ("+hedgeDelay+"ms) set the hedging delay", hedgeDelay >= 500);
+    }
+    
+    /**
+     * Test that requests sent with the legacy reply handler are hedged too
+     * @since 1.2
+     */
+    @Test public void testHedgedLegacyReplyHandler() {
+    	ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> receivers = new ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>();
+    	AtomicInteger winner = new AtomicInteger(-1);
+    	long hedged = 0;
+    	TCPacketServer server = null;
+    	TCPacketClientPool pool = null;
+		try {
+			server = delayingServer(receivers);
+			pool = hedgingPool(server);
+			
+			pool.send(new Packet().body("1000,0"), (pkt, timedOut) -> {
+				if(!timedOut)
+					winner.set(Integer.parseInt(pkt.bodyAsString()));
+			});
+			
+			// Sleep until got a reply or ran out of tries
+			int triesLeft = 5;
+			while(winner.get() < 0 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			hedged = pool.hedgedRequests();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			try {
+				if(pool != null)
+					pool.close();
+				if(server != null)
+					server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		assertEquals("Assert that one hedged copy was sent", 1, hedged);
+		assertEquals("Assert that the hedged copy's reply won", 1, winner.get());
+    }
+    
+    /**
+     * Test that a batch of packets sent by a server arrives in order
+     * @since 1.2
+     */
+    @Test public void testSendAllOrder() {
+    	CopyOnWriteArrayList<String> received = new CopyOnWriteArrayList<String>();
+    	ArrayList<String> expected = new ArrayList<String>();
+		try {
+			TCPacketServer server = server(true);
+			
+			// Handle packets on the connection's thread, so they're recorded in the order they arrived
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.port(server.serverSocket().getLocalPort())
+					.blockingHandlers(true)
+					.printErrors(true)
+			);
+			client.packetHandler(pkt -> received.add(pkt.bodyAsString()));
+			client.connect();
+			
+			int triesLeft = 50;
+			while(server.connections().length < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			ArrayList<Packet> batch = new ArrayList<Packet>();
+			for(int i = 0; i < 50; i++) {
+				expected.add(String.valueOf(i));
+				batch.add(new Packet().body(String.valueOf(i)));
+			}
+			server.connections()[0].sendAll(batch);
+			
+			// Sleep until got the whole batch or ran out of tries
+			triesLeft = 50;
+			while(received.size() < expected.size() && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that the batch arrived in order", expected, new ArrayList<String>(received));
+    }
+    
+    /**
+     * Test that the replies to a batch of requests are resolved in the order of the requests, even when they arrive out of order
+     * @since 1.2
+     */
+    @Test public void testRequestAllOrder() {
+    	Packet[] replies = null;
+		try {
+			TCPacketServer server = server(true);
+			
+			// Reply to later packets sooner
+			server.packetHandler(pkt -> {
+				int index = Integer.parseInt(pkt.bodyAsString());
+				new Thread(() -> {
+					try {
+						Thread.sleep((10 - index) * 20);
+						pkt.replyWith(new Packet().body(pkt.bodyAsString()));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}).start();
+			});
+			
+			TCPacketClient client = client(server, true);
+			ArrayList<Packet> batch = new ArrayList<Packet>();
+			for(int i = 0; i < 10; i++)
+				batch.add(new Packet().body(String.valueOf(i)));
+			replies = client.requestAll(batch).get(5, TimeUnit.SECONDS);
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertNotNull("Assert that the batch was replied to", replies);
+		for(int i = 0; i < 10; i++)
+			assertEquals("Assert that reply "+i+" is for request "+i, String.valueOf(i), replies[i].bodyAsString());
+    }
+    
+    /**
+     * Test that the reply handlers of a batch are removed again when it can't be sent
+     * @since 1.2
+     */
+    @Test public void testRequestAllRollback() {
+    	boolean clientFailed = false;
+    	boolean serverFailed = false;
+    	int clientOutstanding = -1;
+    	int serverOutstanding = -1;
+		try {
+			TCPacketServer server = server(true);
+			TCPacketClient client = client(server, true);
+			
+			int triesLeft = 50;
+			while(server.connections().length < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			ServerConnection conn = server.connections()[0];
+			
+			// Closed writers refuse anything else
+			client.writer().close();
+			conn.writer().close();
+			
+			try {
+				client.requestAll(Arrays.asList(new Packet().body("Test"), new Packet().body("Test")));
+			} catch(IOException e) {
+				clientFailed = true;
+			}
+			try {
+				conn.requestAll(Arrays.asList(new Packet().body("Test"), new Packet().body("Test")));
+			} catch(IOException e) {
+				serverFailed = true;
+			}
+			clientOutstanding = client.outstandingReplies();
+			serverOutstanding = conn.outstandingReplies();
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the client's batch failed to send", clientFailed);
+		assertTrue("Assert that the server's batch failed to send", serverFailed);
+		assertEquals("Assert that the client has no replies left outstanding", 0, clientOutstanding);
+		assertEquals("Assert that the server connection has no replies left outstanding", 0, serverOutstanding);
+    }
+    
+    private boolean localGotReply = false;
+    /**
+     * Test a client's ability to send a packet and receive a reply over the in-process transport
+     * @since 1.2
+     */
+    @Test public void testLocalTransportReply() {
+    	LocalTransport transport = new LocalTransport();
+		try {
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.transport(transport)
+					.bindPort(9999)
+					.printErrors(true)
+			).start();
+			
+			int triesLeft = 50;
+			
+			// Reply to received packets
+			server.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body("Test"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.transport(transport)
+					.port(9999)
+					.printErrors(true)
+			).connect();
+			
+			client.send(new Packet().body("Test"), (pkt, timedOut) -> {
+				localGotReply = !timedOut;
+			});
+			
+			// Sleep until got a reply or ran out of tries
+			while(!localGotReply && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the client recieved a reply over the local transport", localGotReply);
+    }
+    
+    /**
+     * Test that connections made to the in-process transport while its listener is closing are refused or closed, rather than left waiting forever
+     * @since 1.2
+     */
+    @Test public void testLocalTransportConnectRacingClose() {
+    	LocalTransport transport = new LocalTransport();
+    	AtomicInteger stranded = new AtomicInteger(0);
+    	AtomicInteger connected = new AtomicInteger(0);
+		try {
+			for(int i = 0; i < 200; i++) {
+				TransportListener listener = transport.listen(null, 9998, 16);
+				CountDownLatch ready = new CountDownLatch(1);
+				ArrayList<Thread> clients = new ArrayList<Thread>();
+				for(int j = 0; j < 4; j++) {
+					Thread thread = new Thread(() -> {
+						TransportConnection conn;
+						try {
+							ready.await();
+							conn = transport.connect(null, 9998);
+						} catch(Exception e) {
+							// Refused because the listener closed first
+							return;
+						}
+						connected.incrementAndGet();
+						
+						// The connection was never accepted, so it must end instead of timing out
+						try {
+							conn.readTimeout(2000);
+							if(conn.inputStream().read() > -1)
+								stranded.incrementAndGet();
+						} catch(IOException e) {
+							stranded.incrementAndGet();
+						}
+					});
+					clients.add(thread);
+					thread.start();
+				}
+				
+				ready.countDown();
+				listener.close();
+				for(Thread thread : clients)
+					thread.join();
+			}
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that no connection ("+connected.get()+" got through) was left waiting on a closed listener", 0, stranded.get());
+    }
+    
+    /**
+     * Test that disconnect handlers still run to completion when a server is closed immediately
+     * @since 1.2
+     */
+    @Test public void testDisconnectHandlerOnClose() {
+    	AtomicInteger disconnects = new AtomicInteger(0);
+		try {
+			TCPacketServer server = server(true);
+			TCPacketClient client = client(server, true);
+			
+			int triesLeft = 50;
+			
+			// Take a while, so the handler is still running when the executor is shut down
+			server.disconnectHandler(conn -> {
+				try {
+					Thread.sleep(200);
+					disconnects.incrementAndGet();
+				} catch(InterruptedException e) {
+					// Interrupted by closing the server
+				}
+			});
+			
+			// Wait for the connection to be registered before closing
+			while(server.connections().length < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			server.close();
+			
+			// Sleep until the disconnect handler ran or ran out of tries
+			while(disconnects.get() < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that the disconnect handler ran after closing the server", 1, disconnects.get());
+    }
+    
+    /**
+     * Test that the client and server negotiate the features both of them support
+     * @since 1.2
+     */
+    @Test public void testHandshakeNegotiation() {
+    	PacketCodec clientCodec = null;
+    	PacketCodec serverCodec = null;
+		try {
+			TCPacketServer server = server(true);
+			
+			// The server offers checksums by default, but this client does not
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.port(server.serverSocket().getLocalPort())
+					.checksums(false)
+					.printErrors(true)
+			).connect();
+			
+			// The server switches codecs once it has answered the handshake
+			int triesLeft = 50;
+			while((server.connections().length < 1 || !server.connections()[0].codec().isNegotiated()) && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			clientCodec = client.writer().codec();
+			serverCodec = server.connections()[0].codec();
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the client negotiated a codec", clientCodec != null && clientCodec.isNegotiated());
+		assertTrue("Assert that the server negotiated a codec", serverCodec != null && serverCodec.isNegotiated());
+		assertEquals("Assert that both sides agreed on the same features", clientCodec.features(), serverCodec.features());
+		assertFalse("Assert that checksums were left out", clientCodec.hasChecksums());
+		assertTrue("Assert that compact headers were kept", clientCodec.isCompact());
+    }
+    
+    /**
+     * Test that connecting fails when the server never answers the handshake, unless the handshake is skipped
+     * @since 1.2
+     */
+    @Test public void testHandshakeTimeout() {
+    	boolean timedOut = false;
+    	PacketCodec codec = null;
+		try(ServerSocket oldServer = new ServerSocket(0)) {
+			try {
+				new TCPacketClient(
+						new TCPacketClientSettings()
+						.port(oldServer.getLocalPort())
+						.handshakeTimeout(300)
+				).connect();
+			} catch(IOException e) {
+				timedOut = true;
+			}
+			
+			// Servers that don't support the handshake are connected to by skipping it
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.port(oldServer.getLocalPort())
+					.handshakeTimeout(-1)
+					.printErrors(true)
+			).connect();
+			
+			codec = client.writer().codec();
+			client.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that connecting failed when the handshake timed out", timedOut);
+		assertNotNull("Assert that the client connected without a handshake", codec);
+		assertFalse("Assert that the client kept the base codec", codec.isNegotiated());
+    }
+    
+    /**
+     * Starts a server that only accepts small packets, and counts the normal packets it handles
+     * @param policy The server's oversized frame policy
+     * @param handled Counter of normal packets handled by the server
+     * @return The server
+     * @throws IOException If starting the server fails
+     * @since 1.2
+     */
+    private TCPacketServer oversizedServer(int policy, AtomicInteger handled) throws IOException {
+    	TCPacketServer server = new TCPacketServer(
+				new TCPacketServerSettings()
+				.bindPort(0)
+				.maxPacketBodySize(1000)
+				.oversizedFramePolicy(policy)
+		).start();
+		server.packetHandler(pkt -> {
+			if(pkt.bodyAsString().equals("Normal"))
+				handled.incrementAndGet();
+		});
+		
+		return server;
+    }
+    
+    /**
+     * Sends a frame larger than the server's max packet body size followed by a normal packet, then waits for the server to process them
+     * @param server The server to send to
+     * @param handled Counter of normal packets handled by the server
+     * @return The client that sent the packets
+     * @throws Exception If connecting fails
+     * @since 1.2
+     */
+    private TCPacketClient sendOversized(TCPacketServer server, AtomicInteger handled) throws Exception {
+		// Skip the handshake so the client doesn't refuse to send the oversized frame itself
+		TCPacketClient client = new TCPacketClient(
+				new TCPacketClientSettings()
+				.port(server.serverSocket().getLocalPort())
+				.handshakeTimeout(-1)
+		).connect();
+		
+		try {
+			// Random bytes, so compression can't shrink the frame under the limit
+			byte[] body = new byte[5000];
+			new Random().nextBytes(body);
+			client.send(new Packet().body(body));
+			client.send(new Packet().body("Normal"));
+		} catch(IOException e) {
+			// The server may have closed the connection already
+		}
+		
+		// Sleep until the oversized frame was counted and the connection either handled the next packet or was closed
+		int triesLeft = 50;
+		while((server.oversizedFrames() < 1 || (handled.get() < 1 && server.connections().length > 0)) && triesLeft > 0) {
+			Thread.sleep(100);
+			triesLeft--;
+		}
+		
+		return client;
+    }
+    
+    /**
+     * Test that a server skips oversized frames and keeps handling packets on the same connection
+     * @since 1.2
+     */
+    @Test public void testOversizedFrameSkip() {
+    	AtomicInteger handled = new AtomicInteger(0);
+    	long oversized = 0;
+		try {
+			TCPacketServer server = oversizedServer(TCPacketServerSettings.OVERSIZED_SKIP, handled);
+			TCPacketClient client = sendOversized(server, handled);
+			oversized = server.oversizedFrames();
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that the oversized frame was counted", 1, oversized);
+		assertEquals("Assert that the packet after the oversized frame was handled", 1, handled.get());
+    }
+    
+    /**
+     * Test that a server closes connections that send oversized frames when told to
+     * @since 1.2
+     */
+    @Test public void testOversizedFrameClose() {
+    	AtomicInteger handled = new AtomicInteger(0);
+    	long oversized = 0;
+    	int connections = -1;
+		try {
+			TCPacketServer server = oversizedServer(TCPacketServerSettings.OVERSIZED_CLOSE, handled);
+			TCPacketClient client = sendOversized(server, handled);
+			oversized = server.oversizedFrames();
+			connections = server.connections().length;
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that the oversized frame was counted", 1, oversized);
+		assertEquals("Assert that the packet after the oversized frame was not handled", 0, handled.get());
+		assertEquals("Assert that the server closed the connection", 0, connections);
+    }
+    
+    private boolean retriedGotReply = false;
+    /**
+     * Test that a reconnecting client retries a pending request on the new connection after the server restarts
+     * @since 1.2
+     */
+    @Test public void testReconnectRetry() {
+		try {
+			// The first server never replies
+			TCPacketServer oldServer = server(true);
+			int port = oldServer.serverSocket().getLocalPort();
+			
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.port(port)
+					.reconnect(true)
+					.reconnectDelay(50)
+					.replayPolicy(TCPacketClientSettings.REPLAY_RETRY)
+					.printErrors(true)
+			).connect();
+			
+			int triesLeft = 50;
+			while(oldServer.connections().length < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.send(new Packet().body("Test"), new PacketReplyHandler(10, (pkt, timedOut) -> {
+				retriedGotReply = !timedOut;
+			}));
+			Thread.sleep(200);
+			
+			// Restart the server on the same port, this time replying to packets
+			for(ServerConnection conn : oldServer.connections())
+				conn.disconnect();
+			oldServer.close();
+			
+			TCPacketServer newServer = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(port)
+					.printErrors(true)
+			);
+			newServer.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body("Test"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			newServer.start();
+			
+			// Sleep until got a reply or ran out of tries
+			triesLeft = 50;
+			while(!retriedGotReply && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+			newServer.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the pending request was retried and replied to after reconnecting", retriedGotReply);
+    }
+    
+    /**
+     * Test that a server closes connections that go quiet, but heartbeats keep a connection alive
+     * @since 1.2
+     */
+    @Test public void testIdleTimeoutAndHeartbeat() {
+    	boolean quietClosed = false;
+    	boolean heartbeatClosed = true;
+		try {
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.readIdleTimeout(300)
+					.printErrors(true)
+			).start();
+			
+			TCPacketClient quiet = client(server, true);
+			TCPacketClient heartbeat = new TCPacketClient(
+					new TCPacketClientSettings()
+					.port(server.serverSocket().getLocalPort())
+					.heartbeatInterval(100)
+					.printErrors(true)
+			).connect();
+			
+			// Sleep well past the idle timeout
+			Thread.sleep(1000);
+			quietClosed = quiet.isClosed();
+			heartbeatClosed = heartbeat.isClosed();
+			
+			quiet.close();
+			heartbeat.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the quiet connection was closed", quietClosed);
+		assertFalse("Assert that the connection sending heartbeats was kept open", heartbeatClosed);
+    }
+    
+    /**
+     * Test that socket option settings are applied to both ends of a connection
+     * @since 1.2
+     */
+    @Test public void testSocketOptions() {
+    	boolean serverNoDelay = true;
+    	boolean serverKeepAlive = false;
+    	boolean clientNoDelay = true;
+    	boolean clientKeepAlive = false;
+		try {
+			// Use the opposite of the defaults, so it's clear the settings were applied
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.tcpNoDelay(false)
+					.keepAlive(true)
+					.printErrors(true)
+			).start();
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.port(server.serverSocket().getLocalPort())
+					.tcpNoDelay(false)
+					.keepAlive(true)
+					.printErrors(true)
+			).connect();
+			
+			int triesLeft = 50;
+			while(server.connections().length < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			serverNoDelay = server.connections()[0].socket().getTcpNoDelay();
+			serverKeepAlive = server.connections()[0].socket().getKeepAlive();
+			clientNoDelay = client.socket().getTcpNoDelay();
+			clientKeepAlive = client.socket().getKeepAlive();
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertFalse("Assert that the server disabled TCP_NODELAY", serverNoDelay);
+		assertTrue("Assert that the server enabled SO_KEEPALIVE", serverKeepAlive);
+		assertFalse("Assert that the client disabled TCP_NODELAY", clientNoDelay);
+		assertTrue("Assert that the client enabled SO_KEEPALIVE", clientKeepAlive);
+    }
+    
+    /**
+     * Test a server group's ability to accept connections on one port and handle their packets with the group's handlers
+     * @since 1.2
+     */
+    @Test public void testServerGroup() {
+    	AtomicInteger replies = new AtomicInteger(0);
+    	int connections = 0;
+    	boolean closed = false;
+    	boolean settingsUnchanged = false;
+		try {
+			// Shards must share a fixed port, so find a free one
+			int port;
+			try(ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+			
+			TCPacketServerSettings settings = new TCPacketServerSettings()
+					.bindPort(port)
+					.printErrors(true);
+			TCPacketServerGroup group = new TCPacketServerGroup(2, settings);
+			settingsUnchanged = !settings.reusePort();
+			group.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body("Test"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			group.start();
+			
+			TCPacketClient[] clients = new TCPacketClient[6];
+			for(int i = 0; i < clients.length; i++) {
+				clients[i] = new TCPacketClient(
+						new TCPacketClientSettings()
+						.port(port)
+						.printErrors(true)
+				).connect();
+				clients[i].send(new Packet().body("Test"), (pkt, timedOut) -> {
+					if(!timedOut)
+						replies.incrementAndGet();
+				});
+			}
+			
+			// Sleep until got all replies or ran out of tries
+			int triesLeft = 50;
+			while(replies.get() < clients.length && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			connections = group.connections().length;
+			
+			for(TCPacketClient client : clients)
+				client.close();
+			group.close();
+			closed = group.isClosed();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that every client got a reply from the group", 6, replies.get());
+		assertEquals("Assert that the group tracked every connection", 6, connections);
+		assertTrue("Assert that the group closed", closed);
+		assertTrue("Assert that the group did not change the provided settings", settingsUnchanged);
+    }
+    
+    /**
+     * Tries to connect a client to a server
+     * @param server The server
+     * @return The connected client, or null if the server turned it away as busy
+     * @throws IOException If connecting fails for another reason
+     * @since 1.2
+     */
+    private TCPacketClient tryConnect(TCPacketServer server) throws IOException {
+    	TCPacketClient client = client(server, false);
+    	try {
+    		return client.connect();
+    	} catch(IOException e) {
+    		client.close();
+    		if(e.getMessage() != null && e.getMessage().contains("busy"))
+    			return null;
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Test that connections over the per-address limit are turned away with a CONTROL_BUSY packet until a slot frees up
+     * @since 1.2
+     */
+    @Test public void testConnectionsPerAddressLimit() {
+    	boolean firstAdmitted = false;
+    	boolean secondRejected = false;
+    	long rejected = -1;
+    	boolean admittedAfterClose = false;
+		try {
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.maxConnectionsPerAddress(1)
+					.printErrors(true)
+			).start();
+			
+			TCPacketClient first = tryConnect(server);
+			firstAdmitted = first != null;
+			secondRejected = tryConnect(server) == null;
+			rejected = server.rejectedConnections();
+			first.close();
+			
+			// Sleep until the slot is freed and a new connection gets in or ran out of tries
+			TCPacketClient next = null;
+			int triesLeft = 50;
+			while(next == null && triesLeft > 0) {
+				Thread.sleep(100);
+				next = tryConnect(server);
+				triesLeft--;
+			}
+			admittedAfterClose = next != null;
+			
+			if(next != null)
+				next.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the first connection was admitted", firstAdmitted);
+		assertTrue("Assert that the second connection from the same address was told the server is busy", secondRejected);
+		assertEquals("Assert that the rejection was counted", 1, rejected);
+		assertTrue("Assert that a connection was admitted again once the first one closed", admittedAfterClose);
+    }
+    
+    /**
+     * Test that connections over the accept rate are turned away once the burst is used up, and admitted again once tokens refill
+     * @since 1.2
+     */
+    @Test public void testAcceptRateLimit() {
+    	int admitted = 0;
+    	boolean overRateRejected = false;
+    	boolean admittedAfterRefill = false;
+    	long rejected = -1;
+    	ArrayList<TCPacketClient> clients = new ArrayList<TCPacketClient>();
+		try {
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.acceptRate(1)
+					.acceptBurst(2)
+					.printErrors(true)
+			).start();
+			
+			// The burst lets two connections in at once
+			for(int i = 0; i < 2; i++) {
+				TCPacketClient client = tryConnect(server);
+				if(client != null) {
+					clients.add(client);
+					admitted++;
+				}
+			}
+			overRateRejected = tryConnect(server) == null;
+			rejected = server.rejectedConnections();
+			
+			// Wait for a token to refill
+			Thread.sleep(1200);
+			TCPacketClient client = tryConnect(server);
+			if(client != null) {
+				clients.add(client);
+				admittedAfterRefill = true;
+			}
+			
+			for(TCPacketClient c : clients)
+				c.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that the burst was admitted", 2, admitted);
+		assertTrue("Assert that a connection over the rate was told the server is busy", overRateRejected);
+		assertEquals("Assert that the rejection was counted", 1, rejected);
+		assertTrue("Assert that a connection was admitted after tokens refilled", admittedAfterRefill);
+    }
+    
+    /**
+     * Test that closing a server promptly stops connection threads that are waiting for a connection
+     * @since 1.2
+     */
+    @Test public void testCloseWithIdleThreads() {
+    	long closeTime = -1;
+    	ArrayList<Thread> leftover = new ArrayList<Thread>();
+		try {
+			Set<Thread> before = Thread.getAllStackTraces().keySet();
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.maxConnections(50)
+					.printErrors(true)
+			).start();
+			
+			// Let every connection thread start waiting
+			Thread.sleep(200);
+			
+			long start = System.currentTimeMillis();
+			server.close();
+			closeTime = System.currentTimeMillis() - start;
+			
+			for(Thread thread : Thread.getAllStackTraces().keySet())
+				if(!before.contains(thread) && thread.getName().startsWith("TCPacketServer-") && thread.isAlive())
+					leftover.add(thread);
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the server closed", closeTime > -1);
+		assertTrue("Assert that closing ("+closeTime+"ms) did not wait on every idle thread", closeTime < 2000);
+		assertTrue("Assert that every server thread exited, but "+leftover+" are still alive", leftover.isEmpty());
+    }
+    
+    /**
+     * Test that listening on a Unix domain socket only replaces a socket file left behind by a server that is gone
+     * @since 1.2
+     */
+    @Test public void testUnixDomainSocketFileReplaced() {
+    	Assume.assumeTrue("Unix domain sockets require Java 16 or newer", UnixDomainTransport.available());
+    	
+    	boolean fileKept = false;
+    	boolean liveKept = false;
+    	boolean staleReplaced = false;
+		try {
+			File dir = Files.createTempDirectory("tcpacketprotocol").toFile();
+			
+			// A regular file must not be deleted
+			File regular = new File(dir, "regular.sock");
+			Files.write(regular.toPath(), "Test".getBytes());
+			try {
+				new UnixDomainTransport(regular.getPath()).listen(null, 0, 1).close();
+			} catch(BindException e) {
+				fileKept = regular.exists();
+			}
+			
+			// A socket that is still being listened on must not be taken over
+			File live = new File(dir, "live.sock");
+			TransportListener listener = new UnixDomainTransport(live.getPath()).listen(null, 0, 1);
+			try {
+				new UnixDomainTransport(live.getPath()).listen(null, 0, 1).close();
+			} catch(BindException e) {
+				liveKept = true;
+			}
+			
+			// Move the socket file out from under its listener, so closing the listener leaves it behind like a crashed server
+			File stale = new File(dir, "stale.sock");
+			Files.move(live.toPath(), stale.toPath());
+			listener.close();
+			
+			TransportListener replaced = new UnixDomainTransport(stale.getPath()).listen(null, 0, 1);
+			new UnixDomainTransport(stale.getPath()).connect(null, 0).close();
+			staleReplaced = true;
+			replaced.close();
+			
+			regular.delete();
+			dir.delete();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that listening failed without deleting a regular file", fileKept);
+		assertTrue("Assert that listening failed on a socket another server is listening on", liveKept);
+		assertTrue("Assert that a stale socket file was replaced", staleReplaced);
+    }
+    
+    /**
+     * Test that packets and their replies survive wrapping around the shared memory transport's rings
+     * @since 1.2
+     */
+    @Test public void testSharedMemoryTransportReply() {
+    	AtomicInteger replies = new AtomicInteger(0);
+    	String[] leftover = null;
+		try {
+			File dir = Files.createTempDirectory("tcpacketprotocol").toFile();
+			
+			// Use the smallest ring, so the packets below wrap around it several times
+			SharedMemoryTransport transport = new SharedMemoryTransport(dir, 1024);
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.transport(transport)
+					.bindPort(1)
+					.printErrors(true)
+			).start();
+			
+			// Echo received packets
+			server.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body(pkt.body()));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.transport(transport)
+					.port(1)
+					.printErrors(true)
+			).connect();
+			
+			Random random = new Random();
+			for(int i = 0; i < 20; i++) {
+				byte[] body = new byte[300];
+				random.nextBytes(body);
+				client.send(new Packet().body(body), (pkt, timedOut) -> {
+					if(!timedOut && Arrays.equals(body, pkt.body()))
+						replies.incrementAndGet();
+				});
+			}
+			
+			// Sleep until got all replies or ran out of tries
+			int triesLeft = 50;
+			while(replies.get() < 20 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+			server.close();
+			leftover = dir.list();
+			dir.delete();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that every echoed body came back intact", 20, replies.get());
+		assertTrue("Assert that closing removed the connection files", leftover != null && leftover.length == 0);
+    }
+    
+    private boolean tlsGotReply = false;
+    /**
+     * Test a client's ability to send a packet and receive a reply over TLS, using a self-signed certificate for localhost
+     * @since 1.2
+     */
+    @Test public void testTlsReply() {
+    	boolean encrypted = false;
+		try {
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			keyStore.load(getClass().getResourceAsStream("/test-keystore.jks"), "testpass".toCharArray());
+			
+			// The server presents the certificate, and the client trusts it
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, "testpass".toCharArray());
+			SSLContext serverContext = SSLContext.getInstance("TLS");
+			serverContext.init(keyManagers.getKeyManagers(), null, null);
+			
+			TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(keyStore);
+			SSLContext clientContext = SSLContext.getInstance("TLS");
+			clientContext.init(null, trustManagers.getTrustManagers(), null);
+			
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.tlsContext(serverContext)
+					.printErrors(true)
+			).start();
+			
+			// Reply to received packets
+			server.packetHandler(pkt -> {
+				try {
+					pkt.replyWith(new Packet().body("Test"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			
+			TCPacketClient client = new TCPacketClient(
+					new TCPacketClientSettings()
+					.address("localhost")
+					.port(server.serverSocket().getLocalPort())
+					.tlsContext(clientContext)
+					.printErrors(true)
+			).connect();
+			encrypted = client.socket() instanceof SSLSocket;
+			
+			client.send(new Packet().body("Test"), (pkt, timedOut) -> {
+				tlsGotReply = !timedOut;
+			});
+			
+			// Sleep until got a reply or ran out of tries
+			int triesLeft = 50;
+			while(!tlsGotReply && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertTrue("Assert that the client connected over TLS", encrypted);
+		assertTrue("Assert that the client recieved a reply over TLS", tlsGotReply);
+    }
+    
+    /**
+     * Test that a TLS server turns connections away without letting clients that never handshake hold up accepting
+     * @since 1.2
+     */
+    @Test public void testTlsRejectDoesNotBlockAcceptor() {
+    	long closeTime = -1;
+    	long rejected = -1;
+    	ArrayList<Socket> silent = new ArrayList<Socket>();
+		try {
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			keyStore.load(getClass().getResourceAsStream("/test-keystore.jks"), "testpass".toCharArray());
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, "testpass".toCharArray());
+			SSLContext serverContext = SSLContext.getInstance("TLS");
+			serverContext.init(keyManagers.getKeyManagers(), null, null);
+			
+			// Turn every connection away
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.tlsContext(serverContext)
+					.maxConnections(0)
+					.printErrors(true)
+			).start();
+			int port = server.serverSocket().getLocalPort();
+			
+			// Connect clients that never start a handshake
+			for(int i = 0; i < 3; i++)
+				silent.add(new Socket("localhost", port));
+			
+			// The next connection should be turned away right away
+			long start = System.currentTimeMillis();
+			try(Socket socket = new Socket("localhost", port)) {
+				socket.setSoTimeout(5000);
+				try {
+					socket.getInputStream().read();
+				} catch(IOException e) {
+					// Reset by the server
+				}
+			}
+			closeTime = System.currentTimeMillis() - start;
+			rejected = server.rejectedConnections();
+			
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		} finally {
+			for(Socket socket : silent) {
+				try {
+					socket.close();
+				} catch(IOException e) {
+					// Already closed
+				}
+			}
+		}
+		assertEquals("Assert that every connection was rejected", 4, rejected);
+		assertTrue("Assert that the connection was turned away ("+closeTime+"ms) without waiting on the silent clients", closeTime > -1 && closeTime < 1000);
+    }
+    
+    private String scopedReply = null;
+    /**
+     * Test that a server only accepts a reply from the connection its packet was sent on
+     * @since 1.2
+     */
+    @Test public void testReplyScopedToConnection() {
+    	int outstanding = -1;
+		try {
+			TCPacketServer server = server(true);
+			
+			// Reply to packets after a while, so a forged reply from another client arrives first
+			PacketHandler replier = pkt -> {
+				try {
+					Thread.sleep(300);
+					pkt.replyWith(new Packet().body("Genuine"));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			};
+			TCPacketClient first = client(server, false);
+			first.packetHandler(replier);
+			first.connect();
+			TCPacketClient second = client(server, false);
+			second.packetHandler(replier);
+			second.connect();
+			
+			int triesLeft = 50;
+			while(server.connections().length < 2 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			// Send a packet to one connection, and have the other client reply to it
+			ServerConnection conn = server.connections()[0];
+			TCPacketClient other = conn.socket().getPort() == first.socket().getLocalPort() ? second : first;
+			Packet pkt = new Packet().body("Test");
+			conn.send(pkt, (reply, timedOut) -> {
+				scopedReply = timedOut ? "Timed out" : reply.bodyAsString();
+			});
+			other.send(new Packet().body("Forged").setReplyTo(pkt.id()));
+			
+			// Sleep until got a reply or ran out of tries
+			triesLeft = 50;
+			while(scopedReply == null && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			outstanding = conn.outstandingReplies();
+			
+			first.close();
+			second.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that only the reply from the right connection was accepted", "Genuine", scopedReply);
+		assertEquals("Assert that the connection has no replies left outstanding", 0, outstanding);
+    }
+    
+    /**
+     * Test that a pending reply is resolved as a lost connection as soon as the server closes
+     * @since 1.2
+     */
+    @Test public void testConnectionLostStatus() {
+    	AtomicInteger status = new AtomicInteger(-1);
+		try {
+			// The server never replies
+			TCPacketServer server = server(true);
+			TCPacketClient client = client(server, true);
+			
+			client.send(new Packet().body("Test"), PacketReplyHandler.withStatus(30, (pkt, replyStatus) -> {
+				status.set(replyStatus);
+			}));
+			
+			int triesLeft = 50;
+			while(server.connections().length < 1 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			server.close();
+			
+			// Sleep until the reply was resolved or ran out of tries, which is far shorter than its timeout
+			triesLeft = 50;
+			while(status.get() < 0 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that the pending reply was resolved as a lost connection", PacketReplyHandler.STATUS_CONNECTION_LOST, status.get());
+    }
+    
+    /**
+     * Test that request handlers can reply asynchronously, and that their requests skip the regular packet handlers
+     * @since 1.2
+     */
+    @Test public void testRequestHandler() {
+    	AtomicInteger replies = new AtomicInteger(0);
+    	AtomicInteger handled = new AtomicInteger(0);
+		try {
+			TCPacketServer server = server(true);
+			server.packetHandler(pkt -> handled.incrementAndGet());
+			
+			// Reply from another thread, after the handler has already returned
+			server.requestHandler((short) 5, req -> {
+				CompletableFuture<Packet> reply = new CompletableFuture<Packet>();
+				new Thread(() -> {
+					try {
+						Thread.sleep(100);
+					} catch(InterruptedException e) {
+						// Reply early
+					}
+					reply.complete(new Packet().body("Reply "+req.bodyAsString()));
+				}).start();
+				return reply;
+			});
+			
+			TCPacketClient client = client(server, true);
+			for(int i = 0; i < 5; i++) {
+				String expected = "Reply "+i;
+				client.send(new Packet((short) 5).body(String.valueOf(i)), (pkt, timedOut) -> {
+					if(!timedOut && expected.equals(pkt.bodyAsString()))
+						replies.incrementAndGet();
+				});
+			}
+			
+			// Sleep until got all replies or ran out of tries
+			int triesLeft = 50;
+			while(replies.get() < 5 && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that every request got its own reply", 5, replies.get());
+		assertEquals("Assert that the requests were not passed to the packet handlers", 0, handled.get());
+    }
+    
+    /**
+     * Test that the server reports handlers that run for longer than the slow handler threshold
+     * @since 1.2
+     */
+    @Test public void testSlowHandlerWatchdog() {
+    	long before = -1;
+    	long after = -1;
+    	AtomicInteger reported = new AtomicInteger(0);
+		try {
+			TCPacketServer server = new TCPacketServer(
+					new TCPacketServerSettings()
+					.bindPort(0)
+					.slowHandlerThreshold(100)
+					.printErrors(true)
+			).start();
+			server.exceptionHandler(e -> {
+				if(e instanceof SlowHandlerException)
+					reported.incrementAndGet();
+			});
+			
+			// Sleep for well over the threshold
+			server.packetHandler(pkt -> {
+				try {
+					Thread.sleep(500);
+				} catch(InterruptedException e) {
+					// Interrupted by closing the server
+				}
+			});
+			before = server.slowHandlerInvocations();
+			
+			TCPacketClient client = client(server, true);
+			client.send(new Packet().body("Test"));
+			
+			// Sleep until the handler was reported or ran out of tries
+			int triesLeft = 50;
+			while((server.slowHandlerInvocations() < 1 || reported.get() < 1) && triesLeft > 0) {
+				Thread.sleep(100);
+				triesLeft--;
+			}
+			after = server.slowHandlerInvocations();
+			
+			client.close();
+			server.close();
+		} catch (Exception e) {
+			System.err.println("Error:");
+			e.printStackTrace();
+		}
+		assertEquals("Assert that no handlers were slow before sending", 0, before);
+		assertEquals("Assert that the slow handler was counted", 1, after);
+		assertEquals("Assert that the slow handler was reported to the exception handlers", 1, reported.get());
+    }
 }
\ No newline at end of file